@@ -0,0 +1,75 @@
+package org.powerimo.rabbitmq.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import org.powerimo.rabbitmq.CachingRabbitPayloadConverter;
+import org.powerimo.rabbitmq.RabbitPayloadConverter;
+import org.powerimo.rabbitmq.StandardRabbitPayloadConverter;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Deterministic payloads and converters shared by the benchmarks
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    static ObjectMapper objectMapper() {
+        var objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        return objectMapper;
+    }
+
+    static RabbitPayloadConverter converter(String type) {
+        switch (type) {
+            case "STANDARD":
+                return new StandardRabbitPayloadConverter(objectMapper());
+            case "CACHING":
+                return new CachingRabbitPayloadConverter(objectMapper());
+            default:
+                throw new IllegalArgumentException("Unknown converter: " + type);
+        }
+    }
+
+    /**
+     * @param items number of report lines: 1 is about 200 bytes of JSON, 100 about 10 KB, 1000 about 100 KB
+     */
+    static Report report(int items) {
+        var report = new Report();
+        report.setId(new UUID(42, 42));
+        report.setName("daily report");
+        report.setCreatedAt(OffsetDateTime.of(2024, 1, 1, 12, 0, 0, 0, ZoneOffset.UTC));
+        var lines = new ArrayList<ReportLine>(items);
+        for (int i = 0; i < items; i++) {
+            var line = new ReportLine();
+            line.setNumber(i);
+            line.setCode("CODE-" + i);
+            line.setDescription("report line number " + i);
+            line.setAmount(i * 10.5);
+            lines.add(line);
+        }
+        report.setLines(lines);
+        return report;
+    }
+
+    @Data
+    public static class Report {
+        private UUID id;
+        private String name;
+        private OffsetDateTime createdAt;
+        private List<ReportLine> lines;
+    }
+
+    @Data
+    public static class ReportLine {
+        private int number;
+        private String code;
+        private String description;
+        private double amount;
+    }
+}
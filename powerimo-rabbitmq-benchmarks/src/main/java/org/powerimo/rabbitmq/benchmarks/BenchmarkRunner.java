@@ -0,0 +1,26 @@
+package org.powerimo.rabbitmq.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Accepts the usual JMH command line options and always adds the GC profiler,
+ * so the results include the allocation rate per operation.
+ * <pre>
+ * mvn -P benchmarks package -pl powerimo-rabbitmq-benchmarks -am
+ * java -jar powerimo-rabbitmq-benchmarks/target/benchmarks.jar
+ * </pre>
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        var options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,79 @@
+package org.powerimo.rabbitmq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.powerimo.rabbitmq.LocalParameters;
+import org.powerimo.rabbitmq.MessageType;
+import org.powerimo.rabbitmq.RabbitPayloadConverter;
+import org.powerimo.rabbitmq.StandardRabbitMessageHandler;
+import org.powerimo.rabbitmq.StandardRabbitMessagePublisher;
+import org.powerimo.rabbitmq.StandardRabbitQueueListener;
+import org.powerimo.rabbitmq.broker.EmbeddedBroker;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the whole client stack through {@link EmbeddedBroker} over a loopback socket: batch publishing
+ * with confirms, framing, consumer channels, acks and dispatch, by listener concurrency and prefetch
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrokerBenchmark {
+    private static final int BATCH = 100;
+
+    @Param({"1", "4"})
+    public int concurrency;
+
+    @Param({"1", "50"})
+    public int prefetch;
+
+    private EmbeddedBroker broker;
+    private StandardRabbitQueueListener listener;
+    private StandardRabbitMessagePublisher publisher;
+    private List<BenchmarkData.Report> reports;
+    private final Semaphore handled = new Semaphore(0);
+
+    @Setup
+    public void setup() {
+        broker = new EmbeddedBroker().start();
+        broker.declareExchange("tasks", "topic");
+        broker.declareQueue("benchmark");
+        broker.bindQueue("benchmark", "tasks", "#");
+
+        RabbitPayloadConverter converter = BenchmarkData.converter("CACHING");
+        var handler = new StandardRabbitMessageHandler(converter);
+        handler.addCommandHandler(MessageType.TASK, "report.create", BenchmarkData.Report.class,
+                (payload, message) -> handled.release());
+
+        var parameters = new LocalParameters();
+        parameters.setUrl(broker.getUrl());
+        parameters.setQueue("benchmark");
+        parameters.setConcurrency(concurrency);
+        parameters.setPrefetch(prefetch);
+        parameters.setShowParametersOnStartup(false);
+        listener = new StandardRabbitQueueListener(parameters, handler);
+        listener.start();
+        publisher = new StandardRabbitMessagePublisher(parameters, converter);
+        reports = Collections.nCopies(BATCH, BenchmarkData.report(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.close();
+        listener.stop();
+        broker.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishAndConsume() throws InterruptedException {
+        publisher.sendTaskBatch("report.create", reports, "benchmark");
+        handled.acquire(BATCH);
+    }
+}
@@ -0,0 +1,59 @@
+package org.powerimo.rabbitmq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.powerimo.rabbitmq.LocalParameters;
+import org.powerimo.rabbitmq.MessageType;
+import org.powerimo.rabbitmq.RabbitPayloadConverter;
+import org.powerimo.rabbitmq.RabbitUtils;
+import org.powerimo.rabbitmq.StandardRabbitMessageHandler;
+import org.powerimo.rabbitmq.StandardRabbitMessagePublisher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publish to consume through {@link InProcessTransport}: payload serialization, properties, message extraction,
+ * dispatch and payload extraction of a typed handler, without a broker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"STANDARD", "CACHING"})
+    public String converterType;
+
+    @Param({"1", "100"})
+    public int items;
+
+    private StandardRabbitMessagePublisher publisher;
+    private BenchmarkData.Report report;
+    private BenchmarkData.Report received;
+
+    @Setup
+    public void setup() {
+        RabbitPayloadConverter converter = BenchmarkData.converter(converterType);
+        var handler = new StandardRabbitMessageHandler(converter);
+        handler.addCommandHandler(MessageType.TASK, "report.create", BenchmarkData.Report.class,
+                (payload, message) -> received = payload);
+
+        var parameters = new LocalParameters();
+        parameters.setUrl("amqp://in-process");
+        publisher = new StandardRabbitMessagePublisher(parameters, converter);
+        publisher.setConnectionFactory(new InProcessTransport((envelope, properties, body) ->
+                handler.handleMessage(RabbitUtils.extractMessage("benchmark", envelope, properties, body))));
+        report = BenchmarkData.report(items);
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.close();
+    }
+
+    @Benchmark
+    public BenchmarkData.Report publishAndConsume() {
+        publisher.sendTask("report.create", report, "benchmark");
+        return received;
+    }
+}
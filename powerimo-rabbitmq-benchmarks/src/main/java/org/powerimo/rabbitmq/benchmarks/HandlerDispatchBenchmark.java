@@ -0,0 +1,58 @@
+package org.powerimo.rabbitmq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.powerimo.rabbitmq.Message;
+import org.powerimo.rabbitmq.MessageType;
+import org.powerimo.rabbitmq.StandardRabbitMessageHandler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch of messages by {@link StandardRabbitMessageHandler} with many registered handlers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerDispatchBenchmark {
+    @Param({"10", "1000"})
+    public int handlers;
+
+    private StandardRabbitMessageHandler handler;
+    private Message[] messages;
+    private Message patternMessage;
+    private int next;
+    private long handled;
+
+    @Setup
+    public void setup() {
+        handler = new StandardRabbitMessageHandler();
+        for (int i = 0; i < handlers; i++) {
+            handler.addCommandHandler(MessageType.TASK, "task.number." + i, message -> handled++);
+        }
+        handler.addCommandHandler(MessageType.EVENT, "order.*", message -> handled++);
+        // mixed case names: lookups are case-insensitive
+        messages = new Message[64];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = Message.builder()
+                    .typeMessage(MessageType.TASK)
+                    .name("Task.Number." + (i * 7919 % handlers))
+                    .build();
+        }
+        patternMessage = Message.builder().typeMessage(MessageType.EVENT).name("Order.Created").build();
+    }
+
+    @Benchmark
+    public long dispatch() {
+        handler.handleMessage(messages[next++ & (messages.length - 1)]);
+        return handled;
+    }
+
+    @Benchmark
+    public long dispatchPattern() {
+        handler.handleMessage(patternMessage);
+        return handled;
+    }
+}
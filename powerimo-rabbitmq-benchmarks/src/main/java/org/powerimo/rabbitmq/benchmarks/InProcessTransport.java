@@ -0,0 +1,78 @@
+package org.powerimo.rabbitmq.benchmarks;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Envelope;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the broker: a connection factory whose channels hand every published message straight
+ * to the receiver on the publishing thread. Lets the publish-consume path run without a broker.
+ */
+class InProcessTransport extends ConnectionFactory {
+    private final Receiver receiver;
+    private final AtomicLong deliveryTag = new AtomicLong();
+
+    @FunctionalInterface
+    interface Receiver {
+        void handleDelivery(Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException;
+    }
+
+    InProcessTransport(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public Connection newConnection(String connectionName) {
+        return newConnection();
+    }
+
+    @Override
+    public Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("createChannel"))
+                        return newChannel();
+                    return defaultValue(method.getReturnType());
+                });
+    }
+
+    private Channel newChannel() {
+        AtomicLong publishSeqNo = new AtomicLong(1);
+        return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Channel.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "basicPublish":
+                            if (args.length == 4) {
+                                publishSeqNo.incrementAndGet();
+                                var envelope = new Envelope(deliveryTag.incrementAndGet(), false, (String) args[0], (String) args[1]);
+                                receiver.handleDelivery(envelope, (AMQP.BasicProperties) args[2], (byte[]) args[3]);
+                                return null;
+                            }
+                            throw new UnsupportedOperationException("basicPublish with flags is not supported");
+                        case "getNextPublishSeqNo":
+                            return publishSeqNo.get();
+                        case "isOpen":
+                        case "waitForConfirms":
+                            return true;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class)
+            return false;
+        if (type == int.class)
+            return 0;
+        if (type == long.class)
+            return 0L;
+        return null;
+    }
+}
@@ -0,0 +1,70 @@
+package org.powerimo.rabbitmq.benchmarks;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import org.openjdk.jmh.annotations.*;
+import org.powerimo.rabbitmq.Constants;
+import org.powerimo.rabbitmq.Message;
+import org.powerimo.rabbitmq.MessageType;
+import org.powerimo.rabbitmq.RabbitUtils;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion between messages and AMQP properties: {@link RabbitUtils#prepareProperties} on publishing
+ * and {@link RabbitUtils#extractMessage} on receiving
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+    @Param({Constants.PROTOCOL_VERSION_1_1, Constants.PROTOCOL_VERSION_1_2})
+    public String protocolVersion;
+
+    private Message message;
+    private Envelope envelope;
+    private AMQP.BasicProperties properties;
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        message = Message.builder()
+                .typeMessage(MessageType.TASK)
+                .name("report.create")
+                .messageId(new UUID(1, 1).toString())
+                .processId(new UUID(2, 2).toString())
+                .build();
+        message.setProtocolVersion(protocolVersion);
+        message.setPayload(BenchmarkData.report(1));
+        message.addParam("tenant", "tenant-1");
+        message.addParam("priority", 5);
+        envelope = new Envelope(1, false, "tasks", "report");
+        properties = RabbitUtils.prepareProperties(message, "benchmark", Constants.CONTENT_TYPE_JSON);
+        body = BenchmarkData.converter("STANDARD").serializePayload(message.getPayload());
+    }
+
+    @Benchmark
+    public AMQP.BasicProperties prepareProperties() {
+        return RabbitUtils.prepareProperties(message, "benchmark", Constants.CONTENT_TYPE_JSON);
+    }
+
+    @Benchmark
+    public Message extractMessage() {
+        return RabbitUtils.extractMessage("benchmark", envelope, properties, body);
+    }
+
+    /**
+     * Extract a message and read the fields a handler dispatch needs
+     */
+    @Benchmark
+    public String extractMessageAndRead() {
+        var received = RabbitUtils.extractMessage("benchmark", envelope, properties, body);
+        received.getTypeMessage();
+        received.getParamAsInteger("priority");
+        return received.getName();
+    }
+}
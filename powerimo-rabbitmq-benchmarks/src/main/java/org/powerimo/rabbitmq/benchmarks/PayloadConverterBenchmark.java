@@ -0,0 +1,46 @@
+package org.powerimo.rabbitmq.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.powerimo.rabbitmq.Message;
+import org.powerimo.rabbitmq.RabbitPayloadConverter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Payload serialization and extraction at several payload sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadConverterBenchmark {
+    @Param({"STANDARD", "CACHING"})
+    public String converterType;
+
+    @Param({"1", "100", "1000"})
+    public int items;
+
+    private RabbitPayloadConverter converter;
+    private BenchmarkData.Report report;
+    private Message received;
+
+    @Setup
+    public void setup() {
+        converter = BenchmarkData.converter(converterType);
+        report = BenchmarkData.report(items);
+        received = new Message();
+        received.setPayload(converter.serializePayload(report));
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return converter.serializePayload(report);
+    }
+
+    @Benchmark
+    public BenchmarkData.Report extract() {
+        return converter.extractPayload(received, BenchmarkData.Report.class);
+    }
+}
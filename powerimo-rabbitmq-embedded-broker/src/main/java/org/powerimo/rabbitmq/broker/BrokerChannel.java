@@ -0,0 +1,382 @@
+package org.powerimo.rabbitmq.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.Frame;
+import com.rabbitmq.client.impl.Method;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Server side of a channel: consumers, unacknowledged deliveries, prefetch, publisher confirms and assembly of
+ * published content. All methods are called under the broker lock.
+ */
+final class BrokerChannel {
+    final int number;
+    private final BrokerConnection connection;
+    private final EmbeddedBroker broker;
+    private final Map<String, BrokerConsumer> consumers = new LinkedHashMap<>();
+    private final NavigableMap<Long, Delivery> unacked = new TreeMap<>();
+    private long nextDeliveryTag = 1;
+    private int prefetch;
+    private boolean confirm;
+    private long publishSeqNo;
+    private boolean closing;
+    // reply address of the Direct Reply-To consumer of the channel
+    private String replyAddress;
+
+    private AMQP.Basic.Publish publish;
+    private byte[] header;
+    private byte[] body;
+    private int bodyOffset;
+
+    BrokerChannel(int number, BrokerConnection connection, EmbeddedBroker broker) {
+        this.number = number;
+        this.connection = connection;
+        this.broker = broker;
+    }
+
+    /**
+     * @return true if the channel may receive one more delivery with acknowledgement
+     */
+    boolean canDeliver() {
+        return !closing && (prefetch == 0 || unacked.size() < prefetch);
+    }
+
+    void deliver(BrokerConsumer consumer, BrokerMessage message) {
+        long deliveryTag = nextDeliveryTag++;
+        if (!consumer.noAck) {
+            unacked.put(deliveryTag, new Delivery(consumer.queue, message));
+            consumer.queue.unacked++;
+        }
+        broker.delivered++;
+        connection.sendContent(number,
+                new AMQImpl.Basic.Deliver(consumer.tag, deliveryTag, message.redelivered, message.exchange, message.routingKey),
+                message);
+    }
+
+    /**
+     * Notify the client that the broker has cancelled the consumer, e.g. because its queue is deleted
+     */
+    void cancelledByBroker(BrokerConsumer consumer) {
+        consumers.remove(consumer.tag);
+        connection.send(number, new AMQImpl.Basic.Cancel(consumer.tag, true));
+    }
+
+    void handleMethod(Method method) {
+        if (closing) {
+            // after a channel error everything but the close handshake is discarded
+            if (method instanceof AMQP.Channel.CloseOk) {
+                connection.removeChannel(number);
+            } else if (method instanceof AMQP.Channel.Close) {
+                connection.send(number, new AMQImpl.Channel.CloseOk());
+                connection.removeChannel(number);
+            }
+            return;
+        }
+        if (publish != null) {
+            throw new BrokerException(AMQP.UNEXPECTED_FRAME, "UNEXPECTED_FRAME - expected content header of basic.publish, got " + method.protocolMethodName());
+        }
+        try {
+            dispatchMethod(method);
+        } catch (BrokerException ex) {
+            if (ex.isHardError())
+                throw ex;
+            closeWithError(ex, method);
+        }
+    }
+
+    void handleHeader(Frame frame) throws IOException {
+        if (closing)
+            return;
+        if (publish == null || header != null) {
+            throw new BrokerException(AMQP.UNEXPECTED_FRAME, "UNEXPECTED_FRAME - content header without basic.publish");
+        }
+        var in = frame.getInputStream();
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        long bodySize = in.readLong();
+        if (bodySize > Integer.MAX_VALUE - 8) {
+            throw new BrokerException(AMQP.FRAME_ERROR, "FRAME_ERROR - message body is too large: " + bodySize);
+        }
+        header = frame.getPayload();
+        body = new byte[(int) bodySize];
+        bodyOffset = 0;
+        if (bodySize == 0) {
+            completePublish();
+        }
+    }
+
+    void handleBody(Frame frame) throws IOException {
+        if (closing)
+            return;
+        byte[] fragment = frame.getPayload();
+        if (header == null || bodyOffset + fragment.length > body.length) {
+            throw new BrokerException(AMQP.UNEXPECTED_FRAME, "UNEXPECTED_FRAME - unexpected content body frame");
+        }
+        System.arraycopy(fragment, 0, body, bodyOffset, fragment.length);
+        bodyOffset += fragment.length;
+        if (bodyOffset == body.length) {
+            completePublish();
+        }
+    }
+
+    /**
+     * Cancel the consumers and requeue the unacknowledged deliveries: the channel or its connection is closed
+     */
+    void release() {
+        closing = true;
+        Set<BrokerQueue> affected = new LinkedHashSet<>();
+        for (BrokerConsumer consumer : consumers.values()) {
+            broker.removeConsumer(consumer);
+            affected.add(consumer.queue);
+        }
+        consumers.clear();
+        // walk backwards so that requeued messages keep their order at the head of the queue
+        for (Delivery delivery : unacked.descendingMap().values()) {
+            delivery.queue.unacked--;
+            delivery.queue.requeue(delivery.message);
+            affected.add(delivery.queue);
+        }
+        unacked.clear();
+        replyAddress = null;
+        broker.dispatch(affected);
+    }
+
+    private void dispatchMethod(Method method) {
+        if (method instanceof AMQP.Basic.Publish m) {
+            if (m.getImmediate()) {
+                throw BrokerException.notImplemented(method);
+            }
+            publish = m;
+        } else if (method instanceof AMQP.Basic.Ack m) {
+            settle(m.getDeliveryTag(), m.getMultiple(), true, false);
+        } else if (method instanceof AMQP.Basic.Reject m) {
+            settle(m.getDeliveryTag(), false, false, m.getRequeue());
+        } else if (method instanceof AMQP.Basic.Nack m) {
+            settle(m.getDeliveryTag(), m.getMultiple(), false, m.getRequeue());
+        } else if (method instanceof AMQP.Basic.Consume m) {
+            consume(m);
+        } else if (method instanceof AMQP.Basic.Cancel m) {
+            var consumer = consumers.remove(m.getConsumerTag());
+            if (consumer != null) {
+                broker.removeConsumer(consumer);
+                if (consumer.queue.name.equals(EmbeddedBroker.DIRECT_REPLY_TO)) {
+                    replyAddress = null;
+                }
+            }
+            if (!m.getNowait()) {
+                connection.send(number, new AMQImpl.Basic.CancelOk(m.getConsumerTag()));
+            }
+        } else if (method instanceof AMQP.Basic.Qos m) {
+            prefetch = m.getPrefetchCount();
+            connection.send(number, new AMQImpl.Basic.QosOk());
+            broker.dispatch(consumedQueues());
+        } else if (method instanceof AMQP.Basic.Get m) {
+            get(m);
+        } else if (method instanceof AMQP.Confirm.Select m) {
+            confirm = true;
+            if (!m.getNowait()) {
+                connection.send(number, new AMQImpl.Confirm.SelectOk());
+            }
+        } else if (method instanceof AMQP.Exchange.Declare m) {
+            broker.declareExchange(m.getExchange(), m.getType(), m.getPassive());
+            if (!m.getNowait()) {
+                connection.send(number, new AMQImpl.Exchange.DeclareOk());
+            }
+        } else if (method instanceof AMQP.Exchange.Delete m) {
+            broker.deleteExchange(m.getExchange());
+            if (!m.getNowait()) {
+                connection.send(number, new AMQImpl.Exchange.DeleteOk());
+            }
+        } else if (method instanceof AMQP.Queue.Declare m) {
+            var queue = broker.declareQueue(m.getQueue(), m.getPassive(), m.getExclusive(), m.getAutoDelete(), m.getArguments(), connection);
+            if (!m.getNowait()) {
+                connection.send(number, new AMQImpl.Queue.DeclareOk(queue.name, queue.messages.size(), queue.consumers.size()));
+            }
+        } else if (method instanceof AMQP.Queue.Bind m) {
+            broker.bindQueue(m.getQueue(), m.getExchange(), m.getRoutingKey(), connection);
+            if (!m.getNowait()) {
+                connection.send(number, new AMQImpl.Queue.BindOk());
+            }
+        } else if (method instanceof AMQP.Queue.Unbind m) {
+            broker.unbindQueue(m.getQueue(), m.getExchange(), m.getRoutingKey(), connection);
+            connection.send(number, new AMQImpl.Queue.UnbindOk());
+        } else if (method instanceof AMQP.Queue.Purge m) {
+            int count = broker.purgeQueue(m.getQueue(), connection);
+            if (!m.getNowait()) {
+                connection.send(number, new AMQImpl.Queue.PurgeOk(count));
+            }
+        } else if (method instanceof AMQP.Queue.Delete m) {
+            int count = broker.deleteQueue(m.getQueue(), connection);
+            if (!m.getNowait()) {
+                connection.send(number, new AMQImpl.Queue.DeleteOk(count));
+            }
+        } else if (method instanceof AMQP.Channel.Close) {
+            release();
+            connection.send(number, new AMQImpl.Channel.CloseOk());
+            connection.removeChannel(number);
+        } else if (method instanceof AMQP.Channel.Flow m) {
+            connection.send(number, new AMQImpl.Channel.FlowOk(m.getActive()));
+        } else {
+            throw BrokerException.notImplemented(method);
+        }
+    }
+
+    private void consume(AMQP.Basic.Consume m) {
+        boolean reply = EmbeddedBroker.DIRECT_REPLY_TO.equals(m.getQueue());
+        if (reply && !m.getNoAck()) {
+            throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - reply consumer cannot acknowledge");
+        }
+        if (reply && replyAddress != null) {
+            throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - reply consumer already set");
+        }
+        // a reply consumer gets a private pseudo-queue: replies are delivered to it directly
+        var queue = reply
+                ? new BrokerQueue(EmbeddedBroker.DIRECT_REPLY_TO, true, false, connection)
+                : broker.queue(m.getQueue(), connection);
+        String tag = m.getConsumerTag() == null || m.getConsumerTag().isEmpty()
+                ? "amq.ctag-" + UUID.randomUUID()
+                : m.getConsumerTag();
+        if (consumers.containsKey(tag)) {
+            throw new BrokerException(AMQP.NOT_ALLOWED, "NOT_ALLOWED - attempt to reuse consumer tag '" + tag + "'");
+        }
+        var consumer = new BrokerConsumer(tag, this, queue, m.getNoAck());
+        consumers.put(tag, consumer);
+        if (reply) {
+            replyAddress = broker.addReplyConsumer(consumer);
+        }
+        if (!m.getNowait()) {
+            connection.send(number, new AMQImpl.Basic.ConsumeOk(tag));
+        }
+        queue.consumers.add(consumer);
+        queue.dispatch();
+    }
+
+    private void get(AMQP.Basic.Get m) {
+        var queue = broker.queue(m.getQueue(), connection);
+        var message = queue.messages.pollFirst();
+        if (message == null) {
+            connection.send(number, new AMQImpl.Basic.GetEmpty(""));
+            return;
+        }
+        long deliveryTag = nextDeliveryTag++;
+        if (!m.getNoAck()) {
+            unacked.put(deliveryTag, new Delivery(queue, message));
+            queue.unacked++;
+        }
+        broker.delivered++;
+        connection.sendContent(number,
+                new AMQImpl.Basic.GetOk(deliveryTag, message.redelivered, message.exchange, message.routingKey, queue.messages.size()),
+                message);
+    }
+
+    private void settle(long deliveryTag, boolean multiple, boolean ack, boolean requeue) {
+        List<Delivery> settled = new ArrayList<>();
+        if (multiple) {
+            var range = deliveryTag == 0 ? unacked : unacked.headMap(deliveryTag, true);
+            settled.addAll(range.values());
+            range.clear();
+        } else {
+            var delivery = unacked.remove(deliveryTag);
+            if (delivery == null) {
+                throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - unknown delivery tag " + deliveryTag);
+            }
+            settled.add(delivery);
+        }
+        Set<BrokerQueue> affected = consumedQueues();
+        for (int i = settled.size() - 1; i >= 0; i--) {
+            var delivery = settled.get(i);
+            delivery.queue.unacked--;
+            if (ack) {
+                broker.acked++;
+            } else {
+                broker.rejected++;
+                if (requeue) {
+                    delivery.queue.requeue(delivery.message);
+                    affected.add(delivery.queue);
+                }
+            }
+        }
+        broker.dispatch(affected);
+    }
+
+    private void completePublish() throws IOException {
+        var method = publish;
+        var message = new BrokerMessage(method.getExchange(), method.getRoutingKey(), replyHeader(header, body.length), body, false);
+        publish = null;
+        header = null;
+        body = null;
+        EmbeddedBroker.Routing routed;
+        try {
+            routed = broker.route(message);
+        } catch (BrokerException ex) {
+            if (ex.isHardError())
+                throw ex;
+            closeWithError(ex, (Method) method);
+            return;
+        }
+        broker.published++;
+        if (routed == EmbeddedBroker.Routing.UNROUTED && method.getMandatory()) {
+            connection.sendContent(number,
+                    new AMQImpl.Basic.Return(AMQP.NO_ROUTE, "NO_ROUTE", message.exchange, message.routingKey),
+                    message);
+        }
+        if (confirm) {
+            connection.send(number, routed == EmbeddedBroker.Routing.REJECTED
+                    ? new AMQImpl.Basic.Nack(++publishSeqNo, false, false)
+                    : new AMQImpl.Basic.Ack(++publishSeqNo, false));
+        }
+    }
+
+    /**
+     * Replace the {@code amq.rabbitmq.reply-to} address of a request published on a channel with a reply consumer
+     * by the reply address of the consumer. Headers of other channels are kept as received
+     */
+    private byte[] replyHeader(byte[] header, long bodySize) throws IOException {
+        if (replyAddress == null)
+            return header;
+        var properties = (AMQP.BasicProperties) AMQImpl.readContentHeaderFrom(new DataInputStream(new ByteArrayInputStream(header)));
+        if (!EmbeddedBroker.DIRECT_REPLY_TO.equals(properties.getReplyTo()))
+            return header;
+        return properties.builder().replyTo(replyAddress).build().toFrame(number, bodySize).getPayload();
+    }
+
+    private Set<BrokerQueue> consumedQueues() {
+        Set<BrokerQueue> queues = new LinkedHashSet<>();
+        for (BrokerConsumer consumer : consumers.values()) {
+            queues.add(consumer.queue);
+        }
+        return queues;
+    }
+
+    private void closeWithError(BrokerException ex, Method method) {
+        publish = null;
+        header = null;
+        body = null;
+        release();
+        connection.send(number, new AMQImpl.Channel.Close(ex.getReplyCode(), ex.getReplyText(),
+                method.protocolClassId(), method.protocolMethodId()));
+    }
+
+    private static final class Delivery {
+        final BrokerQueue queue;
+        final BrokerMessage message;
+
+        Delivery(BrokerQueue queue, BrokerMessage message) {
+            this.queue = queue;
+            this.message = message;
+        }
+    }
+}
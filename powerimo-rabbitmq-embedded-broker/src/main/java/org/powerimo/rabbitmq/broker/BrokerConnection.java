@@ -0,0 +1,285 @@
+package org.powerimo.rabbitmq.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.Frame;
+import com.rabbitmq.client.impl.LongStringHelper;
+import com.rabbitmq.client.impl.Method;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side of a client connection.
+ * <p>
+ * The reader thread parses frames and handles methods under the broker lock. Outgoing frames, including deliveries
+ * to this connection caused by other connections, are only queued under the lock; the writer thread writes them
+ * and flushes the socket when the queue is drained, so bursts of deliveries and confirms are coalesced into few
+ * writes. The writer also sends heartbeats when the connection is idle.
+ */
+@Slf4j
+final class BrokerConnection {
+    private static final byte[] PROTOCOL_HEADER = {'A', 'M', 'Q', 'P', 0, 0, 9, 1};
+    private static final Frame CLOSE = new Frame(AMQP.FRAME_HEARTBEAT, 0);
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    private final EmbeddedBroker broker;
+    private final Socket socket;
+    private final String name;
+    private final BlockingQueue<Frame> outbound = new LinkedBlockingQueue<>();
+    private final Map<Integer, BrokerChannel> channels = new HashMap<>();
+    private final Thread reader;
+    private final Thread writer;
+    private volatile int heartbeat;
+    private volatile int frameMax = EmbeddedBroker.FRAME_MAX;
+    private boolean open;
+    private boolean closing;
+    private volatile boolean running = true;
+
+    BrokerConnection(EmbeddedBroker broker, Socket socket) {
+        this.broker = broker;
+        this.socket = socket;
+        this.name = socket.getRemoteSocketAddress().toString();
+        this.reader = new Thread(this::read, "rabbit-broker-reader " + name);
+        this.writer = new Thread(this::write, "rabbit-broker-writer " + name);
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+    }
+
+    void start() {
+        reader.start();
+    }
+
+    /**
+     * Drop the connection without the close handshake
+     */
+    void abort() {
+        running = false;
+        closeSocket();
+    }
+
+    void send(int channel, Method method) {
+        try {
+            outbound.add(method.toFrame(channel));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Method is not encoded: " + method.protocolMethodName(), ex);
+        }
+    }
+
+    void sendContent(int channel, Method method, BrokerMessage message) {
+        send(channel, method);
+        outbound.add(new Frame(AMQP.FRAME_HEADER, channel, message.header));
+        int fragmentSize = frameMax - 8;
+        try {
+            for (int offset = 0; offset < message.body.length; offset += fragmentSize) {
+                outbound.add(Frame.fromBodyFragment(channel, message.body, offset, Math.min(fragmentSize, message.body.length - offset)));
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Content body is not encoded", ex);
+        }
+    }
+
+    /**
+     * Notify an open connection that it is blocked or unblocked. Called under the broker lock
+     * @param reason reason of the block; null to unblock
+     */
+    void notifyBlocked(String reason) {
+        if (!open)
+            return;
+        send(0, reason != null ? new AMQImpl.Connection.Blocked(reason) : new AMQImpl.Connection.Unblocked());
+    }
+
+    void removeChannel(int number) {
+        channels.remove(number);
+    }
+
+    private void read() {
+        try {
+            var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] protocolHeader = new byte[PROTOCOL_HEADER.length];
+            in.readFully(protocolHeader);
+            if (!Arrays.equals(PROTOCOL_HEADER, protocolHeader)) {
+                log.debug("[BROKER] Unsupported protocol header from {}", name);
+                out.write(PROTOCOL_HEADER);
+                out.flush();
+                return;
+            }
+            writer.start();
+            send(0, new AMQImpl.Connection.Start(0, 9, serverProperties(),
+                    LongStringHelper.asLongString("PLAIN AMQPLAIN"), LongStringHelper.asLongString("en_US")));
+            while (running) {
+                Frame frame = Frame.readFrom(in, frameMax);
+                if (frame == null)
+                    continue;
+                handleFrame(frame);
+            }
+        } catch (EOFException | SocketException ex) {
+            log.debug("[BROKER] Connection {} is closed by the client", name);
+        } catch (Exception ex) {
+            log.warn("[BROKER] Connection {} is dropped", name, ex);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void handleFrame(Frame frame) throws IOException {
+        if (frame.type == AMQP.FRAME_HEARTBEAT)
+            return;
+        try {
+            if (frame.type == AMQP.FRAME_METHOD) {
+                Method method = AMQImpl.readMethodFrom(frame.getInputStream());
+                if (frame.channel == 0) {
+                    handleConnectionMethod(method);
+                } else if (!closing) {
+                    handleChannelMethod(frame.channel, method);
+                }
+            } else if (!closing) {
+                synchronized (broker.lock) {
+                    var channel = channel(frame.channel);
+                    if (frame.type == AMQP.FRAME_HEADER) {
+                        channel.handleHeader(frame);
+                    } else if (frame.type == AMQP.FRAME_BODY) {
+                        channel.handleBody(frame);
+                    } else {
+                        throw new BrokerException(AMQP.FRAME_ERROR, "FRAME_ERROR - unknown frame type " + frame.type);
+                    }
+                }
+            }
+        } catch (BrokerException ex) {
+            log.debug("[BROKER] Connection {} is closed: {}", name, ex.getReplyText());
+            closing = true;
+            send(0, new AMQImpl.Connection.Close(ex.getReplyCode(), ex.getReplyText(), 0, 0));
+        }
+    }
+
+    private void handleConnectionMethod(Method method) {
+        if (method instanceof AMQP.Connection.StartOk) {
+            send(0, new AMQImpl.Connection.Tune(EmbeddedBroker.CHANNEL_MAX, EmbeddedBroker.FRAME_MAX, broker.getHeartbeat()));
+        } else if (method instanceof AMQP.Connection.TuneOk m) {
+            if (m.getFrameMax() > 0) {
+                frameMax = Math.min(m.getFrameMax(), EmbeddedBroker.FRAME_MAX);
+            }
+            heartbeat = m.getHeartbeat();
+        } else if (method instanceof AMQP.Connection.Open) {
+            synchronized (broker.lock) {
+                open = true;
+                send(0, new AMQImpl.Connection.OpenOk(""));
+                if (broker.blockedReason != null) {
+                    send(0, new AMQImpl.Connection.Blocked(broker.blockedReason));
+                }
+            }
+        } else if (method instanceof AMQP.Connection.Close) {
+            send(0, new AMQImpl.Connection.CloseOk());
+            closing = true;
+            running = false;
+        } else if (method instanceof AMQP.Connection.CloseOk) {
+            running = false;
+        } else if (!closing) {
+            throw BrokerException.notImplemented(method);
+        }
+    }
+
+    private void handleChannelMethod(int number, Method method) {
+        synchronized (broker.lock) {
+            if (method instanceof AMQP.Channel.Open) {
+                if (!open || channels.containsKey(number)) {
+                    throw new BrokerException(AMQP.CHANNEL_ERROR, "CHANNEL_ERROR - channel " + number + " cannot be opened");
+                }
+                channels.put(number, new BrokerChannel(number, this, broker));
+                send(number, new AMQImpl.Channel.OpenOk(LongStringHelper.asLongString("")));
+                return;
+            }
+            channel(number).handleMethod(method);
+        }
+    }
+
+    private BrokerChannel channel(int number) {
+        var channel = channels.get(number);
+        if (channel == null) {
+            throw new BrokerException(AMQP.CHANNEL_ERROR, "CHANNEL_ERROR - unknown channel " + number);
+        }
+        return channel;
+    }
+
+    private void write() {
+        try {
+            var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                int interval = heartbeat;
+                Frame frame = outbound.poll(interval > 0 ? interval * 500L : IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    if (interval > 0) {
+                        new Frame(AMQP.FRAME_HEARTBEAT, 0).writeTo(out);
+                        out.flush();
+                    }
+                    continue;
+                }
+                if (frame == CLOSE) {
+                    out.flush();
+                    break;
+                }
+                frame.writeTo(out);
+                if (outbound.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            log.debug("[BROKER] Connection {} write failed: {}", name, ex.getMessage());
+        } finally {
+            closeSocket();
+        }
+    }
+
+    private void shutdown() {
+        synchronized (broker.lock) {
+            for (BrokerChannel channel : channels.values()) {
+                channel.release();
+            }
+            channels.clear();
+            broker.connectionClosed(this);
+        }
+        if (writer.isAlive()) {
+            outbound.add(CLOSE);
+        } else {
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            log.debug("[BROKER] Exception on closing socket of {}", name, ex);
+        }
+    }
+
+    private static Map<String, Object> serverProperties() {
+        Map<String, Object> capabilities = new HashMap<>();
+        capabilities.put("publisher_confirms", true);
+        capabilities.put("basic.nack", true);
+        capabilities.put("consumer_cancel_notify", true);
+        capabilities.put("authentication_failure_close", true);
+        capabilities.put("connection.blocked", true);
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("product", "Powerimo embedded broker");
+        properties.put("platform", "Java");
+        properties.put("capabilities", capabilities);
+        return properties;
+    }
+}
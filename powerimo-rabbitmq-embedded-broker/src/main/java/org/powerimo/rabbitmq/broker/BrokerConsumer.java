@@ -0,0 +1,15 @@
+package org.powerimo.rabbitmq.broker;
+
+final class BrokerConsumer {
+    final String tag;
+    final BrokerChannel channel;
+    final BrokerQueue queue;
+    final boolean noAck;
+
+    BrokerConsumer(String tag, BrokerChannel channel, BrokerQueue queue, boolean noAck) {
+        this.tag = tag;
+        this.channel = channel;
+        this.queue = queue;
+        this.noAck = noAck;
+    }
+}
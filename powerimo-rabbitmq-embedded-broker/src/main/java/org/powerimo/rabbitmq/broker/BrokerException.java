@@ -0,0 +1,38 @@
+package org.powerimo.rabbitmq.broker;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.Method;
+import lombok.Getter;
+
+/**
+ * Protocol error raised while handling a client method: closes the channel or, for hard errors, the connection
+ */
+@Getter
+class BrokerException extends RuntimeException {
+    private final int replyCode;
+    private final boolean hardError;
+
+    BrokerException(int replyCode, String text) {
+        super(text);
+        this.replyCode = replyCode;
+        this.hardError = replyCode != AMQP.NOT_FOUND
+                && replyCode != AMQP.ACCESS_REFUSED
+                && replyCode != AMQP.RESOURCE_LOCKED
+                && replyCode != AMQP.PRECONDITION_FAILED;
+    }
+
+    static BrokerException notFound(String kind, String name) {
+        return new BrokerException(AMQP.NOT_FOUND, "NOT_FOUND - no " + kind + " '" + name + "' in vhost '/'");
+    }
+
+    static BrokerException notImplemented(Method method) {
+        return new BrokerException(AMQP.NOT_IMPLEMENTED, "NOT_IMPLEMENTED - " + method.protocolMethodName());
+    }
+
+    /**
+     * @return reply text of the close method
+     */
+    String getReplyText() {
+        return getMessage();
+    }
+}
@@ -0,0 +1,97 @@
+package org.powerimo.rabbitmq.broker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Exchange with its queue bindings. Supported types are {@code direct}, {@code fanout} and {@code topic}.
+ * All methods are called under the broker lock.
+ */
+final class BrokerExchange {
+    static final String DIRECT = "direct";
+    static final String FANOUT = "fanout";
+    static final String TOPIC = "topic";
+
+    final String name;
+    final String type;
+    private final List<Binding> bindings = new ArrayList<>();
+
+    BrokerExchange(String name, String type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    static boolean isSupportedType(String type) {
+        return DIRECT.equals(type) || FANOUT.equals(type) || TOPIC.equals(type);
+    }
+
+    void bind(BrokerQueue queue, String routingKey) {
+        for (Binding binding : bindings) {
+            if (binding.queue == queue && binding.routingKey.equals(routingKey))
+                return;
+        }
+        bindings.add(new Binding(queue, routingKey));
+    }
+
+    void unbind(BrokerQueue queue, String routingKey) {
+        bindings.removeIf(binding -> binding.queue == queue && binding.routingKey.equals(routingKey));
+    }
+
+    void unbindAll(BrokerQueue queue) {
+        bindings.removeIf(binding -> binding.queue == queue);
+    }
+
+    /**
+     * Collect the queues the message is routed to. A queue bound several times gets the message once.
+     * @param routingKey routing key of the message
+     * @param targets collection to add the queues to
+     */
+    void route(String routingKey, Collection<BrokerQueue> targets) {
+        String[] words = TOPIC.equals(type) ? words(routingKey) : null;
+        for (Binding binding : bindings) {
+            boolean matched;
+            if (FANOUT.equals(type)) {
+                matched = true;
+            } else if (words != null) {
+                matched = matches(binding.pattern, 0, words, 0);
+            } else {
+                matched = binding.routingKey.equals(routingKey);
+            }
+            if (matched && !targets.contains(binding.queue)) {
+                targets.add(binding.queue);
+            }
+        }
+    }
+
+    private static String[] words(String key) {
+        return key.isEmpty() ? new String[0] : key.split("\\.", -1);
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] words, int w) {
+        if (p == pattern.length)
+            return w == words.length;
+        if ("#".equals(pattern[p])) {
+            for (int i = w; i <= words.length; i++) {
+                if (matches(pattern, p + 1, words, i))
+                    return true;
+            }
+            return false;
+        }
+        if (w == words.length)
+            return false;
+        return ("*".equals(pattern[p]) || pattern[p].equals(words[w])) && matches(pattern, p + 1, words, w + 1);
+    }
+
+    private static final class Binding {
+        final BrokerQueue queue;
+        final String routingKey;
+        final String[] pattern;
+
+        Binding(BrokerQueue queue, String routingKey) {
+            this.queue = queue;
+            this.routingKey = routingKey;
+            this.pattern = words(routingKey);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.powerimo.rabbitmq.broker;
+
+/**
+ * Published message as the broker keeps it: the content header payload is stored as received and sent to consumers
+ * without re-encoding the properties
+ */
+final class BrokerMessage {
+    final String exchange;
+    final String routingKey;
+    final byte[] header;
+    final byte[] body;
+    final boolean redelivered;
+    // System.currentTimeMillis() when the message expires in its queue; 0 if it never expires
+    final long expiresAt;
+
+    BrokerMessage(String exchange, String routingKey, byte[] header, byte[] body, boolean redelivered) {
+        this(exchange, routingKey, header, body, redelivered, 0);
+    }
+
+    private BrokerMessage(String exchange, String routingKey, byte[] header, byte[] body, boolean redelivered, long expiresAt) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.header = header;
+        this.body = body;
+        this.redelivered = redelivered;
+        this.expiresAt = expiresAt;
+    }
+
+    BrokerMessage redelivered() {
+        return redelivered ? this : new BrokerMessage(exchange, routingKey, header, body, true, expiresAt);
+    }
+
+    BrokerMessage expiring(long expiresAt) {
+        return new BrokerMessage(exchange, routingKey, header, body, redelivered, expiresAt);
+    }
+}
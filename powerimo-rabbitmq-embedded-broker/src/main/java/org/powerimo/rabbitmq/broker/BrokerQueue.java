@@ -0,0 +1,92 @@
+package org.powerimo.rabbitmq.broker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Queue of ready messages with its consumers. Messages are dispatched round-robin to the consumers whose channels
+ * have not reached their prefetch limit. All methods are called under the broker lock.
+ */
+final class BrokerQueue {
+    final String name;
+    final boolean exclusive;
+    final boolean autoDelete;
+    final BrokerConnection owner;
+    final Deque<BrokerMessage> messages = new ArrayDeque<>();
+    final List<BrokerConsumer> consumers = new ArrayList<>();
+    // x-message-ttl, ms; -1 if messages never expire
+    long messageTtl = -1;
+    // x-dead-letter-exchange and x-dead-letter-routing-key; expired messages are dropped without the exchange
+    String deadLetterExchange;
+    String deadLetterRoutingKey;
+    // x-max-length; -1 if the queue is not limited
+    int maxLength = -1;
+    // x-overflow=reject-publish: publishes to a full queue are nacked instead of dropping the head of the queue
+    boolean rejectPublish;
+    int unacked;
+    private int nextConsumer;
+
+    BrokerQueue(String name, boolean exclusive, boolean autoDelete, BrokerConnection owner) {
+        this.name = name;
+        this.exclusive = exclusive;
+        this.autoDelete = autoDelete;
+        this.owner = owner;
+    }
+
+    /**
+     * @return true if the queue is full and rejects new messages
+     */
+    boolean rejects() {
+        return rejectPublish && maxLength >= 0 && messages.size() >= maxLength;
+    }
+
+    void enqueue(BrokerMessage message) {
+        if (maxLength >= 0 && messages.size() >= maxLength) {
+            // overflow drop-head: the oldest ready message is dropped, it is not dead-lettered
+            messages.pollFirst();
+            if (maxLength == 0)
+                return;
+        }
+        messages.addLast(messageTtl >= 0 ? message.expiring(System.currentTimeMillis() + messageTtl) : message);
+        dispatch();
+    }
+
+    /**
+     * Return a delivered message to the head of the queue
+     * @param message message which has been rejected or was unacked when its channel was closed
+     */
+    void requeue(BrokerMessage message) {
+        messages.addFirst(message.redelivered());
+    }
+
+    void dispatch() {
+        while (!messages.isEmpty()) {
+            var consumer = nextReadyConsumer();
+            if (consumer == null)
+                return;
+            consumer.channel.deliver(consumer, messages.pollFirst());
+        }
+    }
+
+    BrokerConsumer nextReadyConsumer() {
+        int size = consumers.size();
+        for (int i = 0; i < size; i++) {
+            int index = (nextConsumer + i) % size;
+            var consumer = consumers.get(index);
+            if (consumer.channel.canDeliver()) {
+                nextConsumer = (index + 1) % size;
+                return consumer;
+            }
+        }
+        return null;
+    }
+
+    void removeConsumer(BrokerConsumer consumer) {
+        consumers.remove(consumer);
+        if (nextConsumer >= consumers.size()) {
+            nextConsumer = 0;
+        }
+    }
+}
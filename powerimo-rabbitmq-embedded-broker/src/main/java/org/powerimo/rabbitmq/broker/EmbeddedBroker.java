@@ -0,0 +1,600 @@
+package org.powerimo.rabbitmq.broker;
+
+import com.rabbitmq.client.AMQP;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.powerimo.rabbitmq.RabbitException;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process AMQP 0-9-1 stand-in broker listening on the loopback interface.
+ * <p>
+ * It lets the real client stack ({@code StandardRabbitQueueListener}, {@code StandardRabbitMessagePublisher}),
+ * including framing, channel handling and dispatch, run end-to-end in tests and benchmarks on machines without
+ * RabbitMQ. Supported:
+ * <ul>
+ *     <li>{@code direct}, {@code fanout} and {@code topic} exchanges, the default exchange and the predeclared
+ *     {@code amq.direct}, {@code amq.fanout} and {@code amq.topic}</li>
+ *     <li>queues (exclusive and auto-delete included) and bindings</li>
+ *     <li>basic.publish (mandatory returns), consume, cancel, get, ack, reject and nack</li>
+ *     <li>basic.qos: the prefetch count limits the unacknowledged deliveries of a channel</li>
+ *     <li>publisher confirms and heartbeats</li>
+ *     <li>per-queue message TTL ({@code x-message-ttl}) and dead-lettering of expired messages
+ *     ({@code x-dead-letter-exchange}, {@code x-dead-letter-routing-key}); messages expire at the head of the queue
+ *     and get no {@code x-death} header</li>
+ *     <li>queue length limit ({@code x-max-length}) with the {@code drop-head} and {@code reject-publish}
+ *     overflow behaviours; publishes rejected by a full queue are nacked</li>
+ *     <li>Direct Reply-To: a channel consuming {@code amq.rabbitmq.reply-to} without acknowledgements receives the
+ *     replies published to the default exchange with the {@code reply_to} address of its requests</li>
+ * </ul>
+ * There is a single virtual host; any credentials are accepted. Nothing is persisted, and transactions, per-message
+ * TTLs, dead-lettering of rejected messages and exchange-to-exchange bindings are not supported. All state is guarded by one lock, which
+ * is never held while writing to sockets.
+ * <pre>
+ * try (var broker = new EmbeddedBroker().start()) {
+ *     broker.declareExchange("tasks", "topic");
+ *     broker.declareQueue("worker");
+ *     broker.bindQueue("worker", "tasks", "#");
+ *     parameters.setUrl(broker.getUrl());
+ *     ...
+ * }
+ * </pre>
+ */
+@Slf4j
+public class EmbeddedBroker implements AutoCloseable {
+    static final int FRAME_MAX = 131072;
+    static final int CHANNEL_MAX = 2047;
+    static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+    private static final String DEFAULT_EXCHANGE = "";
+    private static final String REPLY_ADDRESS_PREFIX = DIRECT_REPLY_TO + ".";
+
+    final Object lock = new Object();
+    private final Map<String, BrokerExchange> exchanges = new HashMap<>();
+    private final Map<String, BrokerQueue> queues = new HashMap<>();
+    private final Map<String, BrokerConsumer> replyConsumers = new HashMap<>();
+    private final Set<BrokerConnection> connections = ConcurrentHashMap.newKeySet();
+    long published;
+    long delivered;
+    long acked;
+    long rejected;
+    long expired;
+    String blockedReason;
+
+    private final int requestedPort;
+    /**
+     * Heartbeat timeout in seconds proposed to clients; 0 disables heartbeats
+     */
+    @Getter
+    @Setter
+    private int heartbeat = 60;
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private ScheduledExecutorService expirer;
+
+    public EmbeddedBroker() {
+        this(0);
+    }
+
+    /**
+     * @param port port to listen on; 0 to use a free port
+     */
+    public EmbeddedBroker(int port) {
+        this.requestedPort = port;
+        exchanges.put(DEFAULT_EXCHANGE, new BrokerExchange(DEFAULT_EXCHANGE, BrokerExchange.DIRECT));
+        exchanges.put("amq.direct", new BrokerExchange("amq.direct", BrokerExchange.DIRECT));
+        exchanges.put("amq.fanout", new BrokerExchange("amq.fanout", BrokerExchange.FANOUT));
+        exchanges.put("amq.topic", new BrokerExchange("amq.topic", BrokerExchange.TOPIC));
+    }
+
+    /**
+     * Start accepting connections
+     * @return this broker
+     */
+    public synchronized EmbeddedBroker start() {
+        if (serverSocket != null)
+            return this;
+        try {
+            serverSocket = new ServerSocket(requestedPort, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException ex) {
+            throw new RabbitException("Embedded broker is not started on port " + requestedPort, ex);
+        }
+        expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rabbit-broker-expirer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        acceptor = new Thread(this::accept, "rabbit-broker-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Embedded broker is listening on {}", getUrl());
+        return this;
+    }
+
+    public synchronized int getPort() {
+        if (serverSocket == null) {
+            throw new RabbitException("Embedded broker is not started");
+        }
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return URL to set as the {@code url} parameter of listeners and publishers
+     */
+    public String getUrl() {
+        return "amqp://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + getPort();
+    }
+
+    /**
+     * Declare an exchange; an existing exchange of the same type is kept
+     * @param name exchange name
+     * @param type {@code direct}, {@code fanout} or {@code topic}
+     */
+    public void declareExchange(String name, String type) {
+        synchronized (lock) {
+            try {
+                declareExchange(name, type, false);
+            } catch (BrokerException ex) {
+                throw new RabbitException(ex.getReplyText());
+            }
+        }
+    }
+
+    /**
+     * Declare a durable, non-exclusive queue; an existing queue is kept
+     * @param name queue name
+     */
+    public void declareQueue(String name) {
+        synchronized (lock) {
+            try {
+                declareQueue(name, false, false, false, null, null);
+            } catch (BrokerException ex) {
+                throw new RabbitException(ex.getReplyText());
+            }
+        }
+    }
+
+    /**
+     * Declare a durable, non-exclusive queue with arguments ({@code x-message-ttl}, {@code x-max-length}...);
+     * an existing queue is kept
+     * @param name queue name
+     * @param arguments queue arguments
+     */
+    public void declareQueue(String name, Map<String, Object> arguments) {
+        synchronized (lock) {
+            try {
+                declareQueue(name, false, false, false, arguments, null);
+            } catch (BrokerException ex) {
+                throw new RabbitException(ex.getReplyText());
+            }
+        }
+    }
+
+    public void bindQueue(String queue, String exchange, String routingKey) {
+        synchronized (lock) {
+            try {
+                bindQueue(queue, exchange, routingKey, null);
+            } catch (BrokerException ex) {
+                throw new RabbitException(ex.getReplyText());
+            }
+        }
+    }
+
+    /**
+     * @return number of messages of the queue ready to be delivered
+     */
+    public int getMessageCount(String queue) {
+        synchronized (lock) {
+            return queue(queue, null).messages.size();
+        }
+    }
+
+    /**
+     * @return number of messages of the queue delivered to consumers and not acknowledged yet
+     */
+    public int getUnackedCount(String queue) {
+        synchronized (lock) {
+            return queue(queue, null).unacked;
+        }
+    }
+
+    public int getConsumerCount(String queue) {
+        synchronized (lock) {
+            return queue(queue, null).consumers.size();
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return number of messages accepted from publishers, including unroutable ones
+     */
+    public long getPublishedCount() {
+        synchronized (lock) {
+            return published;
+        }
+    }
+
+    /**
+     * @return number of deliveries to consumers, including redeliveries
+     */
+    public long getDeliveredCount() {
+        synchronized (lock) {
+            return delivered;
+        }
+    }
+
+    public long getAckedCount() {
+        synchronized (lock) {
+            return acked;
+        }
+    }
+
+    /**
+     * @return number of deliveries rejected or nacked, with or without requeue
+     */
+    public long getRejectedCount() {
+        synchronized (lock) {
+            return rejected;
+        }
+    }
+
+    /**
+     * @return number of messages expired by the message TTL of their queues, dead-lettered or dropped
+     */
+    public long getExpiredCount() {
+        synchronized (lock) {
+            return expired;
+        }
+    }
+
+    /**
+     * Block all connections, as a memory or disk alarm would do: clients are notified by {@code connection.blocked}.
+     * Unlike RabbitMQ, the broker keeps reading from blocked connections
+     * @param reason reason sent to the clients
+     */
+    public void block(String reason) {
+        synchronized (lock) {
+            if (blockedReason != null)
+                return;
+            blockedReason = reason;
+            for (BrokerConnection connection : connections) {
+                connection.notifyBlocked(reason);
+            }
+        }
+        log.info("Embedded broker blocks connections: {}", reason);
+    }
+
+    /**
+     * Unblock all connections: clients are notified by {@code connection.unblocked}
+     */
+    public void unblock() {
+        synchronized (lock) {
+            if (blockedReason == null)
+                return;
+            blockedReason = null;
+            for (BrokerConnection connection : connections) {
+                connection.notifyBlocked(null);
+            }
+        }
+        log.info("Embedded broker unblocks connections");
+    }
+
+    /**
+     * Drop all client connections without the close handshake, keeping exchanges, queues and messages, as a network
+     * failure would do. Unacknowledged deliveries are requeued.
+     */
+    public void dropConnections() {
+        for (BrokerConnection connection : connections) {
+            connection.abort();
+        }
+    }
+
+    /**
+     * Stop listening and drop all connections without the close handshake, as a broker crash would do
+     */
+    @Override
+    public synchronized void close() {
+        if (serverSocket == null)
+            return;
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            log.debug("Exception on closing the embedded broker socket", ex);
+        }
+        serverSocket = null;
+        expirer.shutdownNow();
+        for (BrokerConnection connection : connections) {
+            connection.abort();
+        }
+        log.info("Embedded broker is stopped");
+    }
+
+    private void accept() {
+        var socket = serverSocket;
+        while (!socket.isClosed()) {
+            try {
+                Socket client = socket.accept();
+                client.setTcpNoDelay(true);
+                var connection = new BrokerConnection(this, client);
+                connections.add(connection);
+                connection.start();
+            } catch (SocketException ex) {
+                break;
+            } catch (IOException ex) {
+                log.warn("Embedded broker failed to accept a connection", ex);
+            }
+        }
+    }
+
+    // Methods below are called under the lock
+
+    void connectionClosed(BrokerConnection connection) {
+        connections.remove(connection);
+        List<BrokerQueue> exclusive = new ArrayList<>();
+        for (BrokerQueue queue : queues.values()) {
+            if (queue.owner == connection) {
+                exclusive.add(queue);
+            }
+        }
+        for (BrokerQueue queue : exclusive) {
+            deleteQueue(queue);
+        }
+    }
+
+    void declareExchange(String name, String type, boolean passive) {
+        var exchange = exchanges.get(name);
+        if (passive) {
+            if (exchange == null)
+                throw BrokerException.notFound("exchange", name);
+            return;
+        }
+        if (!BrokerExchange.isSupportedType(type)) {
+            throw new BrokerException(AMQP.COMMAND_INVALID, "COMMAND_INVALID - unsupported exchange type '" + type + "'");
+        }
+        if (exchange == null) {
+            if (name.startsWith("amq.")) {
+                throw new BrokerException(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - exchange name '" + name + "' contains reserved prefix 'amq.*'");
+            }
+            exchanges.put(name, new BrokerExchange(name, type));
+        } else if (!exchange.type.equals(type)) {
+            throw new BrokerException(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - inequivalent arg 'type' for exchange '" + name
+                    + "': received '" + type + "' but current is '" + exchange.type + "'");
+        }
+    }
+
+    void deleteExchange(String name) {
+        if (DEFAULT_EXCHANGE.equals(name) || name.startsWith("amq.")) {
+            throw new BrokerException(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - exchange '" + name + "' cannot be deleted");
+        }
+        exchanges.remove(name);
+    }
+
+    BrokerQueue declareQueue(String name, boolean passive, boolean exclusive, boolean autoDelete,
+                             Map<String, Object> arguments, BrokerConnection connection) {
+        if (passive) {
+            return queue(name, connection);
+        }
+        if (name == null || name.isEmpty()) {
+            name = "amq.gen-" + UUID.randomUUID();
+        }
+        var queue = queues.get(name);
+        if (queue != null) {
+            checkOwner(queue, connection);
+            return queue;
+        }
+        queue = new BrokerQueue(name, exclusive, autoDelete, exclusive ? connection : null);
+        if (arguments != null) {
+            if (arguments.get("x-message-ttl") instanceof Number ttl) {
+                queue.messageTtl = Math.max(0, ttl.longValue());
+            }
+            Object deadLetterExchange = arguments.get("x-dead-letter-exchange");
+            queue.deadLetterExchange = deadLetterExchange != null ? deadLetterExchange.toString() : null;
+            Object deadLetterRoutingKey = arguments.get("x-dead-letter-routing-key");
+            queue.deadLetterRoutingKey = deadLetterRoutingKey != null ? deadLetterRoutingKey.toString() : null;
+            if (arguments.get("x-max-length") instanceof Number maxLength) {
+                queue.maxLength = Math.max(0, maxLength.intValue());
+            }
+            Object overflow = arguments.get("x-overflow");
+            queue.rejectPublish = overflow != null && "reject-publish".equals(overflow.toString());
+        }
+        queues.put(name, queue);
+        return queue;
+    }
+
+    BrokerQueue queue(String name, BrokerConnection connection) {
+        var queue = queues.get(name);
+        if (queue == null) {
+            if (connection == null)
+                throw new RabbitException("Embedded broker has no queue: " + name);
+            throw BrokerException.notFound("queue", name);
+        }
+        checkOwner(queue, connection);
+        return queue;
+    }
+
+    void bindQueue(String queueName, String exchangeName, String routingKey, BrokerConnection connection) {
+        var queue = queue(queueName, connection);
+        exchangeForBinding(exchangeName, connection).bind(queue, routingKey);
+    }
+
+    void unbindQueue(String queueName, String exchangeName, String routingKey, BrokerConnection connection) {
+        var queue = queue(queueName, connection);
+        exchangeForBinding(exchangeName, connection).unbind(queue, routingKey);
+    }
+
+    int purgeQueue(String name, BrokerConnection connection) {
+        var queue = queue(name, connection);
+        int count = queue.messages.size();
+        queue.messages.clear();
+        return count;
+    }
+
+    int deleteQueue(String name, BrokerConnection connection) {
+        var queue = queues.get(name);
+        if (queue == null)
+            return 0;
+        checkOwner(queue, connection);
+        int count = queue.messages.size();
+        deleteQueue(queue);
+        return count;
+    }
+
+    /**
+     * Register a Direct Reply-To consumer
+     * @param consumer consumer of the {@code amq.rabbitmq.reply-to} pseudo-queue
+     * @return reply address which routes to the consumer through the default exchange
+     */
+    String addReplyConsumer(BrokerConsumer consumer) {
+        String address = REPLY_ADDRESS_PREFIX + UUID.randomUUID();
+        replyConsumers.put(address, consumer);
+        return address;
+    }
+
+    void removeConsumer(BrokerConsumer consumer) {
+        var queue = consumer.queue;
+        queue.removeConsumer(consumer);
+        if (DIRECT_REPLY_TO.equals(queue.name)) {
+            replyConsumers.values().remove(consumer);
+            return;
+        }
+        if (queue.autoDelete && queue.consumers.isEmpty() && queues.get(queue.name) == queue) {
+            deleteQueue(queue);
+        }
+    }
+
+    /**
+     * Outcome of routing a published message
+     */
+    enum Routing {
+        // no queue is bound for the message
+        UNROUTED,
+        ROUTED,
+        // a full queue with the reject-publish overflow refused the message: the publisher gets a nack
+        REJECTED
+    }
+
+    /**
+     * Route a published message to the queues of its exchange
+     * @return outcome of routing
+     */
+    Routing route(BrokerMessage message) {
+        var exchange = exchanges.get(message.exchange);
+        if (exchange == null) {
+            throw BrokerException.notFound("exchange", message.exchange);
+        }
+        Collection<BrokerQueue> targets;
+        if (DEFAULT_EXCHANGE.equals(exchange.name) && message.routingKey.startsWith(REPLY_ADDRESS_PREFIX)) {
+            // replies bypass queues; a reply to a gone consumer is dropped
+            var consumer = replyConsumers.get(message.routingKey);
+            if (consumer == null)
+                return Routing.UNROUTED;
+            consumer.channel.deliver(consumer, message);
+            return Routing.ROUTED;
+        }
+        if (DEFAULT_EXCHANGE.equals(exchange.name)) {
+            var queue = queues.get(message.routingKey);
+            targets = queue != null ? List.of(queue) : List.of();
+        } else {
+            targets = new LinkedHashSet<>();
+            exchange.route(message.routingKey, targets);
+        }
+        boolean rejected = false;
+        for (BrokerQueue queue : targets) {
+            if (queue.rejects()) {
+                rejected = true;
+                continue;
+            }
+            queue.enqueue(message);
+            if (queue.messageTtl >= 0) {
+                var scheduled = queue;
+                expirer.schedule(() -> expire(scheduled), queue.messageTtl, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (targets.isEmpty())
+            return Routing.UNROUTED;
+        return rejected ? Routing.REJECTED : Routing.ROUTED;
+    }
+
+    /**
+     * Drop or dead-letter the expired messages at the head of the queue
+     */
+    private void expire(BrokerQueue queue) {
+        synchronized (lock) {
+            if (queues.get(queue.name) != queue)
+                return;
+            long now = System.currentTimeMillis();
+            BrokerMessage message;
+            while ((message = queue.messages.peekFirst()) != null && message.expiresAt != 0 && message.expiresAt <= now) {
+                queue.messages.pollFirst();
+                expired++;
+                if (queue.deadLetterExchange == null)
+                    continue;
+                var routingKey = queue.deadLetterRoutingKey != null ? queue.deadLetterRoutingKey : message.routingKey;
+                try {
+                    route(new BrokerMessage(queue.deadLetterExchange, routingKey, message.header, message.body, false));
+                } catch (BrokerException ex) {
+                    log.debug("[BROKER] Expired message of {} is dropped: {}", queue.name, ex.getReplyText());
+                }
+            }
+        }
+    }
+
+    void dispatch(Collection<BrokerQueue> affected) {
+        for (BrokerQueue queue : affected) {
+            if (queues.get(queue.name) == queue) {
+                queue.dispatch();
+            }
+        }
+    }
+
+    private void deleteQueue(BrokerQueue queue) {
+        queues.remove(queue.name);
+        for (BrokerExchange exchange : exchanges.values()) {
+            exchange.unbindAll(queue);
+        }
+        for (BrokerConsumer consumer : new ArrayList<>(queue.consumers)) {
+            consumer.channel.cancelledByBroker(consumer);
+        }
+        queue.consumers.clear();
+        queue.messages.clear();
+    }
+
+    private BrokerExchange exchangeForBinding(String name, BrokerConnection connection) {
+        if (DEFAULT_EXCHANGE.equals(name)) {
+            throw new BrokerException(AMQP.ACCESS_REFUSED, "ACCESS_REFUSED - operation not permitted on the default exchange");
+        }
+        var exchange = exchanges.get(name);
+        if (exchange == null) {
+            if (connection == null)
+                throw new RabbitException("Embedded broker has no exchange: " + name);
+            throw BrokerException.notFound("exchange", name);
+        }
+        return exchange;
+    }
+
+    private static void checkOwner(BrokerQueue queue, BrokerConnection connection) {
+        if (queue.exclusive && connection != null && queue.owner != connection) {
+            throw new BrokerException(AMQP.RESOURCE_LOCKED, "RESOURCE_LOCKED - cannot obtain exclusive access to locked queue '" + queue.name + "'");
+        }
+    }
+}
@@ -0,0 +1,786 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConnectionFactory;
+import lombok.Getter;
+import lombok.Setter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.*;
+import org.powerimo.rabbitmq.broker.EmbeddedBroker;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+class EmbeddedBrokerTests {
+
+    @Test
+    void testListenerAndPublisher() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("tasks", "topic");
+            broker.declareQueue("worker");
+            broker.bindQueue("worker", "tasks", "jobs.#");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var converter = new CachingRabbitPayloadConverter(objectMapper);
+            var handler = new StandardRabbitMessageHandler(converter);
+            int count = 500;
+            var latch = new CountDownLatch(count);
+            var sum = new AtomicInteger();
+            handler.addCommandHandler(MessageType.TASK, "job", Job.class, (payload, message) -> {
+                sum.addAndGet(payload.getValue());
+                latch.countDown();
+            });
+
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("worker");
+            parameters.setConcurrency(2);
+            parameters.setPrefetch(20);
+            var listener = new StandardRabbitQueueListener(parameters, handler);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            listener.start();
+            try {
+                Assertions.assertEquals(2, broker.getConsumerCount("worker"));
+                for (int i = 0; i < count; i++) {
+                    var payload = new Job();
+                    payload.setValue(1);
+                    publisher.sendTask("job", payload, "jobs.daily");
+                }
+                // unroutable: dropped by the exchange, still confirmed
+                publisher.sendTask("job", new Job(), "reports");
+
+                Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+                Assertions.assertEquals(count, sum.get());
+                waitFor(() -> broker.getPublishedCount() == count + 1);
+                waitFor(() -> broker.getAckedCount() == count);
+                Assertions.assertEquals(0, broker.getMessageCount("worker"));
+                Assertions.assertEquals(0, broker.getUnackedCount("worker"));
+            } finally {
+                publisher.close();
+                listener.stop();
+            }
+            waitFor(() -> broker.getConnectionCount() == 0);
+            Assertions.assertEquals(0, broker.getConsumerCount("worker"));
+        }
+    }
+
+    @Test
+    void testClientProtocol() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            var factory = new ConnectionFactory();
+            factory.setUri(broker.getUrl());
+            try (var connection = factory.newConnection()) {
+                var channel = connection.createChannel();
+                String queue = channel.queueDeclare("", false, true, true, null).getQueue();
+                channel.confirmSelect();
+                CompletableFuture<String> returned = new CompletableFuture<>();
+                channel.addReturnListener(r -> returned.complete(r.getRoutingKey()));
+                channel.basicPublish("", "missing", true, null, "lost".getBytes(StandardCharsets.UTF_8));
+                channel.basicPublish("", queue, null, "hello".getBytes(StandardCharsets.UTF_8));
+                Assertions.assertTrue(channel.waitForConfirms(5000));
+                Assertions.assertEquals("missing", returned.get(5, TimeUnit.SECONDS));
+
+                var response = channel.basicGet(queue, false);
+                Assertions.assertEquals("hello", new String(response.getBody(), StandardCharsets.UTF_8));
+                Assertions.assertFalse(response.getEnvelope().isRedeliver());
+                channel.basicReject(response.getEnvelope().getDeliveryTag(), true);
+                response = channel.basicGet(queue, true);
+                Assertions.assertTrue(response.getEnvelope().isRedeliver());
+                Assertions.assertNull(channel.basicGet(queue, true));
+                Assertions.assertEquals(1, broker.getRejectedCount());
+
+                // channel errors close the channel, not the connection
+                Assertions.assertThrows(IOException.class, () -> channel.basicConsume("missing", true, (tag, delivery) -> {}, tag -> {}));
+                Assertions.assertFalse(channel.isOpen());
+                Assertions.assertTrue(connection.isOpen());
+            }
+        }
+    }
+
+    @Test
+    void testContentTypeFallback() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareQueue("worker");
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            var publisher = new StandardRabbitMessagePublisher(parameters, new StandardRabbitPayloadConverter(objectMapper));
+            try {
+                // e.g. a received Smile message sent on: the JSON converter labels it as JSON
+                var message = event(7);
+                message.setContentType(Constants.CONTENT_TYPE_SMILE);
+                publisher.sendMessage(message, "", "worker");
+            } finally {
+                publisher.close();
+            }
+
+            var factory = new ConnectionFactory();
+            factory.setUri(broker.getUrl());
+            try (var connection = factory.newConnection()) {
+                var response = connection.createChannel().basicGet("worker", true);
+                Assertions.assertEquals(Constants.CONTENT_TYPE_JSON, response.getProps().getContentType());
+                Assertions.assertEquals(7, objectMapper.readValue(response.getBody(), Job.class).getValue());
+            }
+        }
+    }
+
+    @Test
+    void testRecovery() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        var converter = new CachingRabbitPayloadConverter(objectMapper);
+        var handler = new StandardRabbitMessageHandler(converter);
+        var received = new LinkedBlockingQueue<Integer>();
+        handler.addCommandHandler(MessageType.TASK, "job", Job.class, (payload, message) -> received.add(payload.getValue()));
+
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("tasks", "topic");
+            broker.declareQueue("worker");
+            broker.bindQueue("worker", "tasks", "#");
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("worker");
+            parameters.setRecoveryInterval(50);
+            parameters.setRecoveryMaxInterval(200);
+            var connectionManager = new RabbitConnectionManager(parameters);
+            var listener = new StandardRabbitQueueListener(parameters, handler);
+            listener.setConnectionManager(connectionManager);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            publisher.setConnectionManager(connectionManager);
+            try {
+                listener.start();
+                publisher.sendTask("job", job(1), "jobs");
+                Assertions.assertEquals(1, received.poll(5, TimeUnit.SECONDS));
+                Assertions.assertNotSame(connectionManager.getPublishConnection(), connectionManager.getConsumeConnection());
+                Assertions.assertEquals(2, broker.getConnectionCount());
+
+                // network failure: the consumer is resumed on the recovered connection
+                broker.dropConnections();
+                waitFor(() -> {
+                    try {
+                        publisher.sendTaskAsync("job", job(2), "jobs").get(1, TimeUnit.SECONDS);
+                        return true;
+                    } catch (Exception ex) {
+                        return false;
+                    }
+                });
+                // the first message is redelivered if its ack was lost with the connection
+                Integer value;
+                do {
+                    value = received.poll(5, TimeUnit.SECONDS);
+                } while (value != null && value == 1);
+                Assertions.assertEquals(2, value);
+                waitFor(() -> broker.getConsumerCount("worker") == 1 && broker.getConnectionCount() == 2);
+            } finally {
+                publisher.close();
+                listener.stop();
+                connectionManager.close();
+            }
+            waitFor(() -> broker.getConnectionCount() == 0);
+        }
+    }
+
+    @Test
+    void testDeduplication() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("tasks", "topic");
+            broker.declareQueue("worker");
+            broker.bindQueue("worker", "tasks", "#");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var converter = new CachingRabbitPayloadConverter(objectMapper);
+            var handler = new StandardRabbitMessageHandler(converter);
+            var received = new LinkedBlockingQueue<Integer>();
+            handler.addCommandHandler(MessageType.TASK, "job", Job.class, (payload, message) -> received.add(payload.getValue()));
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("worker");
+            parameters.setDeduplicationCapacity(100);
+            var listener = new StandardRabbitQueueListener(parameters, handler);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            listener.start();
+            try {
+                var sent = publisher.sendTask("job", job(1), "jobs");
+                // the same message published again, e.g. by a publisher retry
+                var duplicate = Message.builder()
+                        .messageId(sent.getMessageId())
+                        .name("job")
+                        .typeMessage(MessageType.TASK)
+                        .payload(job(2))
+                        .build();
+                publisher.sendMessage(duplicate, "tasks", "jobs");
+                publisher.sendTask("job", job(3), "jobs");
+
+                Assertions.assertEquals(1, received.poll(5, TimeUnit.SECONDS));
+                Assertions.assertEquals(3, received.poll(5, TimeUnit.SECONDS));
+                waitFor(() -> broker.getAckedCount() == 3);
+                Assertions.assertTrue(received.isEmpty());
+            } finally {
+                publisher.close();
+                listener.stop();
+            }
+        }
+    }
+
+    @Test
+    void testRetry() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("tasks", "topic");
+            broker.declareQueue("worker");
+            broker.bindQueue("worker", "tasks", "#");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var converter = new CachingRabbitPayloadConverter(objectMapper);
+            var handler = new StandardRabbitMessageHandler(converter);
+            var attempts = new LinkedBlockingQueue<String>();
+            // value 1 succeeds on the second attempt, value 2 never does
+            handler.addCommandHandler(MessageType.TASK, "job", Job.class, (payload, message) -> {
+                int attempt = RetryPolicy.getAttempt(message);
+                attempts.add(payload.getValue() + ":" + attempt);
+                if (payload.getValue() == 2 || attempt == 0)
+                    throw new IllegalStateException("failed");
+            });
+            handler.setExceptionHandler((message, ex) -> ExceptionResolution.RETRY);
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("worker");
+            parameters.setRetryMaxAttempts(3);
+            parameters.setRetryInitialDelay(50);
+            parameters.setRetryMaxDelay(80);
+            var listener = new StandardRabbitQueueListener(parameters, handler);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            listener.start();
+            try {
+                publisher.sendTask("job", job(1), "jobs");
+                waitFor(() -> attempts.contains("1:1"));
+                publisher.sendTask("job", job(2), "jobs");
+                waitFor(() -> broker.getMessageCount("worker.parking") == 1);
+                Assertions.assertTrue(attempts.containsAll(List.of("2:0", "2:1", "2:2")));
+                Assertions.assertEquals(5, attempts.size());
+                Assertions.assertEquals(3, broker.getExpiredCount());
+                Assertions.assertEquals(0, broker.getMessageCount("worker.retry.50"));
+                Assertions.assertEquals(0, broker.getMessageCount("worker.retry.80"));
+                waitFor(() -> broker.getAckedCount() == 5 && broker.getUnackedCount("worker") == 0);
+            } finally {
+                publisher.close();
+                listener.stop();
+            }
+        }
+    }
+
+    @Test
+    void testRetryQueueMissing() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("tasks", "topic");
+            broker.declareQueue("worker");
+            broker.bindQueue("worker", "tasks", "#");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var converter = new CachingRabbitPayloadConverter(objectMapper);
+            var handler = new StandardRabbitMessageHandler(converter);
+            var attempts = new LinkedBlockingQueue<Integer>();
+            // fails on the first delivery only
+            handler.addCommandHandler(MessageType.TASK, "job", Job.class, (payload, message) -> {
+                attempts.add(RetryPolicy.getAttempt(message));
+                if (attempts.size() == 1)
+                    throw new IllegalStateException("failed");
+            });
+            handler.setExceptionHandler((message, ex) -> ExceptionResolution.RETRY);
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("worker");
+            var listener = new StandardRabbitQueueListener(parameters, handler);
+            // retry queues are not declared: the republished message is returned
+            listener.setRetryPolicy(new RetryPolicy("worker", 3, 50, 80) {
+                @Override
+                public void declareTopology(Channel channel) {
+                }
+            });
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            listener.start();
+            try {
+                publisher.sendTask("job", job(1), "jobs");
+                waitFor(() -> attempts.size() == 2 && broker.getAckedCount() == 1);
+                // the delivery is requeued, not lost
+                Assertions.assertEquals(List.of(0, 0), List.copyOf(attempts));
+                Assertions.assertEquals(1, broker.getRejectedCount());
+                Assertions.assertEquals(0, broker.getMessageCount("worker"));
+            } finally {
+                publisher.close();
+                listener.stop();
+            }
+        }
+    }
+
+    @Test
+    void testProtocolVersion() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("events", "fanout");
+            broker.declareQueue("stream");
+            broker.bindQueue("stream", "events", "");
+
+            var converter = new StandardRabbitPayloadConverter(new ObjectMapper());
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setProtocolVersion(Constants.PROTOCOL_VERSION_1_2);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            try {
+                // the no-arg constructor leaves the version to the publisher, like the builder
+                var message = new Message();
+                message.setTypeMessage(MessageType.EVENT);
+                message.setName("configured");
+                publisher.sendMessage(message, "events", "");
+                var legacy = Message.builder().typeMessage(MessageType.EVENT).name("legacy")
+                        .protocolVersion(Constants.PROTOCOL_VERSION_1_0).build();
+                publisher.sendMessage(legacy, "events", "");
+                waitFor(() -> broker.getMessageCount("stream") == 2);
+
+                var factory = new ConnectionFactory();
+                factory.setUri(broker.getUrl());
+                try (var connection = factory.newConnection()) {
+                    var channel = connection.createChannel();
+                    var response = channel.basicGet("stream", true);
+                    Assertions.assertTrue(response.getProps().getHeaders().containsKey(Constants.HEADER_COMPACT_VERSION));
+                    var received = new DeliveryMessage(response.getEnvelope(), response.getProps(), response.getBody());
+                    Assertions.assertEquals(Constants.PROTOCOL_VERSION_1_2, received.getProtocolVersion());
+                    Assertions.assertEquals("configured", received.getName());
+
+                    response = channel.basicGet("stream", true);
+                    received = new DeliveryMessage(response.getEnvelope(), response.getProps(), response.getBody());
+                    Assertions.assertEquals(Constants.PROTOCOL_VERSION_1_0, received.getProtocolVersion());
+                    Assertions.assertEquals("legacy", received.getName());
+                }
+            } finally {
+                publisher.close();
+            }
+        }
+    }
+
+    @Test
+    void testBatchConfirms() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("events", "direct");
+            broker.declareQueue("ok");
+            broker.declareQueue("full", Map.of("x-max-length", 0, "x-overflow", "reject-publish"));
+            broker.bindQueue("ok", "events", "ok");
+            broker.bindQueue("full", "events", "full");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setPublisherChannelPoolSize(1);
+            var publisher = new StandardRabbitMessagePublisher(parameters, new CachingRabbitPayloadConverter(objectMapper));
+            try {
+                // a nack of an earlier asynchronous send on the same channel does not fail the batch
+                var rejected = publisher.sendMessageAsync(Message.builder().name("job").typeMessage(MessageType.EVENT).build(), "events", "full");
+                Assertions.assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+                var sent = publisher.sendBatch(List.of(event(1), event(2)), "events", m -> "ok");
+                Assertions.assertEquals(2, sent.size());
+                Assertions.assertEquals(2, broker.getMessageCount("ok"));
+
+                var batch = List.of(event(3), event(4), event(5));
+                var ex = Assertions.assertThrows(BatchPublishException.class,
+                        () -> publisher.sendBatch(batch, "events", m -> m == batch.get(1) ? "full" : "ok"));
+                Assertions.assertEquals(List.of(batch.get(1)), ex.getFailedMessages());
+                Assertions.assertTrue(ex.getMessage().contains(batch.get(1).getMessageId()));
+                Assertions.assertEquals(4, broker.getMessageCount("ok"));
+            } finally {
+                publisher.close();
+            }
+        }
+    }
+
+    @Test
+    void testBatchTimeout() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("events", "fanout");
+            broker.declareQueue("worker");
+            broker.bindQueue("worker", "events", "");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var converter = new CachingRabbitPayloadConverter(objectMapper);
+            var handler = new StandardRabbitMessageHandler(converter);
+            var batches = new LinkedBlockingQueue<List<Message>>();
+            var threads = new LinkedBlockingQueue<String>();
+            handler.addBatchCommandHandler(MessageType.EVENT, "job", messages -> {
+                threads.add(Thread.currentThread().getName());
+                batches.add(List.copyOf(messages));
+            });
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("worker");
+            parameters.setBatchSize(10);
+            parameters.setBatchTimeout(50);
+            var listener = new StandardRabbitQueueListener(parameters, handler);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            listener.start();
+            try {
+                publisher.sendEventBatch("job", List.of(job(1), job(2), job(3)));
+                var batch = batches.poll(5, TimeUnit.SECONDS);
+                Assertions.assertNotNull(batch);
+                Assertions.assertEquals(3, batch.size());
+                // timed-out batches of the dispatch thread mode are not handled on the shared timer thread
+                Assertions.assertEquals("rabbit-batch-flush", threads.poll());
+                waitFor(() -> broker.getAckedCount() == 3);
+            } finally {
+                publisher.close();
+                listener.stop();
+            }
+        }
+    }
+
+    @Test
+    void testOrderedBatches() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("events", "fanout");
+            broker.declareQueue("worker");
+            broker.bindQueue("worker", "events", "");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var converter = new CachingRabbitPayloadConverter(objectMapper);
+            var handler = new StandardRabbitMessageHandler(converter);
+            var values = new LinkedBlockingQueue<Integer>();
+            var running = new AtomicInteger();
+            var overlapped = new AtomicBoolean();
+            handler.addBatchCommandHandler(MessageType.EVENT, "job", messages -> {
+                if (running.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                sleep(5);
+                for (Message message : messages) {
+                    values.add(converter.extractPayload(message, Job.class).getValue());
+                }
+                running.decrementAndGet();
+            });
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("worker");
+            parameters.setOrderingKey(OrderingKey.NAME);
+            parameters.setOrderingLanes(4);
+            parameters.setBatchSize(3);
+            parameters.setBatchTimeout(20);
+            var listener = new StandardRabbitQueueListener(parameters, handler);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            listener.start();
+            try {
+                var jobs = new ArrayList<Job>();
+                for (int i = 0; i < 40; i++) {
+                    jobs.add(job(i));
+                }
+                publisher.sendEventBatch("job", jobs);
+                waitFor(() -> values.size() == 40 && broker.getAckedCount() >= 40);
+                // full and timed-out batches of the same key run one after another, in the order of delivery
+                Assertions.assertFalse(overlapped.get());
+                var expected = new ArrayList<Integer>();
+                for (int i = 0; i < 40; i++) {
+                    expected.add(i);
+                }
+                Assertions.assertEquals(expected, List.copyOf(values));
+            } finally {
+                publisher.close();
+                listener.stop();
+            }
+        }
+    }
+
+    @Test
+    void testRequestReply() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("tasks", "topic");
+            broker.declareQueue("worker");
+            broker.bindQueue("worker", "tasks", "jobs");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var converter = new CachingRabbitPayloadConverter(objectMapper);
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("worker");
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            var handler = new StandardRabbitMessageHandler(converter);
+            handler.addCommandHandler(MessageType.TASK, "double", Job.class, (payload, message) ->
+                    publisher.sendTaskResult("double", job(payload.getValue() * 2), 0, "OK", message));
+            var listener = new StandardRabbitQueueListener(parameters, handler);
+            listener.start();
+            try {
+                var replies = new ArrayList<CompletableFuture<Message>>();
+                for (int i = 1; i <= 10; i++) {
+                    replies.add(publisher.sendTaskAndAwait("double", job(i), "jobs", 5000));
+                }
+                for (int i = 1; i <= 10; i++) {
+                    var reply = replies.get(i - 1).get(5, TimeUnit.SECONDS);
+                    Assertions.assertEquals(MessageType.TASK_RESULT, reply.getTypeMessage());
+                    Assertions.assertEquals(0, reply.getResultCode());
+                    Assertions.assertEquals(i * 2, converter.extractPayload(reply, Job.class).getValue());
+                }
+
+                // nobody consumes the routing key: the request times out
+                var unanswered = publisher.sendTaskAndAwait("double", job(1), "nobody", 50);
+                var ex = Assertions.assertThrows(ExecutionException.class, () -> unanswered.get(5, TimeUnit.SECONDS));
+                Assertions.assertInstanceOf(TimeoutException.class, ex.getCause());
+            } finally {
+                publisher.close();
+                listener.stop();
+            }
+            waitFor(() -> broker.getConnectionCount() == 0);
+        }
+    }
+
+    @Test
+    void testBackpressure() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("events", "fanout");
+            broker.declareQueue("sink");
+            broker.bindQueue("sink", "events", "");
+
+            var converter = new StandardRabbitPayloadConverter(new ObjectMapper());
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setBackpressureTimeout(200);
+            parameters.setBlockedBufferSize(5);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            try {
+                publisher.sendEvent("before", "payload");
+                broker.block("low on memory");
+                waitFor(publisher::isBlocked);
+
+                // WAIT: the send fails after the backpressure timeout, and succeeds once the connection is unblocked
+                Assertions.assertThrowsExactly(RabbitBlockedException.class, () -> publisher.sendEvent("timeout", "payload"));
+                var unblocker = new Thread(() -> {
+                    sleep(50);
+                    broker.unblock();
+                });
+                unblocker.start();
+                parameters.setBackpressureTimeout(5000);
+                publisher.sendEvent("waited", "payload");
+                unblocker.join();
+                Assertions.assertFalse(publisher.isBlocked());
+                Assertions.assertTrue(publisher.getBlockedTime() >= 200);
+
+                parameters.setBlockedPolicy(BlockedPolicy.FAIL_FAST);
+                broker.block("low on disk");
+                waitFor(publisher::isBlocked);
+                Assertions.assertThrowsExactly(RabbitBlockedException.class, () -> publisher.sendEvent("failed", "payload"));
+
+                // BUFFER: sends return at once and are published in order when the connection is unblocked
+                parameters.setBlockedPolicy(BlockedPolicy.BUFFER);
+                var confirms = new ArrayList<CompletableFuture<Message>>();
+                for (int i = 0; i < 5; i++) {
+                    confirms.add(publisher.sendEventAsync("buffered", i));
+                }
+                Assertions.assertEquals(5, publisher.getBufferedCount());
+                Assertions.assertThrowsExactly(RabbitBlockedException.class, () -> publisher.sendEvent("overflow", "payload"));
+                waitFor(() -> broker.getMessageCount("sink") == 2);
+                broker.unblock();
+                for (var confirm : confirms) {
+                    confirm.get(5, TimeUnit.SECONDS);
+                }
+                waitFor(() -> publisher.getBufferedCount() == 0);
+                Assertions.assertEquals(7, broker.getMessageCount("sink"));
+            } finally {
+                publisher.close();
+            }
+        }
+    }
+
+    @Test
+    void testReactiveStreams() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("events", "fanout");
+            broker.declareQueue("stream");
+            broker.bindQueue("stream", "events", "");
+
+            var converter = new StandardRabbitPayloadConverter(new ObjectMapper());
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("stream");
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            var listener = new StandardRabbitQueueListener(parameters, null);
+            var source = listener.asPublisher();
+            try {
+                // sink: at most 4 messages wait for their confirms
+                var sink = new RabbitFlowSubscriber(publisher, "events", null, 4);
+                try (var upstream = new SubmissionPublisher<Message>()) {
+                    upstream.subscribe(sink);
+                    for (int i = 0; i < 20; i++) {
+                        upstream.submit(Message.builder().name("item").payload(i).typeMessage(MessageType.EVENT).build());
+                    }
+                }
+                sink.getCompletion().get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals(0, sink.getInFlightCount());
+                Assertions.assertEquals(20, broker.getMessageCount("stream"));
+
+                // source: the broker delivers what is requested, acks follow the subscriber
+                var received = new LinkedBlockingQueue<Message>();
+                var subscription = new CompletableFuture<Flow.Subscription>();
+                var completed = new CountDownLatch(1);
+                source.subscribe(new Flow.Subscriber<>() {
+                    @Override
+                    public void onSubscribe(Flow.Subscription s) {
+                        subscription.complete(s);
+                    }
+
+                    @Override
+                    public void onNext(Message item) {
+                        received.add(item);
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        completed.countDown();
+                    }
+                });
+                subscription.get().request(5);
+                waitFor(() -> received.size() == 5);
+                Assertions.assertEquals(5, broker.getUnackedCount("stream"));
+                Assertions.assertEquals(15, broker.getMessageCount("stream"));
+
+                var first = received.take();
+                Assertions.assertEquals(0, converter.extractPayload(first, Integer.class));
+                source.ack(first);
+                source.reject(received.take(), true);
+                // the window is kept until the next request: settled deliveries are replaced, but not emitted
+                waitFor(() -> broker.getUnackedCount("stream") == 5 && broker.getMessageCount("stream") == 14);
+                Assertions.assertEquals(3, received.size());
+                Assertions.assertThrowsExactly(RabbitException.class, () -> source.ack(Message.builder().build()));
+
+                subscription.get().request(Long.MAX_VALUE);
+                waitFor(() -> received.size() == 19);
+                for (Message message : received) {
+                    source.ack(message);
+                }
+                waitFor(() -> broker.getUnackedCount("stream") == 0 && broker.getMessageCount("stream") == 0);
+                Assertions.assertEquals(20, broker.getAckedCount());
+
+                source.close();
+                Assertions.assertTrue(completed.await(5, TimeUnit.SECONDS));
+                Assertions.assertEquals(0, source.getSubscriptionCount());
+            } finally {
+                source.close();
+                publisher.close();
+            }
+            waitFor(() -> broker.getConnectionCount() == 0);
+        }
+    }
+
+    @Test
+    void testReactivePipeline() throws Exception {
+        try (var broker = new EmbeddedBroker().start()) {
+            broker.declareExchange("events", "fanout");
+            broker.declareExchange("copies", "fanout");
+            broker.declareQueue("stream");
+            broker.declareQueue("sink");
+            broker.bindQueue("stream", "events", "");
+            broker.bindQueue("sink", "copies", "");
+
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.findAndRegisterModules();
+            var converter = new CachingRabbitPayloadConverter(objectMapper);
+            var parameters = new LocalParameters();
+            parameters.setUrl(broker.getUrl());
+            parameters.setQueue("stream");
+            var compressing = new LocalParameters();
+            compressing.setUrl(broker.getUrl());
+            compressing.setCompression("gzip");
+            compressing.setCompressionThreshold(0);
+            var producer = new StandardRabbitMessagePublisher(compressing, converter);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            var source = new RabbitFlowPublisher(parameters);
+            try {
+                producer.sendEvent("job", job(1));
+                var text = Message.builder().name("text").typeMessage(MessageType.EVENT).contentType("text/plain").build();
+                text.setPayload("plain text".getBytes(StandardCharsets.UTF_8));
+                producer.sendMessage(text, "events", "");
+
+                // received bodies are republished as is, with their content type and encoding
+                var sink = new RabbitFlowSubscriber(publisher, "copies", null, 4);
+                source.subscribe(sink);
+                waitFor(() -> broker.getMessageCount("sink") == 2);
+
+                var factory = new ConnectionFactory();
+                factory.setUri(broker.getUrl());
+                try (var connection = factory.newConnection()) {
+                    var channel = connection.createChannel();
+                    var response = channel.basicGet("sink", true);
+                    var copy = new DeliveryMessage(response.getEnvelope(), response.getProps(), response.getBody());
+                    Assertions.assertEquals("gzip", copy.getContentEncoding());
+                    Assertions.assertEquals(converter.getContentType(), copy.getContentType());
+                    Assertions.assertEquals(1, converter.extractPayload(copy, Job.class).getValue());
+
+                    response = channel.basicGet("sink", true);
+                    copy = new DeliveryMessage(response.getEnvelope(), response.getProps(), response.getBody());
+                    Assertions.assertEquals("text/plain", copy.getContentType());
+                    Assertions.assertEquals("plain text", copy.getPayloadAsString());
+                }
+            } finally {
+                source.close();
+                publisher.close();
+                producer.close();
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Message event(int value) {
+        var message = Message.builder()
+                .name("job")
+                .typeMessage(MessageType.EVENT)
+                .messageId("m" + value)
+                .build();
+        message.setPayload(job(value));
+        return message;
+    }
+
+    private static Job job(int value) {
+        var job = new Job();
+        job.setValue(value);
+        return job;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertTrue(condition.getAsBoolean());
+    }
+
+    @Getter
+    @Setter
+    public static class Job {
+        private int value;
+    }
+}
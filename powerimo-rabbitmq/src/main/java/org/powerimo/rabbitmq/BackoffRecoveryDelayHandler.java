@@ -0,0 +1,39 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.RecoveryDelayHandler;
+import lombok.Getter;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff between connection recovery attempts: the first attempt waits the initial interval, every
+ * next one twice as long up to the maximum. Up to a fifth of each delay is random, so that many clients losing
+ * the same broker do not reconnect in lockstep.
+ */
+@Getter
+public class BackoffRecoveryDelayHandler implements RecoveryDelayHandler {
+    private final long initialInterval;
+    private final long maxInterval;
+
+    /**
+     * @param initialInterval delay in milliseconds before the first attempt
+     * @param maxInterval maximum delay in milliseconds
+     */
+    public BackoffRecoveryDelayHandler(long initialInterval, long maxInterval) {
+        if (initialInterval <= 0 || maxInterval < initialInterval) {
+            throw new RabbitException("Invalid recovery intervals: initial " + initialInterval + ", max " + maxInterval);
+        }
+        this.initialInterval = initialInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    @Override
+    public long getDelay(int recoveryAttempts) {
+        long delay = maxInterval;
+        int shift = Math.max(0, recoveryAttempts - 1);
+        if (shift < Long.numberOfLeadingZeros(initialInterval) - 1) {
+            delay = Math.min(maxInterval, initialInterval << shift);
+        }
+        return delay - ThreadLocalRandom.current().nextLong(delay / 5 + 1);
+    }
+}
@@ -0,0 +1,12 @@
+package org.powerimo.rabbitmq;
+
+import java.util.List;
+
+public interface BatchCommandHandler {
+    /**
+     * Handle a batch of messages with the same type and name. Throw {@link BatchHandlingException}
+     * to report failures of particular messages: the rest of the batch is acknowledged.
+     * @param messages messages in the order of delivery
+     */
+    void handleMessages(List<Message> messages);
+}
@@ -0,0 +1,29 @@
+package org.powerimo.rabbitmq;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Partial failure of a batch. Only the messages added as failed are resolved by the exception handler,
+ * the other messages of the batch are treated as handled.
+ */
+public class BatchHandlingException extends RabbitException {
+    private final Map<Message, Throwable> failures = new IdentityHashMap<>();
+
+    public BatchHandlingException(String message) {
+        super(message);
+    }
+
+    public BatchHandlingException addFailure(Message message, Throwable cause) {
+        failures.put(message, cause);
+        return this;
+    }
+
+    /**
+     * @return failed messages (compared by identity) with their causes
+     */
+    public Map<Message, Throwable> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+}
@@ -0,0 +1,23 @@
+package org.powerimo.rabbitmq;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Some messages of a batch were rejected by the broker (nack). The other messages of the batch are confirmed.
+ */
+public class BatchPublishException extends RabbitException {
+    private final List<Message> failedMessages;
+
+    public BatchPublishException(String message, List<Message> failedMessages) {
+        super(message);
+        this.failedMessages = Collections.unmodifiableList(failedMessages);
+    }
+
+    /**
+     * @return messages of the batch which were not confirmed, in the order of the batch
+     */
+    public List<Message> getFailedMessages() {
+        return failedMessages;
+    }
+}
@@ -0,0 +1,22 @@
+package org.powerimo.rabbitmq;
+
+/**
+ * What a send does while the broker blocks the publishing connection (connection.blocked, e.g. on a memory or
+ * disk alarm)
+ */
+public enum BlockedPolicy {
+    /**
+     * Fail with {@link RabbitBlockedException} right away
+     */
+    FAIL_FAST,
+    /**
+     * Wait for the connection to be unblocked up to the backpressure timeout, then fail with
+     * {@link RabbitBlockedException}
+     */
+    WAIT,
+    /**
+     * Keep the message in a bounded buffer of the publisher and publish it when the connection is unblocked;
+     * fail with {@link RabbitBlockedException} if the buffer is full. Batches and requests wait as with {@link #WAIT}
+     */
+    BUFFER
+}
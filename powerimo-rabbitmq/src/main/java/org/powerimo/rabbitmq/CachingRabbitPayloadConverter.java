@@ -0,0 +1,138 @@
+package org.powerimo.rabbitmq;
+
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Payload converter which keeps prebuilt Jackson readers and writers per payload class.
+ * <p>
+ * Payloads are written directly to bytes: Jackson builds the array from its recycled buffers,
+ * without an intermediate String. Received bodies are parsed from the raw bytes; compressed bodies are parsed
+ * from the decompressing stream.
+ * When Blackbird is requested and jackson-module-blackbird is on the classpath, the module is registered
+ * on a copy of the object mapper, so the mapper passed in is not modified.
+ */
+@Slf4j
+public class CachingRabbitPayloadConverter implements RabbitPayloadConverter {
+    private static final String BLACKBIRD_MODULE_CLASS = "com.fasterxml.jackson.module.blackbird.BlackbirdModule";
+    @Getter
+    private final ObjectMapper objectMapper;
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    public CachingRabbitPayloadConverter(@NonNull ObjectMapper objectMapper) {
+        this(objectMapper, false);
+    }
+
+    /**
+     * @param objectMapper object mapper to build readers and writers with
+     * @param useBlackbird register the Blackbird module if it is available
+     */
+    public CachingRabbitPayloadConverter(@NonNull ObjectMapper objectMapper, boolean useBlackbird) {
+        this.objectMapper = useBlackbird ? withBlackbird(objectMapper) : objectMapper;
+    }
+
+    @Override
+    public <T> T extractPayload(Message message, Class<T> cls) {
+        return extractPayload(message, cls, reader(cls));
+    }
+
+    @Override
+    public <T> PayloadReader<T> readerFor(Class<T> cls) {
+        ObjectReader reader = reader(cls);
+        return message -> extractPayload(message, cls, reader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T extractPayload(Message message, Class<T> cls, ObjectReader reader) {
+        if (message == null)
+            throw new RabbitException("message is null");
+        if (message instanceof DeliveryMessage && ((DeliveryMessage) message).isPayloadCompressed()
+                && cls != String.class && cls != byte[].class && cls != Object.class) {
+            // parse straight from the decompressing stream
+            try (InputStream in = ((DeliveryMessage) message).openPayloadStream()) {
+                return reader.readValue(in);
+            } catch (RabbitException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new RabbitException("Exception on converting JSON to payload class", ex);
+            }
+        }
+        Object payload = message.getPayload();
+        if (payload == null)
+            return null;
+        if (cls.isInstance(payload))
+            return (T) payload;
+
+        try {
+            if (payload instanceof byte[]) {
+                if (cls == String.class)
+                    return (T) message.getPayloadAsString();
+                return reader.readValue((byte[]) payload);
+            }
+            if (payload instanceof String) {
+                return reader.readValue((String) payload);
+            }
+        } catch (Exception ex) {
+            throw new RabbitException("Exception on converting JSON to payload class", ex);
+        }
+
+        // object payload of a message delivered in-process (loopback)
+        try {
+            return objectMapper.convertValue(payload, cls);
+        } catch (IllegalArgumentException ex) {
+            throw new RabbitException("Couldn't extract payload as class " + cls.getName(), ex);
+        }
+    }
+
+    @Override
+    public byte[] serializePayload(Object obj) {
+        if (obj == null)
+            return null;
+        try {
+            return writer(obj.getClass()).writeValueAsBytes(obj);
+        } catch (Exception ex) {
+            throw new RabbitException("Exception on serialization payload", ex);
+        }
+    }
+
+    /**
+     * @param cls payload class
+     * @return cached reader for the class
+     */
+    public ObjectReader reader(Class<?> cls) {
+        return readers.computeIfAbsent(cls, objectMapper::readerFor);
+    }
+
+    /**
+     * @param cls payload class
+     * @return cached writer for the class
+     */
+    public ObjectWriter writer(Class<?> cls) {
+        return writers.computeIfAbsent(cls, objectMapper::writerFor);
+    }
+
+    private static ObjectMapper withBlackbird(ObjectMapper objectMapper) {
+        try {
+            Module module = (Module) Class.forName(BLACKBIRD_MODULE_CLASS).getDeclaredConstructor().newInstance();
+            ObjectMapper copy = objectMapper.copy();
+            copy.registerModule(module);
+            log.debug("Blackbird module is registered for payload conversion");
+            return copy;
+        } catch (ClassNotFoundException ex) {
+            log.warn("Blackbird module is requested but jackson-module-blackbird is not on the classpath");
+            return objectMapper;
+        } catch (Exception ex) {
+            throw new RabbitException("Couldn't register Blackbird module", ex);
+        }
+    }
+}
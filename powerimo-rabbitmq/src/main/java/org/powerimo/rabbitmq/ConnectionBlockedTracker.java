@@ -0,0 +1,125 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocked state of a connection. The broker blocks publishing connections on a resource alarm (memory or disk);
+ * writes to a blocked connection hang, so the publisher checks the state before publishing.
+ * A connection is unblocked when it is lost: a recovered connection starts unblocked.
+ */
+@Slf4j
+public class ConnectionBlockedTracker implements BlockedListener, ShutdownListener {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition unblocked = lock.newCondition();
+    private final Runnable onUnblocked;
+    private volatile boolean blocked;
+    @Getter
+    private volatile String reason;
+    private long blockedSince;
+    private long blockedNanos;
+    private RabbitMetrics metrics = RabbitMetrics.NOOP;
+
+    /**
+     * @param onUnblocked callback called on the connection thread when the connection is unblocked; may be null
+     */
+    public ConnectionBlockedTracker(Runnable onUnblocked) {
+        this.onUnblocked = onUnblocked;
+    }
+
+    public void setMetrics(RabbitMetrics metrics) {
+        this.metrics = metrics != null ? metrics : RabbitMetrics.NOOP;
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * @return total time the connection has been blocked, the current block included, ms
+     */
+    public long getBlockedTime() {
+        lock.lock();
+        try {
+            long nanos = blockedNanos;
+            if (blocked) {
+                nanos += System.nanoTime() - blockedSince;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the connection to be unblocked
+     * @param timeout timeout, ms
+     * @return true if the connection is not blocked; false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitUnblocked(long timeout) throws InterruptedException {
+        if (!blocked)
+            return true;
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (blocked) {
+                if (nanos <= 0)
+                    return false;
+                nanos = unblocked.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void handleBlocked(String reason) {
+        lock.lock();
+        try {
+            if (blocked)
+                return;
+            this.reason = reason;
+            blockedSince = System.nanoTime();
+            blocked = true;
+        } finally {
+            lock.unlock();
+        }
+        log.warn("[MQ] Publishing connection is blocked by the broker: {}", reason);
+    }
+
+    @Override
+    public void handleUnblocked() {
+        long nanos;
+        lock.lock();
+        try {
+            if (!blocked)
+                return;
+            nanos = System.nanoTime() - blockedSince;
+            blockedNanos += nanos;
+            blocked = false;
+            reason = null;
+            unblocked.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        metrics.recordBlocked(nanos);
+        log.info("[MQ] Publishing connection is unblocked after {} ms", TimeUnit.NANOSECONDS.toMillis(nanos));
+        if (onUnblocked != null) {
+            onUnblocked.run();
+        }
+    }
+
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+        handleUnblocked();
+    }
+}
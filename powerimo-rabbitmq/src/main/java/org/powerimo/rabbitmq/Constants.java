@@ -13,9 +13,45 @@ public class Constants {
     public static final String HEADER_PROTOCOL_VERSION = "protocol_version";
     public static final String HEADER_PAYLOAD_CLASS = "payload_class";
     public static final String HEADER_MESSAGE_TYPE = "message_type";
+    public static final String HEADER_LOOPBACK_ID = "loopback_id";
+    public static final String HEADER_SOURCE_MESSAGE_ID = "source_message_id";
+    public static final String HEADER_RETRY_ATTEMPT = "retry_attempt";
+    public static final String HEADER_RETRY_REASON = "retry_reason";
+    // headers of the protocol 1.2
+    public static final String HEADER_COMPACT_VERSION = "_v";
+    public static final String HEADER_COMPACT_TYPE = "_t";
+    public static final String HEADER_COMPACT_NAME = "_n";
+    public static final String HEADER_COMPACT_PAYLOAD_CLASS = "_c";
+    public static final String HEADER_COMPACT_RESULT_MESSAGE = "_r";
+    public static final String HEADER_COMPACT_RESULT_CODE = "_rc";
+    public static final String HEADER_COMPACT_SOURCE_MESSAGE_ID = "_s";
+    // Direct Reply-To pseudo-queue of RabbitMQ
+    public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
     public static final String PROTOCOL_VERSION_1_0 = "1.0";
     public static final String PROTOCOL_VERSION_1_1 = "1.1";
+    // compact headers: short keys, type codes, no null values
+    public static final String PROTOCOL_VERSION_1_2 = "1.2";
     public static final String PROTOCOL_VERSION_DEFAULT = PROTOCOL_VERSION_1_1;
     public static final int DEFAULT_MQ_PORT = 5672;
-    public static final String CONTENT_TYPE_JSON = "application\\json";
+    public static final int DEFAULT_PUBLISHER_CHANNEL_POOL_SIZE = 8;
+    public static final long DEFAULT_PUBLISHER_CHANNEL_POOL_TIMEOUT = 5000;
+    public static final long DEFAULT_PUBLISHER_CONFIRM_TIMEOUT = 30000;
+    public static final int DEFAULT_CONCURRENCY = 1;
+    public static final int DEFAULT_PREFETCH = 250;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_BATCH_TIMEOUT = 100;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 8192;
+    public static final int DEFAULT_LOOPBACK_QUEUE_SIZE = 1024;
+    public static final long DEFAULT_RECOVERY_INTERVAL = 500;
+    public static final long DEFAULT_RECOVERY_MAX_INTERVAL = 30000;
+    public static final long DEFAULT_DEDUPLICATION_WINDOW = 600000;
+    public static final long DEFAULT_RETRY_INITIAL_DELAY = 1000;
+    public static final long DEFAULT_RETRY_MAX_DELAY = 60000;
+    public static final long DEFAULT_BACKPRESSURE_TIMEOUT = 10000;
+    public static final int DEFAULT_BLOCKED_BUFFER_SIZE = 10000;
+    public static final String CONTENT_TYPE_JSON = "application/json";
+    // malformed JSON content type sent by previous versions of the library
+    public static final String CONTENT_TYPE_JSON_LEGACY = "application\\json";
+    public static final String CONTENT_TYPE_SMILE = "application/x-jackson-smile";
+    public static final String CONTENT_TYPE_CBOR = "application/cbor";
 }
@@ -0,0 +1,132 @@
+package org.powerimo.rabbitmq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of payload converters keyed by AMQP content type. Payloads are serialized by the converter of the requested
+ * content type and received messages are decoded by the converter of their own content type. Messages without
+ * a content type (or with an unknown one) are handled by the converter of the default content type.
+ */
+@Slf4j
+public class ContentTypeRabbitPayloadConverter implements RabbitPayloadConverter {
+    private static final String SMILE_FACTORY_CLASS = "com.fasterxml.jackson.dataformat.smile.SmileFactory";
+    private static final String CBOR_FACTORY_CLASS = "com.fasterxml.jackson.dataformat.cbor.CBORFactory";
+    private final Map<String, RabbitPayloadConverter> converters = new ConcurrentHashMap<>();
+    @Getter
+    private final String contentType;
+
+    /**
+     * @param defaultContentType content type used when none is requested
+     * @param defaultConverter converter of the default content type
+     */
+    public ContentTypeRabbitPayloadConverter(@NonNull String defaultContentType, @NonNull RabbitPayloadConverter defaultConverter) {
+        this.contentType = RabbitUtils.normalizeContentType(defaultContentType);
+        register(defaultContentType, defaultConverter);
+    }
+
+    public static ContentTypeRabbitPayloadConverter withJacksonCodecs(@NonNull ObjectMapper objectMapper) {
+        return withJacksonCodecs(objectMapper, false);
+    }
+
+    /**
+     * Create a registry with JSON (default), Smile and CBOR codecs built on the object mapper. The binary codecs are
+     * registered only when their optional dependencies, jackson-dataformat-smile and jackson-dataformat-cbor, are
+     * on the classpath
+     * @param objectMapper JSON object mapper; its modules and features are copied to the binary codecs
+     * @param useBlackbird register the Blackbird module if it is available
+     * @return converter
+     */
+    public static ContentTypeRabbitPayloadConverter withJacksonCodecs(@NonNull ObjectMapper objectMapper, boolean useBlackbird) {
+        var converter = new ContentTypeRabbitPayloadConverter(Constants.CONTENT_TYPE_JSON, new CachingRabbitPayloadConverter(objectMapper, useBlackbird));
+        registerJacksonCodec(converter, Constants.CONTENT_TYPE_SMILE, SMILE_FACTORY_CLASS, objectMapper, useBlackbird);
+        registerJacksonCodec(converter, Constants.CONTENT_TYPE_CBOR, CBOR_FACTORY_CLASS, objectMapper, useBlackbird);
+        return converter;
+    }
+
+    private static void registerJacksonCodec(ContentTypeRabbitPayloadConverter converter, String contentType, String factoryClass,
+                                             ObjectMapper objectMapper, boolean useBlackbird) {
+        try {
+            JsonFactory factory = (JsonFactory) Class.forName(factoryClass).getDeclaredConstructor().newInstance();
+            converter.register(contentType, new CachingRabbitPayloadConverter(objectMapper.copyWith(factory), useBlackbird));
+        } catch (ClassNotFoundException ex) {
+            log.debug("Codec of {} is not registered: {} is not on the classpath", contentType, factoryClass);
+        } catch (Exception ex) {
+            throw new RabbitException("Couldn't create the codec of " + contentType, ex);
+        }
+    }
+
+    /**
+     * Register (or replace) the converter of a content type
+     * @param contentType AMQP content type
+     * @param converter converter
+     * @return this
+     */
+    public ContentTypeRabbitPayloadConverter register(@NonNull String contentType, @NonNull RabbitPayloadConverter converter) {
+        converters.put(RabbitUtils.normalizeContentType(contentType), converter);
+        return this;
+    }
+
+    /**
+     * @param contentType AMQP content type
+     * @return true if a converter is registered for the content type
+     */
+    @Override
+    public boolean supports(String contentType) {
+        return contentType != null && converters.containsKey(RabbitUtils.normalizeContentType(contentType));
+    }
+
+    @Override
+    public <T> T extractPayload(Message message, Class<T> cls) {
+        if (message == null)
+            throw new RabbitException("message is null");
+        return converterOf(message.getContentType()).extractPayload(message, cls);
+    }
+
+    /**
+     * Bind the readers of all registered converters; converters registered later are not used by the reader
+     */
+    @Override
+    public <T> PayloadReader<T> readerFor(Class<T> cls) {
+        var readers = new HashMap<String, PayloadReader<T>>();
+        converters.forEach((type, converter) -> readers.put(type, converter.readerFor(cls)));
+        var defaultReader = readers.get(this.contentType);
+        return message -> {
+            if (message == null)
+                throw new RabbitException("message is null");
+            var type = message.getContentType();
+            var reader = type != null ? readers.get(RabbitUtils.normalizeContentType(type)) : null;
+            return (reader != null ? reader : defaultReader).read(message);
+        };
+    }
+
+    @Override
+    public byte[] serializePayload(Object obj) {
+        return serializePayload(obj, contentType);
+    }
+
+    @Override
+    public byte[] serializePayload(Object obj, String contentType) {
+        if (contentType != null && !supports(contentType)) {
+            throw new RabbitException("No payload converter for content type: " + contentType);
+        }
+        return converterOf(contentType).serializePayload(obj);
+    }
+
+    private RabbitPayloadConverter converterOf(String contentType) {
+        if (contentType != null) {
+            var converter = converters.get(RabbitUtils.normalizeContentType(contentType));
+            if (converter != null)
+                return converter;
+            log.debug("No payload converter for content type {}. Default converter is used", contentType);
+        }
+        return converters.get(this.contentType);
+    }
+}
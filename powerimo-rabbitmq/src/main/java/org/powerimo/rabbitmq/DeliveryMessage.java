@@ -0,0 +1,407 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Received message backed by the delivery. Only cheap references (ids, routing key, body) are copied on creation;
+ * header values, params, the message date and typed parameter values are decoded on first access and cached.
+ * A body compressed with a registered content encoding is decompressed on first access to the payload,
+ * or streamed through the decompressor by {@link #openPayloadStream()}.
+ * Compact headers of the protocol 1.2 are read when the message has the compact version header, the headers of
+ * the protocol 1.0 and 1.1 otherwise.
+ * Like {@link Message}, the instance is not thread-safe.
+ */
+public class DeliveryMessage extends Message {
+    private static final int NAME = 1;
+    private static final int TYPE = 1 << 1;
+    private static final int RESULT = 1 << 2;
+    private static final int RESULT_CODE = 1 << 3;
+    private static final int PROTOCOL_VERSION = 1 << 4;
+    private static final int PAYLOAD_CLASS = 1 << 5;
+    private static final int PARAMS = 1 << 6;
+    private static final int MESSAGE_DATE = 1 << 7;
+    private static final int SOURCE_MESSAGE_ID = 1 << 8;
+
+    @Getter
+    private final Envelope envelope;
+    @Getter
+    private final AMQP.BasicProperties properties;
+    private final Map<String, Object> headers;
+    private final byte[] body;
+    private final long receivedAt;
+    // headers of the protocol 1.2
+    private final boolean compact;
+    private int resolved;
+    private String payloadString;
+    private Map<String, Object> typedParams;
+    // set while the body is still compressed
+    private PayloadCompressor compressor;
+    private boolean payloadReplaced;
+
+    public DeliveryMessage(@NonNull Envelope envelope, @NonNull AMQP.BasicProperties properties, byte[] body) {
+        super(false);
+        if (properties.getHeaders() == null) {
+            throw new RabbitException("Message doesn't contains headers");
+        }
+        this.envelope = envelope;
+        this.properties = properties;
+        this.headers = properties.getHeaders();
+        this.compact = headers.containsKey(Constants.HEADER_COMPACT_VERSION);
+        this.body = body;
+        this.receivedAt = System.currentTimeMillis();
+        super.setPayload(body);
+        super.setRoutingKey(envelope.getRoutingKey());
+        super.setContentType(properties.getContentType());
+        super.setContentEncoding(properties.getContentEncoding());
+        this.compressor = body != null ? PayloadCompressors.get(properties.getContentEncoding()) : null;
+        super.setMessageId(properties.getMessageId());
+        super.setProcessId(properties.getCorrelationId());
+        super.setSenderId(properties.getAppId());
+        super.setReplyTo(properties.getReplyTo());
+    }
+
+    /**
+     * @return body of the delivery as received, compressed if the message is compressed
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public String getName() {
+        if ((resolved & NAME) == 0) {
+            super.setName(readHeader(Constants.HEADER_NAME, Constants.HEADER_COMPACT_NAME));
+            resolved |= NAME;
+        }
+        return super.getName();
+    }
+
+    @Override
+    public void setName(String name) {
+        resolved |= NAME;
+        super.setName(name);
+    }
+
+    @Override
+    public MessageType getTypeMessage() {
+        resolveType();
+        return super.getTypeMessage();
+    }
+
+    @Override
+    public void setTypeMessage(MessageType typeMessage) {
+        resolveType();
+        super.setTypeMessage(typeMessage);
+    }
+
+    @Override
+    public String getTypeMessageOriginalString() {
+        resolveType();
+        return super.getTypeMessageOriginalString();
+    }
+
+    @Override
+    public void setTypeMessageOriginalString(String typeMessageOriginalString) {
+        resolveType();
+        super.setTypeMessageOriginalString(typeMessageOriginalString);
+    }
+
+    @Override
+    public String getSourceMessageId() {
+        if ((resolved & SOURCE_MESSAGE_ID) == 0) {
+            super.setSourceMessageId(readHeader(Constants.HEADER_SOURCE_MESSAGE_ID, Constants.HEADER_COMPACT_SOURCE_MESSAGE_ID));
+            resolved |= SOURCE_MESSAGE_ID;
+        }
+        return super.getSourceMessageId();
+    }
+
+    @Override
+    public void setSourceMessageId(String sourceMessageId) {
+        resolved |= SOURCE_MESSAGE_ID;
+        super.setSourceMessageId(sourceMessageId);
+    }
+
+    @Override
+    public String getResult() {
+        if ((resolved & RESULT) == 0) {
+            super.setResult(readHeader(Constants.HEADER_RESULT_MESSAGE, Constants.HEADER_COMPACT_RESULT_MESSAGE));
+            resolved |= RESULT;
+        }
+        return super.getResult();
+    }
+
+    @Override
+    public void setResult(String result) {
+        resolved |= RESULT;
+        super.setResult(result);
+    }
+
+    @Override
+    public Integer getResultCode() {
+        if ((resolved & RESULT_CODE) == 0) {
+            Object value = headers.get(compact ? Constants.HEADER_COMPACT_RESULT_CODE : Constants.HEADER_RESULT_CODE);
+            if (value instanceof Number) {
+                super.setResultCode(((Number) value).intValue());
+            } else if (value != null) {
+                super.setResultCode(RabbitUtils.stringToIntegerDef(value.toString(), null));
+            }
+            resolved |= RESULT_CODE;
+        }
+        return super.getResultCode();
+    }
+
+    @Override
+    public void setResultCode(Integer resultCode) {
+        resolved |= RESULT_CODE;
+        super.setResultCode(resultCode);
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        if ((resolved & PROTOCOL_VERSION) == 0) {
+            String value = readHeader(Constants.HEADER_PROTOCOL_VERSION, Constants.HEADER_COMPACT_VERSION);
+            super.setProtocolVersion(value != null ? value : Constants.PROTOCOL_VERSION_DEFAULT);
+            resolved |= PROTOCOL_VERSION;
+        }
+        return super.getProtocolVersion();
+    }
+
+    @Override
+    public void setProtocolVersion(String protocolVersion) {
+        resolved |= PROTOCOL_VERSION;
+        super.setProtocolVersion(protocolVersion);
+    }
+
+    @Override
+    public String getPayloadClass() {
+        if ((resolved & PAYLOAD_CLASS) == 0) {
+            super.setPayloadClass(readHeader(Constants.HEADER_PAYLOAD_CLASS, Constants.HEADER_COMPACT_PAYLOAD_CLASS));
+            resolved |= PAYLOAD_CLASS;
+        }
+        return super.getPayloadClass();
+    }
+
+    @Override
+    public void setPayloadClass(String payloadClass) {
+        resolved |= PAYLOAD_CLASS;
+        super.setPayloadClass(payloadClass);
+    }
+
+    @Override
+    public Object getPayload() {
+        if (compressor != null) {
+            decompressPayload();
+        }
+        return super.getPayload();
+    }
+
+    @Override
+    public void setPayload(Object payload) {
+        resolved |= PAYLOAD_CLASS;
+        payloadString = null;
+        compressor = null;
+        payloadReplaced = true;
+        super.setPayload(payload);
+    }
+
+    /**
+     * @return true if the payload is still the body of the delivery, decompressed or not, so the message can be
+     * republished with {@link #getBody()} and its content encoding as received
+     */
+    public boolean isBodyPayload() {
+        return body != null && !payloadReplaced;
+    }
+
+    /**
+     * @return true if the body is compressed and is not decompressed yet
+     */
+    public boolean isPayloadCompressed() {
+        return compressor != null;
+    }
+
+    /**
+     * Open a stream over the uncompressed body. A compressed body is decompressed while the stream is read,
+     * so the uncompressed body is never held in memory as a whole
+     * @return stream or null if the payload is not a raw body
+     */
+    public InputStream openPayloadStream() {
+        if (compressor != null) {
+            try {
+                return compressor.decompress(new ByteArrayInputStream((byte[]) super.getPayload()));
+            } catch (IOException ex) {
+                throw new RabbitException("Couldn't decompress the message body", ex);
+            }
+        }
+        Object value = super.getPayload();
+        return value instanceof byte[] ? new ByteArrayInputStream((byte[]) value) : null;
+    }
+
+    @Override
+    public String getPayloadAsString() {
+        if (payloadString == null && getPayload() instanceof byte[]) {
+            payloadString = new String((byte[]) getPayload(), StandardCharsets.UTF_8);
+        }
+        return payloadString != null ? payloadString : super.getPayloadAsString();
+    }
+
+    @Override
+    public OffsetDateTime getMessageDate() {
+        if ((resolved & MESSAGE_DATE) == 0) {
+            Instant instant = properties.getTimestamp() != null ? properties.getTimestamp().toInstant() : Instant.ofEpochMilli(receivedAt);
+            super.setMessageDate(OffsetDateTime.ofInstant(instant, ZoneOffset.UTC));
+            resolved |= MESSAGE_DATE;
+        }
+        return super.getMessageDate();
+    }
+
+    @Override
+    public void setMessageDate(OffsetDateTime messageDate) {
+        resolved |= MESSAGE_DATE;
+        super.setMessageDate(messageDate);
+    }
+
+    /**
+     * Params are copied from the headers on first access to the whole map
+     */
+    @Override
+    public HashMap<String, Object> getParams() {
+        if ((resolved & PARAMS) == 0) {
+            super.setParams(new HashMap<>(headers));
+            resolved |= PARAMS;
+        }
+        return super.getParams();
+    }
+
+    @Override
+    public void setParams(HashMap<String, Object> params) {
+        resolved |= PARAMS;
+        typedParams = null;
+        super.setParams(params);
+    }
+
+    /**
+     * Read a param directly from the headers while the params map is not materialized
+     */
+    @Override
+    public Object getParam(String name) {
+        if ((resolved & PARAMS) == 0)
+            return headers.get(name);
+        return super.getParam(name);
+    }
+
+    @Override
+    public Message addParam(String name, Object value) {
+        if (typedParams != null) {
+            typedParams.remove(name);
+        }
+        return super.addParam(name, value);
+    }
+
+    @Override
+    public Integer getParamAsInteger(String name) {
+        Object cached = getTypedParam(name);
+        if (cached instanceof Integer)
+            return (Integer) cached;
+        return putTypedParam(name, super.getParamAsInteger(name));
+    }
+
+    @Override
+    public UUID getParamAsUUID(String name) {
+        Object cached = getTypedParam(name);
+        if (cached instanceof UUID)
+            return (UUID) cached;
+        return putTypedParam(name, super.getParamAsUUID(name));
+    }
+
+    @Override
+    public LocalDate getParamAsLocalDate(String name) {
+        Object cached = getTypedParam(name);
+        if (cached instanceof LocalDate)
+            return (LocalDate) cached;
+        return putTypedParam(name, super.getParamAsLocalDate(name));
+    }
+
+    /**
+     * Built from the fields read on creation, so logging a message neither decodes the headers nor decompresses the body
+     */
+    @Override
+    public String toString() {
+        return "DeliveryMessage(deliveryTag=" + envelope.getDeliveryTag()
+                + ", exchange=" + envelope.getExchange()
+                + ", routingKey=" + envelope.getRoutingKey()
+                + ", redeliver=" + envelope.isRedeliver()
+                + ", messageId=" + super.getMessageId()
+                + ", contentType=" + super.getContentType()
+                + ", contentEncoding=" + super.getContentEncoding()
+                + ", bodyLength=" + (body != null ? body.length : 0) + ")";
+    }
+
+    private Object getTypedParam(String name) {
+        return typedParams == null ? null : typedParams.get(name);
+    }
+
+    private <T> T putTypedParam(String name, T value) {
+        if (value != null) {
+            if (typedParams == null) {
+                typedParams = new HashMap<>();
+            }
+            typedParams.put(name, value);
+        }
+        return value;
+    }
+
+    private void resolveType() {
+        if ((resolved & TYPE) == 0) {
+            resolved |= TYPE;
+            if (compact) {
+                Object code = headers.get(Constants.HEADER_COMPACT_TYPE);
+                MessageType type = code instanceof Number ? MessageType.fromCode(((Number) code).intValue()) : MessageType.UNKNOWN;
+                super.setTypeMessageOriginalString(code != null ? type.name() : null);
+                super.setTypeMessage(type);
+                return;
+            }
+            Object header = headers.get(Constants.HEADER_MESSAGE_TYPE);
+            String value = header != null ? header.toString() : null;
+            super.setTypeMessageOriginalString(value);
+            super.setTypeMessage(RabbitUtils.getTypeMessage(value));
+        }
+    }
+
+    private void decompressPayload() {
+        byte[] data;
+        try {
+            data = compressor.decompress((byte[]) super.getPayload());
+        } catch (IOException ex) {
+            throw new RabbitException("Couldn't decompress the message body", ex);
+        }
+        compressor = null;
+        // keep the payload class read from the headers
+        String payloadClass = super.getPayloadClass();
+        super.setPayload(data);
+        super.setPayloadClass(payloadClass);
+    }
+
+    /**
+     * @param name header of the protocol 1.0 and 1.1
+     * @param compactName header of the protocol 1.2
+     */
+    private String readHeader(String name, String compactName) {
+        Object value = headers.get(compact ? compactName : name);
+        return value != null ? value.toString() : null;
+    }
+}
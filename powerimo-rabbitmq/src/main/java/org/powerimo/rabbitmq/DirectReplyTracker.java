@@ -0,0 +1,169 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownSignalException;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Requests waiting for their replies over RabbitMQ Direct Reply-To. The tracker consumes
+ * {@code amq.rabbitmq.reply-to} on its channel, and requests must be published on the same channel, so the
+ * broker routes the replies straight to the consumer without a reply queue.
+ * <p>
+ * Futures are registered under the message id of the request and completed with the first reply carrying the id
+ * as its source message id. A future not completed within its timeout fails with {@link TimeoutException};
+ * all pending futures fail when the channel is closed. Futures are completed on the connection thread or on
+ * the timer thread, so dependent actions should not block.
+ */
+@Slf4j
+public class DirectReplyTracker extends DefaultConsumer {
+    private final Map<String, PendingReply> pending = new ConcurrentHashMap<>();
+    private final HashedWheelTimer timer;
+
+    /**
+     * Start consuming replies on the channel
+     * @param channel channel dedicated to the requests
+     * @param timer timer of the request timeouts
+     * @throws IOException if the consumer is not registered
+     */
+    public DirectReplyTracker(@NonNull Channel channel, @NonNull HashedWheelTimer timer) throws IOException {
+        super(channel);
+        this.timer = timer;
+        channel.basicConsume(Constants.DIRECT_REPLY_TO, true, this);
+    }
+
+    /**
+     * Publish a request and register the future to complete with its reply.
+     * The reply-to address of the properties must be {@code amq.rabbitmq.reply-to}
+     * @param exchangeName exchange
+     * @param routingKey routing key
+     * @param properties properties of the request
+     * @param body body of the request
+     * @param timeout reply timeout, ms
+     * @param future future to complete with the reply
+     * @throws IOException if the request is not published
+     */
+    public void publish(String exchangeName, String routingKey, AMQP.BasicProperties properties, byte[] body,
+                        long timeout, @NonNull CompletableFuture<Message> future) throws IOException {
+        String messageId = properties.getMessageId();
+        var item = new PendingReply(future);
+        item.timeout = timer.schedule(() -> expire(messageId, item, timeout), timeout, TimeUnit.MILLISECONDS);
+        pending.put(messageId, item);
+        if (item.timeout.isExpired()) {
+            pending.remove(messageId, item);
+            return;
+        }
+        try {
+            // requests share the channel; serialize them so that publishing never interleaves
+            synchronized (this) {
+                getChannel().basicPublish(exchangeName, routingKey, properties, body);
+            }
+        } catch (IOException | RuntimeException ex) {
+            pending.remove(messageId, item);
+            item.timeout.cancel();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return number of requests waiting for replies
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return true if the channel is open or will be recovered with its connection
+     */
+    public boolean isUsable() {
+        var channel = getChannel();
+        if (channel.isOpen())
+            return true;
+        // a channel closed with its connection comes back with the recovered connection
+        var reason = channel.getCloseReason();
+        return channel instanceof Recoverable && reason != null && reason.isHardError() && !reason.isInitiatedByApplication();
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        Message reply;
+        try {
+            reply = RabbitUtils.extractMessage(consumerTag, envelope, properties, body);
+        } catch (RabbitException ex) {
+            log.warn("[MQ->] reply is dropped: {}", ex.getMessage());
+            return;
+        }
+        var sourceMessageId = reply.getSourceMessageId();
+        var item = sourceMessageId != null ? pending.remove(sourceMessageId) : null;
+        if (item == null) {
+            log.debug("[MQ->] reply to an unknown or expired request is dropped: sourceMessageId={}", sourceMessageId);
+            return;
+        }
+        item.timeout.cancel();
+        log.debug("[MQ->] reply is received: {}", reply);
+        item.future.complete(reply);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        // replies are addressed to the consumer of the closed channel; a recovered consumer will not receive them
+        failAll(new RabbitException("The channel was closed before the reply was received", sig));
+    }
+
+    /**
+     * Fail all requests waiting for replies
+     * @param cause the exception to complete futures with
+     */
+    public void failAll(Throwable cause) {
+        for (String messageId : pending.keySet()) {
+            var item = pending.remove(messageId);
+            if (item != null) {
+                item.timeout.cancel();
+                item.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Fail the pending requests and close the channel
+     */
+    public void close() {
+        failAll(new RabbitException("Reply tracker is closed"));
+        var channel = getChannel();
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            } else {
+                // a channel of a recovering connection would be reopened by the recovery: drop it for good
+                channel.abort();
+            }
+        } catch (Exception ex) {
+            log.debug("[MQ] exception on closing reply channel", ex);
+        }
+    }
+
+    private void expire(String messageId, PendingReply item, long timeout) {
+        pending.remove(messageId, item);
+        item.future.completeExceptionally(new TimeoutException("No reply within " + timeout + " ms: messageId=" + messageId));
+    }
+
+    private static class PendingReply {
+        private final CompletableFuture<Message> future;
+        private HashedWheelTimer.Timeout timeout;
+
+        private PendingReply(CompletableFuture<Message> future) {
+            this.future = future;
+        }
+    }
+}
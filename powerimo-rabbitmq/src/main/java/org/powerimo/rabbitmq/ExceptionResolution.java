@@ -3,5 +3,7 @@ package org.powerimo.rabbitmq;
 public enum ExceptionResolution {
     DEFAULT,
     REQUEUE,
-    DLQ
+    DLQ,
+    // republish to a delayed retry queue, see RetryPolicy
+    RETRY
 }
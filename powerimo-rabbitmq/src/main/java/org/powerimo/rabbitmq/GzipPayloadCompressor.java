@@ -0,0 +1,30 @@
+package org.powerimo.rabbitmq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class GzipPayloadCompressor implements PayloadCompressor {
+    public static final String ENCODING = "gzip";
+
+    @Override
+    public String getEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) throws IOException {
+        var out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in);
+    }
+}
@@ -0,0 +1,16 @@
+package org.powerimo.rabbitmq;
+
+public enum HandlerExecutionMode {
+    /**
+     * Handlers are called on the dispatch thread of the consumer
+     */
+    DISPATCH_THREAD,
+    /**
+     * Every delivery is handled on a new virtual thread (requires Java 21 or newer)
+     */
+    VIRTUAL_THREAD,
+    /**
+     * Deliveries are handled by the executor set to the listener
+     */
+    EXECUTOR
+}
@@ -0,0 +1,178 @@
+package org.powerimo.rabbitmq;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for many short timeouts which are mostly cancelled before they expire, e.g. the deadlines of pending
+ * requests. Scheduling and cancelling are O(1) and never block: new timeouts are queued, and a single worker thread
+ * moves them to the bucket of their deadline tick, then runs the expired timeouts of the current bucket once per
+ * tick. Cancelled timeouts are dropped when their bucket is visited.
+ * <p>
+ * Timeouts expire up to one tick late. Tasks run on the worker thread and must be short.
+ */
+@Slf4j
+public class HashedWheelTimer implements AutoCloseable {
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public HashedWheelTimer(String name) {
+        this(name, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param name name of the worker thread
+     * @param tickDuration duration of a tick
+     * @param unit unit of the tick duration
+     * @param wheelSize number of buckets; rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0)
+            throw new RabbitException("Tick duration must be positive: " + tickDuration);
+        if (wheelSize <= 0 || wheelSize > (1 << 30))
+            throw new RabbitException("Wheel size is out of range: " + wheelSize);
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule a task
+     * @param task task to run on expiration
+     * @param delay delay
+     * @param unit unit of the delay
+     * @return timeout handle which cancels the task
+     * @throws RabbitException if the timer is closed
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!running)
+            throw new RabbitException("Timer is closed");
+        var timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the worker thread. Pending timeouts are dropped without running their tasks
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long sleep;
+            while ((sleep = tickNanos * (tick + 1) - (System.nanoTime() - startTime)) > 0) {
+                LockSupport.parkNanos(this, sleep);
+                if (!running)
+                    return;
+            }
+            transferAdded(tick);
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferAdded(long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled())
+                continue;
+            long deadlineTick = timeout.deadline / tickNanos;
+            timeout.rounds = (deadlineTick - tick) / wheel.length;
+            // an overdue timeout goes to the current bucket and expires right away
+            wheel[(int) (Math.max(deadlineTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            var timeout = bucket.get(i);
+            if (timeout.isCancelled())
+                continue;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            timeout.expire();
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // remaining wheel revolutions; used by the worker thread only
+        private long rounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task
+         * @return true if the task is cancelled; false if it has already expired or been cancelled
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED))
+                return;
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                log.warn("Timer task failed", ex);
+            }
+        }
+    }
+}
@@ -2,6 +2,9 @@ package org.powerimo.rabbitmq;
 
 import lombok.Data;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @Data
 public class LocalParameters implements RabbitParameters {
     private boolean isEnabled = true;
@@ -16,6 +19,33 @@ public class LocalParameters implements RabbitParameters {
     private String queue;
     private String senderId = "default-app-id";
     private boolean showParametersOnStartup = true;
+    private int publisherChannelPoolSize = Constants.DEFAULT_PUBLISHER_CHANNEL_POOL_SIZE;
+    private long publisherChannelPoolTimeout = Constants.DEFAULT_PUBLISHER_CHANNEL_POOL_TIMEOUT;
+    private long publisherConfirmTimeout = Constants.DEFAULT_PUBLISHER_CONFIRM_TIMEOUT;
+    private int concurrency = Constants.DEFAULT_CONCURRENCY;
+    private int prefetch = Constants.DEFAULT_PREFETCH;
+    private HandlerExecutionMode handlerExecutionMode = HandlerExecutionMode.DISPATCH_THREAD;
+    private OrderingKey orderingKey = OrderingKey.NONE;
+    private int orderingLanes;
+    private int batchSize = Constants.DEFAULT_BATCH_SIZE;
+    private long batchTimeout = Constants.DEFAULT_BATCH_TIMEOUT;
+    private Map<String, String> exchangeContentTypes = new HashMap<>();
+    private Map<String, String> messageContentTypes = new HashMap<>();
+    private String compression;
+    private int compressionThreshold = Constants.DEFAULT_COMPRESSION_THRESHOLD;
+    private long recoveryInterval = Constants.DEFAULT_RECOVERY_INTERVAL;
+    private long recoveryMaxInterval = Constants.DEFAULT_RECOVERY_MAX_INTERVAL;
+    private int deduplicationCapacity;
+    private long deduplicationWindow = Constants.DEFAULT_DEDUPLICATION_WINDOW;
+    private String deduplicationFile;
+    private int retryMaxAttempts;
+    private long retryInitialDelay = Constants.DEFAULT_RETRY_INITIAL_DELAY;
+    private long retryMaxDelay = Constants.DEFAULT_RETRY_MAX_DELAY;
+    private BlockedPolicy blockedPolicy = BlockedPolicy.WAIT;
+    private long backpressureTimeout = Constants.DEFAULT_BACKPRESSURE_TIMEOUT;
+    private int blockedBufferSize = Constants.DEFAULT_BLOCKED_BUFFER_SIZE;
+    private int publishRateLimit;
+    private String protocolVersion = Constants.PROTOCOL_VERSION_DEFAULT;
 
     @Override
     public boolean getEnabled() {
@@ -76,4 +106,139 @@ public class LocalParameters implements RabbitParameters {
     public boolean getShowParametersOnStartup() {
         return showParametersOnStartup;
     }
+
+    @Override
+    public int getPublisherChannelPoolSize() {
+        return publisherChannelPoolSize;
+    }
+
+    @Override
+    public long getPublisherChannelPoolTimeout() {
+        return publisherChannelPoolTimeout;
+    }
+
+    @Override
+    public long getPublisherConfirmTimeout() {
+        return publisherConfirmTimeout;
+    }
+
+    @Override
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    @Override
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    @Override
+    public HandlerExecutionMode getHandlerExecutionMode() {
+        return handlerExecutionMode;
+    }
+
+    @Override
+    public OrderingKey getOrderingKey() {
+        return orderingKey;
+    }
+
+    @Override
+    public int getOrderingLanes() {
+        return orderingLanes;
+    }
+
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public long getBatchTimeout() {
+        return batchTimeout;
+    }
+
+    @Override
+    public Map<String, String> getExchangeContentTypes() {
+        return exchangeContentTypes;
+    }
+
+    @Override
+    public Map<String, String> getMessageContentTypes() {
+        return messageContentTypes;
+    }
+
+    @Override
+    public String getCompression() {
+        return compression;
+    }
+
+    @Override
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @Override
+    public long getRecoveryInterval() {
+        return recoveryInterval;
+    }
+
+    @Override
+    public long getRecoveryMaxInterval() {
+        return recoveryMaxInterval;
+    }
+
+    @Override
+    public int getDeduplicationCapacity() {
+        return deduplicationCapacity;
+    }
+
+    @Override
+    public long getDeduplicationWindow() {
+        return deduplicationWindow;
+    }
+
+    @Override
+    public String getDeduplicationFile() {
+        return deduplicationFile;
+    }
+
+    @Override
+    public int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    @Override
+    public long getRetryInitialDelay() {
+        return retryInitialDelay;
+    }
+
+    @Override
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    @Override
+    public BlockedPolicy getBlockedPolicy() {
+        return blockedPolicy;
+    }
+
+    @Override
+    public long getBackpressureTimeout() {
+        return backpressureTimeout;
+    }
+
+    @Override
+    public int getBlockedBufferSize() {
+        return blockedBufferSize;
+    }
+
+    @Override
+    public int getPublishRateLimit() {
+        return publishRateLimit;
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return protocolVersion;
+    }
 }
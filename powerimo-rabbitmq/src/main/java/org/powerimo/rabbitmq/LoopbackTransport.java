@@ -0,0 +1,157 @@
+package org.powerimo.rabbitmq;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process delivery of published messages to a local {@link RabbitMessageHandler}.
+ * <p>
+ * The publisher offers events published to the events exchange; an event having a local handler is copied (the payload
+ * object is shared, not serialized) and put into a bounded queue, which is drained by a single worker thread in the
+ * order of publishing. Only events without a routing key and without a reply address are delivered locally: the local
+ * queue receives such events through its events exchange binding, while a task, a task result or a message with an
+ * explicit routing key may be addressed to another service and is always published to the broker only. Handler exceptions are passed to {@link RabbitMessageHandler#handleException}: there is no
+ * redelivery.
+ * <p>
+ * When {@link #isForwardToBroker()} is true, locally delivered messages are still published to the broker for
+ * external subscribers, marked with the {@link Constants#HEADER_LOOPBACK_ID} header set to {@link #getMarker()}: a
+ * listener of the local queue acknowledges and skips them, so they are handled neither twice in this JVM nor once more
+ * by another instance of the service consuming the same queue.
+ * Without forwarding, the transport can be used as a broker-free transport in integration tests.
+ */
+@Slf4j
+public class LoopbackTransport implements AutoCloseable {
+    @Getter
+    private final String id = UUID.randomUUID().toString();
+    /**
+     * Name of the queue the local handler consumes; set by the listener on start
+     */
+    @Getter
+    @Setter
+    private volatile String localQueue;
+    private final RabbitMessageHandler handler;
+    private final BlockingQueue<Message> queue;
+    private final Thread worker;
+    @Getter
+    @Setter
+    private volatile boolean forwardToBroker = true;
+    @Getter
+    @Setter
+    private long offerTimeout = Constants.DEFAULT_PUBLISHER_CHANNEL_POOL_TIMEOUT;
+    private volatile boolean running = true;
+
+    public LoopbackTransport(@NonNull RabbitMessageHandler handler) {
+        this(handler, Constants.DEFAULT_LOOPBACK_QUEUE_SIZE);
+    }
+
+    /**
+     * @param handler local handler
+     * @param queueSize capacity of the queue of messages waiting for the handler
+     */
+    public LoopbackTransport(@NonNull RabbitMessageHandler handler, int queueSize) {
+        this.handler = handler;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.worker = new Thread(this::drain, "rabbit-loopback");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Deliver a copy of the message to the local handler if the message is an event without a routing key and
+     * without a reply address, and the handler has a handler for it
+     * @param message published message; its message id must be set
+     * @param routingKey routing key the message is published with
+     * @return true if the message is queued for local delivery
+     * @throws RabbitException if the queue stays full longer than the offer timeout
+     */
+    public boolean deliver(@NonNull Message message, String routingKey) {
+        if (!running || !isLocal(message, routingKey) || !handler.hasHandler(message))
+            return false;
+        var copy = message.copy();
+        copy.setRoutingKey(routingKey);
+        try {
+            if (!queue.offer(copy, offerTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RabbitException("Loopback queue is full: the message is not delivered locally: " + message.getName());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RabbitException("Interrupted while waiting for the loopback queue", ex);
+        }
+        log.trace("[->LOOPBACK] message is queued: {}", copy);
+        return true;
+    }
+
+    /**
+     * @return value of the {@link Constants#HEADER_LOOPBACK_ID} header of forwarded messages: the local queue name,
+     * or the transport id if the queue is not set
+     */
+    public String getMarker() {
+        var name = localQueue;
+        return name != null && !name.isEmpty() ? name : id;
+    }
+
+    /**
+     * @param message received message
+     * @return true if the message was published by an instance consuming the same queue and is already delivered by
+     * its loopback transport
+     */
+    public boolean isDeliveredLocally(Message message) {
+        return getMarker().equals(message.getParamAsString(Constants.HEADER_LOOPBACK_ID));
+    }
+
+    /**
+     * @return number of messages waiting for the handler
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void drain() {
+        while (running) {
+            Message message;
+            try {
+                message = queue.take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+            try {
+                var batchHandler = handler.getBatchCommandHandler(message);
+                if (batchHandler != null) {
+                    handler.handleBatch(List.of(message));
+                } else {
+                    handler.handleMessage(message);
+                }
+            } catch (Exception ex) {
+                log.error("[LOOPBACK] Exception on handling message. Message={}", message, ex);
+                try {
+                    handler.handleException(message, ex);
+                } catch (Exception ex1) {
+                    log.error("[LOOPBACK] Exception in the exception handler", ex1);
+                }
+            }
+        }
+        if (!queue.isEmpty()) {
+            log.warn("[LOOPBACK] Transport is closed. {} queued messages are dropped", queue.size());
+        }
+    }
+
+    private static boolean isLocal(Message message, String routingKey) {
+        return message.getTypeMessage() == MessageType.EVENT
+                && message.getReplyTo() == null
+                && (routingKey == null || routingKey.isEmpty());
+    }
+}
@@ -3,8 +3,9 @@ package org.powerimo.rabbitmq;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
-import lombok.NoArgsConstructor;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
@@ -15,16 +16,15 @@ import java.util.UUID;
 
 @Data
 @Builder
-@NoArgsConstructor
 @AllArgsConstructor
 public class Message {
-    // common headers
-    private String protocolVersion = "1.0";
+    // common headers; a null protocol version is set by the publisher from its parameters
+    private String protocolVersion;
     private String messageId;
     private String senderId;
     private MessageType typeMessage;
     private String typeMessageOriginalString;
-    private OffsetDateTime messageDate = OffsetDateTime.now(ZoneId.of(ZoneOffset.UTC.getId()));
+    private OffsetDateTime messageDate;
     private String name;
     // for TYPE=taskResult
     private String sourceMessageId;
@@ -33,18 +33,67 @@ public class Message {
     private Integer resultCode;
     // params and payload
     private String payloadClass;
-    private HashMap<String, Object> params = new HashMap<>();
+    private HashMap<String, Object> params;
+    // raw body (byte[]) for received messages, an object for sent ones
     private Object payload;
     private String contentType;
+    private String contentEncoding;
     private String routingKey;
     private String processId;
+    // address to send the task result to, e.g. the Direct Reply-To address of a waiting request
+    private String replyTo;
+
+    public Message() {
+        this(true);
+    }
+
+    /**
+     * @param withDefaults false to leave all fields empty; used by subclasses which fill the fields lazily.
+     * The protocol version is never set by default, so the message is sent in the version configured for the publisher
+     */
+    protected Message(boolean withDefaults) {
+        if (withDefaults) {
+            messageDate = OffsetDateTime.now(ZoneOffset.UTC);
+            params = new HashMap<>();
+        }
+    }
+
+    /**
+     * Copy the message. The copy has its own params map; the payload object is shared
+     * @return new message with the same field values
+     */
+    public Message copy() {
+        var values = getParams();
+        return Message.builder()
+                .protocolVersion(getProtocolVersion())
+                .messageId(getMessageId())
+                .senderId(getSenderId())
+                .typeMessage(getTypeMessage())
+                .typeMessageOriginalString(getTypeMessageOriginalString())
+                .messageDate(getMessageDate())
+                .name(getName())
+                .sourceMessageId(getSourceMessageId())
+                .sourceSenderId(getSourceSenderId())
+                .result(getResult())
+                .resultCode(getResultCode())
+                .payloadClass(getPayloadClass())
+                .params(values != null ? new HashMap<>(values) : new HashMap<>())
+                .payload(getPayload())
+                .contentType(getContentType())
+                .contentEncoding(getContentEncoding())
+                .routingKey(getRoutingKey())
+                .processId(getProcessId())
+                .replyTo(getReplyTo())
+                .build();
+    }
 
     public Object getParam(String name) {
-        return params.get(name);
+        var values = getParams();
+        return values == null ? null : values.get(name);
     }
 
     public Integer getParamAsInteger(final String name) {
-        Object v = params.get(name);
+        Object v = getParam(name);
         if (v == null) {
             return null;
         }
@@ -53,7 +102,7 @@ public class Message {
     }
 
     public String getParamAsString(final String name) {
-        Object obj = params.get(name);
+        Object obj = getParam(name);
         if (obj == null)
             return null;
         return obj.toString();
@@ -91,10 +140,37 @@ public class Message {
     }
 
     public Message addParam(String name, Object value) {
-        params.put(name, value);
+        if (getParams() == null) {
+            setParams(new HashMap<>());
+        }
+        getParams().put(name, value);
         return this;
     }
 
+    /**
+     * Get the payload as a string. Raw bodies of received messages are decoded as UTF-8 on every call
+     * @return string payload or null
+     */
+    public String getPayloadAsString() {
+        Object value = getPayload();
+        if (value == null)
+            return null;
+        if (value instanceof byte[])
+            return new String((byte[]) value, StandardCharsets.UTF_8);
+        return value.toString();
+    }
+
+    /**
+     * Get a read-only view of the raw body of a received message without copying it
+     * @return buffer over the body or null if the payload is not raw bytes
+     */
+    public ByteBuffer getPayloadBuffer() {
+        Object value = getPayload();
+        if (value instanceof byte[])
+            return ByteBuffer.wrap((byte[]) value).asReadOnlyBuffer();
+        return null;
+    }
+
     public void setPayload(Object payload) {
         this.payload = payload;
         if (payload == null) {
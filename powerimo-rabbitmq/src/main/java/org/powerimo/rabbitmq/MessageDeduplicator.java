@@ -0,0 +1,21 @@
+package org.powerimo.rabbitmq;
+
+/**
+ * Registry of processed message ids. The listener looks up the message id of a delivery before the message is
+ * read, and acks a known one without handling it; ids are recorded only after successful handling, so a message
+ * requeued after a failure is handled again.
+ * Implementations are called concurrently from all consumers of the listener.
+ */
+public interface MessageDeduplicator {
+    /**
+     * @param messageId message id
+     * @return true if the message has already been processed
+     */
+    boolean isProcessed(String messageId);
+
+    /**
+     * Record a processed message
+     * @param messageId message id
+     */
+    void markProcessed(String messageId);
+}
@@ -1,9 +1,38 @@
 package org.powerimo.rabbitmq;
 
 public enum MessageType {
-    UNKNOWN,
-    TASK,
-    TASK_RESULT,
-    EVENT,
-    ERROR;
+    UNKNOWN(0),
+    TASK(1),
+    TASK_RESULT(2),
+    EVENT(3),
+    ERROR(4);
+
+    private static final MessageType[] BY_CODE = new MessageType[values().length];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return code of the type in the compact headers of the protocol 1.2
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @param code code of the type in the compact headers
+     * @return type; UNKNOWN for an unknown code
+     */
+    public static MessageType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : UNKNOWN;
+    }
 }
@@ -0,0 +1,42 @@
+package org.powerimo.rabbitmq;
+
+import java.util.function.Function;
+
+/**
+ * Message attribute that defines the order of handling. Messages with the same key are handled one after another
+ * in the order of delivery, messages with different keys are handled in parallel.
+ * <p>
+ * The order of deliveries is known within a channel only, so the listener refuses to start with an ordering key
+ * and more than one consumer channel (concurrency); parallelism comes from the ordering lanes instead.
+ */
+public enum OrderingKey {
+    /**
+     * No ordering: messages are handled as they come
+     */
+    NONE(null),
+    /**
+     * Order by Message.processId (correlation id)
+     */
+    PROCESS_ID(Message::getProcessId),
+    /**
+     * Order by routing key of the delivery
+     */
+    ROUTING_KEY(Message::getRoutingKey),
+    /**
+     * Order by the message name
+     */
+    NAME(Message::getName);
+
+    private final Function<Message, Object> extractor;
+
+    OrderingKey(Function<Message, Object> extractor) {
+        this.extractor = extractor;
+    }
+
+    /**
+     * @return function reading the key from a message; null for NONE
+     */
+    public Function<Message, Object> getExtractor() {
+        return extractor;
+    }
+}
@@ -0,0 +1,38 @@
+package org.powerimo.rabbitmq;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compression algorithm for message bodies, identified by the AMQP content-encoding
+ */
+public interface PayloadCompressor {
+    /**
+     * @return content encoding set on compressed messages (e.g. "gzip")
+     */
+    String getEncoding();
+
+    /**
+     * @param data uncompressed body
+     * @return compressed body
+     */
+    byte[] compress(byte[] data) throws IOException;
+
+    /**
+     * Wrap a stream of compressed data so it can be read without decompressing the whole body first
+     * @param in compressed data
+     * @return stream of uncompressed data
+     */
+    InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * @param data compressed body
+     * @return uncompressed body
+     */
+    default byte[] decompress(byte[] data) throws IOException {
+        try (InputStream in = decompress(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.powerimo.rabbitmq;
+
+import lombok.NonNull;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of payload compressors by content encoding. gzip and deflate are registered by default;
+ * other algorithms (e.g. LZ4 or Zstd) can be registered by the application on startup.
+ */
+public final class PayloadCompressors {
+    private static final Map<String, PayloadCompressor> COMPRESSORS = new ConcurrentHashMap<>();
+
+    static {
+        register(new GzipPayloadCompressor());
+        register(new DeflatePayloadCompressor());
+    }
+
+    private PayloadCompressors() {
+    }
+
+    /**
+     * Register (or replace) the compressor of its content encoding
+     * @param compressor compressor
+     */
+    public static void register(@NonNull PayloadCompressor compressor) {
+        COMPRESSORS.put(compressor.getEncoding().toLowerCase(Locale.ROOT), compressor);
+    }
+
+    /**
+     * @param encoding content encoding
+     * @return compressor or null if the encoding is empty or not registered
+     */
+    public static PayloadCompressor get(String encoding) {
+        if (encoding == null || encoding.isBlank())
+            return null;
+        return COMPRESSORS.get(encoding.trim().toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,10 @@
+package org.powerimo.rabbitmq;
+
+/**
+ * Decoder of message payloads to a class resolved in advance
+ * @param <T> payload class
+ */
+@FunctionalInterface
+public interface PayloadReader<T> {
+    T read(Message message);
+}
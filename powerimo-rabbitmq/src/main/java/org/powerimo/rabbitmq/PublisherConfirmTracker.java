@@ -0,0 +1,111 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Publisher confirms of a channel in confirm mode. Futures are registered under the publish sequence number of their
+ * message and completed when the broker acks or nacks it, so any number of messages may wait for confirmation
+ * on a channel at the same time.
+ * <p>
+ * Futures are completed on the connection thread, so dependent actions should not block
+ * (use the {@code *Async} methods of {@link CompletableFuture} for that).
+ */
+@Slf4j
+public class PublisherConfirmTracker implements ConfirmListener, ShutdownListener {
+    private final ConcurrentNavigableMap<Long, PendingConfirm> pending = new ConcurrentSkipListMap<>();
+
+    /**
+     * Register a future to complete when the message with the sequence number is confirmed
+     * @param seqNo publish sequence number of the message (Channel.getNextPublishSeqNo before publishing)
+     * @param message the message
+     * @param future future to complete with the message
+     */
+    public void register(long seqNo, @NonNull Message message, @NonNull CompletableFuture<Message> future) {
+        pending.put(seqNo, new PendingConfirm(message, future));
+    }
+
+    /**
+     * Forget the message, e.g. when publishing has failed
+     * @param seqNo publish sequence number of the message
+     */
+    public void remove(long seqNo) {
+        pending.remove(seqNo);
+    }
+
+    /**
+     * @return number of messages waiting for confirmation
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        log.trace("[MQ] confirm ack: tag={}, multiple={}", deliveryTag, multiple);
+        complete(deliveryTag, multiple, null);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        log.debug("[MQ] confirm nack: tag={}, multiple={}", deliveryTag, multiple);
+        complete(deliveryTag, multiple, "The message was rejected by the broker (nack)");
+    }
+
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+        failAll(new RabbitException("The channel was closed before the message was confirmed", cause));
+    }
+
+    /**
+     * Fail all messages waiting for confirmation
+     * @param cause the exception to complete futures with
+     */
+    public void failAll(Throwable cause) {
+        Map.Entry<Long, PendingConfirm> entry;
+        while ((entry = pending.pollFirstEntry()) != null) {
+            entry.getValue().future.completeExceptionally(cause);
+        }
+    }
+
+    private void complete(long deliveryTag, boolean multiple, String nackReason) {
+        if (multiple) {
+            var confirmed = pending.headMap(deliveryTag, true);
+            Map.Entry<Long, PendingConfirm> entry;
+            while ((entry = confirmed.pollFirstEntry()) != null) {
+                entry.getValue().complete(nackReason);
+            }
+        } else {
+            var item = pending.remove(deliveryTag);
+            if (item != null) {
+                item.complete(nackReason);
+            }
+        }
+    }
+
+    private static class PendingConfirm {
+        private final Message message;
+        private final CompletableFuture<Message> future;
+
+        private PendingConfirm(Message message, CompletableFuture<Message> future) {
+            this.message = message;
+            this.future = future;
+        }
+
+        private void complete(String nackReason) {
+            if (nackReason == null) {
+                future.complete(message);
+            } else {
+                future.completeExceptionally(new RabbitException(nackReason + ": messageId=" + message.getMessageId()));
+            }
+        }
+    }
+}
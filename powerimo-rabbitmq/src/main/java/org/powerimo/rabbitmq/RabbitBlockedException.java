@@ -0,0 +1,11 @@
+package org.powerimo.rabbitmq;
+
+/**
+ * A message is not sent because of backpressure: the broker blocks the connection, or the publish rate limit
+ * is exceeded
+ */
+public class RabbitBlockedException extends RabbitException {
+    public RabbitBlockedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,177 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of publishing channels opened on a single connection.
+ * <p>
+ * At most {@code maxSize} channels are borrowed at the same time. A thread gets back the channel it returned last
+ * if that one is idle, so a steady sender keeps publishing on the same warm channel. Channels found closed are dropped
+ * and replaced on demand.
+ */
+@Slf4j
+public class RabbitChannelPool implements AutoCloseable {
+    private final Connection connection;
+    private final ChannelInitializer channelInitializer;
+    @Getter
+    private final int maxSize;
+    @Getter
+    private final long borrowTimeout;
+    private final BlockingDeque<Channel> idleChannels = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final ThreadLocal<Channel> lastChannel = new ThreadLocal<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param connection connection to open channels on
+     * @param maxSize maximum number of channels
+     * @param borrowTimeout time in milliseconds to wait for a free channel when all of them are in use
+     */
+    public RabbitChannelPool(@NonNull Connection connection, int maxSize, long borrowTimeout) {
+        this(connection, maxSize, borrowTimeout, null);
+    }
+
+    /**
+     * @param connection connection to open channels on
+     * @param maxSize maximum number of channels
+     * @param borrowTimeout time in milliseconds to wait for a free channel when all of them are in use
+     * @param channelInitializer callback to prepare every newly opened channel (may be null)
+     */
+    public RabbitChannelPool(@NonNull Connection connection, int maxSize, long borrowTimeout, ChannelInitializer channelInitializer) {
+        if (maxSize <= 0) {
+            throw new RabbitException("Channel pool size must be positive: " + maxSize);
+        }
+        this.connection = connection;
+        this.channelInitializer = channelInitializer;
+        this.maxSize = maxSize;
+        this.borrowTimeout = borrowTimeout;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Take a channel from the pool. Every borrowed channel must be given back by {@link #returnChannel(Channel)}.
+     * @return open channel
+     */
+    public Channel borrowChannel() {
+        if (closed) {
+            throw new RabbitException("Channel pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RabbitException("No free channel in the pool within " + borrowTimeout + " ms (pool size: " + maxSize + ")");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RabbitException("Interrupted while waiting for a channel", ex);
+        }
+
+        try {
+            Channel channel = takeIdleChannel();
+            if (channel == null) {
+                channel = connection.createChannel();
+                if (channel == null) {
+                    throw new RabbitException("No channel available on the connection");
+                }
+                if (channelInitializer != null) {
+                    try {
+                        channelInitializer.initialize(channel);
+                    } catch (Exception ex) {
+                        closeQuietly(channel);
+                        throw ex;
+                    }
+                }
+                log.debug("[MQ] publisher channel #{} opened", channel.getChannelNumber());
+            }
+            return channel;
+        } catch (RabbitException ex) {
+            permits.release();
+            throw ex;
+        } catch (Exception ex) {
+            permits.release();
+            throw new RabbitException("Couldn't open a channel", ex);
+        }
+    }
+
+    /**
+     * Give a borrowed channel back to the pool. Closed channels are discarded.
+     * @param channel channel received from {@link #borrowChannel()}
+     */
+    public void returnChannel(Channel channel) {
+        if (channel == null)
+            return;
+        try {
+            if (closed || !channel.isOpen()) {
+                lastChannel.remove();
+                closeQuietly(channel);
+            } else {
+                lastChannel.set(channel);
+                idleChannels.offerFirst(channel);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return number of opened channels waiting in the pool
+     */
+    public int getIdleCount() {
+        return idleChannels.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Channel channel;
+        while ((channel = idleChannels.poll()) != null) {
+            closeQuietly(channel);
+        }
+    }
+
+    private Channel takeIdleChannel() {
+        Channel preferred = lastChannel.get();
+        if (preferred != null && idleChannels.remove(preferred)) {
+            if (preferred.isOpen())
+                return preferred;
+            closeQuietly(preferred);
+        }
+        Channel channel;
+        while ((channel = idleChannels.pollFirst()) != null) {
+            if (channel.isOpen())
+                return channel;
+            closeQuietly(channel);
+        }
+        return null;
+    }
+
+    private void closeQuietly(Channel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            } else {
+                // a channel of a recovering connection would be reopened by the recovery: drop it for good
+                channel.abort();
+            }
+        } catch (Exception ex) {
+            log.debug("[MQ] exception on closing channel", ex);
+        }
+    }
+
+    /**
+     * Callback to prepare a newly opened channel before it is used for the first time
+     */
+    @FunctionalInterface
+    public interface ChannelInitializer {
+        void initialize(Channel channel) throws IOException;
+    }
+}
@@ -0,0 +1,173 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Owner of the broker connections shared by the publisher and the listener.
+ * <p>
+ * Publishing and consuming use separate connections: when the broker blocks a connection because of a memory or
+ * disk alarm, or throttles a fast publisher, consumers keep receiving and acknowledging messages.
+ * Connections are opened on the first request and recover automatically after a network failure or a broker
+ * restart: channels, their prefetch, confirm mode and consumers are restored, and delays between attempts grow
+ * exponentially from {@link RabbitParameters#getRecoveryInterval()} to {@link RabbitParameters#getRecoveryMaxInterval()}.
+ */
+@Slf4j
+public class RabbitConnectionManager implements AutoCloseable {
+    private final RabbitParameters rabbitParameters;
+    private ConnectionFactory connectionFactory;
+    private Connection publishConnection;
+    private Connection consumeConnection;
+    private boolean closed;
+
+    public RabbitConnectionManager(@NonNull RabbitParameters rabbitParameters) {
+        this(rabbitParameters, null);
+    }
+
+    /**
+     * @param rabbitParameters parameters
+     * @param connectionFactory factory to open connections with instead of the one built from the parameters (may be null)
+     */
+    public RabbitConnectionManager(@NonNull RabbitParameters rabbitParameters, ConnectionFactory connectionFactory) {
+        this.rabbitParameters = rabbitParameters;
+        this.connectionFactory = connectionFactory;
+    }
+
+    /**
+     * Build a connection factory with automatic recovery from the URL, or the host, port and virtual host of the parameters
+     * @param rabbitParameters parameters
+     * @return connection factory
+     */
+    public static ConnectionFactory createConnectionFactory(@NonNull RabbitParameters rabbitParameters) {
+        if (rabbitParameters.getUrl() == null && rabbitParameters.getHost() == null) {
+            throw new RabbitException("MQ configuration exception: both url and host are empty");
+        }
+        var factory = new ConnectionFactory();
+        if (rabbitParameters.getUrl() != null) {
+            try {
+                factory.setUri(rabbitParameters.getUrl());
+            } catch (Exception ex) {
+                throw new RabbitException("MQ configuration exception: invalid url", ex);
+            }
+        } else {
+            factory.setHost(rabbitParameters.getHost());
+            if (rabbitParameters.getPort() != null) {
+                factory.setPort(rabbitParameters.getPort());
+            }
+            if (rabbitParameters.getVirtualHost() != null && !rabbitParameters.getVirtualHost().isEmpty()) {
+                factory.setVirtualHost(rabbitParameters.getVirtualHost());
+            }
+        }
+        if (rabbitParameters.getUser() != null) {
+            factory.setUsername(rabbitParameters.getUser());
+            factory.setPassword(rabbitParameters.getPassword());
+        }
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setTopologyRecoveryEnabled(true);
+        factory.setRecoveryDelayHandler(new BackoffRecoveryDelayHandler(
+                rabbitParameters.getRecoveryInterval() > 0 ? rabbitParameters.getRecoveryInterval() : Constants.DEFAULT_RECOVERY_INTERVAL,
+                Math.max(rabbitParameters.getRecoveryInterval(), rabbitParameters.getRecoveryMaxInterval())));
+        return factory;
+    }
+
+    public synchronized ConnectionFactory getConnectionFactory() {
+        if (connectionFactory == null) {
+            connectionFactory = createConnectionFactory(rabbitParameters);
+        }
+        return connectionFactory;
+    }
+
+    /**
+     * @return connection for publishing, opened on the first call
+     */
+    public synchronized Connection getPublishConnection() {
+        if (!isUsable(publishConnection)) {
+            publishConnection = open("publisher");
+        }
+        return publishConnection;
+    }
+
+    /**
+     * @return connection for consuming, opened on the first call
+     */
+    public synchronized Connection getConsumeConnection() {
+        if (!isUsable(consumeConnection)) {
+            consumeConnection = open("consumer");
+        }
+        return consumeConnection;
+    }
+
+    /**
+     * Close both connections. The manager can not be used after closing.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeQuietly(publishConnection);
+        closeQuietly(consumeConnection);
+        publishConnection = null;
+        consumeConnection = null;
+    }
+
+    /**
+     * A recoverable connection which is closed by a failure is still usable: it is being recovered
+     */
+    private static boolean isUsable(Connection connection) {
+        return connection != null && (connection.isOpen() || connection instanceof Recoverable);
+    }
+
+    private Connection open(String purpose) {
+        if (closed) {
+            throw new RabbitException("Connection manager is closed");
+        }
+        String name = rabbitParameters.getSenderId() + "-" + purpose;
+        Connection connection;
+        try {
+            connection = getConnectionFactory().newConnection(name);
+        } catch (IOException | TimeoutException ex) {
+            throw new RabbitException("MQ connection is not opened: " + name, ex);
+        }
+        connection.addShutdownListener(cause -> {
+            if (!cause.isInitiatedByApplication()) {
+                log.warn("[MQ] connection {} is lost: {}", name, cause.getMessage());
+            }
+        });
+        if (connection instanceof Recoverable recoverable) {
+            recoverable.addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recoverable) {
+                    log.info("[MQ] connection {} is recovered", name);
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recoverable) {
+                    log.info("[MQ] connection {} recovery is started", name);
+                }
+            });
+        }
+        log.debug("[MQ] connection {} is opened", name);
+        return connection;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            if (connection.isOpen()) {
+                connection.close();
+            } else {
+                // stops recovery of a connection lost before closing
+                connection.abort();
+            }
+        } catch (Exception ex) {
+            log.warn("Exception on closing MQ connection", ex);
+        }
+    }
+}
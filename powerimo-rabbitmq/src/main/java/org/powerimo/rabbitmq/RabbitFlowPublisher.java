@@ -0,0 +1,434 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reactive view of a queue: a {@link Flow.Publisher} of the received messages.
+ * <p>
+ * Each subscription consumes the queue on its own channel of the consume connection. Subscriber demand drives the
+ * prefetch: on every request the channel prefetch is set to the unsettled deliveries plus the outstanding demand,
+ * up to the prefetch of the parameters (65535 if it is 0), so the broker holds back what is not requested.
+ * Deliveries beyond the demand, possible once settled deliveries have lowered the window, are kept until requested.
+ * <p>
+ * A delivery is settled when the subscriber signals the outcome of its processing by {@link #ack} or
+ * {@link #reject}. Unsettled deliveries of a cancelled subscription may still be settled; deliveries not emitted
+ * yet are requeued. A subscription fails with {@code onError} when its channel is closed by the broker or the
+ * connection is lost; its unsettled deliveries are redelivered by the broker then.
+ */
+@Slf4j
+public class RabbitFlowPublisher implements Flow.Publisher<Message>, AutoCloseable {
+    private static final int MAX_PREFETCH = 65535;
+    private static final Flow.Subscription CLOSED_SUBSCRIPTION = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final RabbitParameters rabbitParameters;
+    private final Set<QueueSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private RabbitConnectionManager connectionManager;
+    private boolean ownedConnectionManager;
+    @Setter
+    private RabbitMetrics metrics = RabbitMetrics.NOOP;
+
+    public RabbitFlowPublisher(RabbitParameters rabbitParameters) {
+        this(rabbitParameters, null);
+    }
+
+    /**
+     * @param rabbitParameters parameters; the queue and the prefetch are used
+     * @param connectionManager connection manager; null to create one, closed with the publisher
+     */
+    public RabbitFlowPublisher(@NonNull RabbitParameters rabbitParameters, RabbitConnectionManager connectionManager) {
+        if (rabbitParameters.getQueue() == null)
+            throw new RabbitException("Queue is not specified");
+        this.rabbitParameters = rabbitParameters;
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        Channel channel;
+        try {
+            channel = connection().createChannel();
+            if (channel == null)
+                throw new RabbitException("Couldn't open a channel: channel limit is reached");
+        } catch (Exception ex) {
+            subscriber.onSubscribe(CLOSED_SUBSCRIPTION);
+            subscriber.onError(ex instanceof RabbitException ? ex : new RabbitException("Couldn't subscribe to the queue " + rabbitParameters.getQueue(), ex));
+            return;
+        }
+        var subscription = new QueueSubscription(channel, subscriber);
+        subscriptions.add(subscription);
+        log.debug("[MQ] queue {} is subscribed on channel #{}", rabbitParameters.getQueue(), channel.getChannelNumber());
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Acknowledge a message emitted by this publisher
+     * @param message processed message
+     */
+    public void ack(Message message) {
+        delivery(message).settle(RabbitMetrics.Settlement.ACK);
+    }
+
+    /**
+     * Reject a message emitted by this publisher
+     * @param message failed message
+     * @param requeue true to requeue the message, false to drop it or dead-letter it
+     */
+    public void reject(Message message, boolean requeue) {
+        delivery(message).settle(requeue ? RabbitMetrics.Settlement.REQUEUE : RabbitMetrics.Settlement.REJECT);
+    }
+
+    /**
+     * @return number of active subscriptions
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Complete all subscriptions and close their channels; unsettled deliveries are redelivered by the broker.
+     * The connection is closed unless the connection manager is set from outside
+     */
+    @Override
+    public synchronized void close() {
+        for (QueueSubscription subscription : subscriptions) {
+            subscription.terminate(null);
+        }
+        if (ownedConnectionManager) {
+            connectionManager.close();
+            connectionManager = null;
+            ownedConnectionManager = false;
+        }
+    }
+
+    private synchronized Connection connection() {
+        if (connectionManager == null) {
+            connectionManager = new RabbitConnectionManager(rabbitParameters);
+            ownedConnectionManager = true;
+        }
+        return connectionManager.getConsumeConnection();
+    }
+
+    private FlowDelivery delivery(Message message) {
+        if (message instanceof FlowDelivery delivery && delivery.subscription.publisher() == this)
+            return delivery;
+        throw new RabbitException("Message is not emitted by this publisher: " + message);
+    }
+
+    private int maxPrefetch() {
+        int prefetch = rabbitParameters.getPrefetch();
+        return prefetch > 0 ? Math.min(prefetch, MAX_PREFETCH) : MAX_PREFETCH;
+    }
+
+    /**
+     * Received message with the subscription it is emitted by
+     */
+    private static class FlowDelivery extends DeliveryMessage {
+        private final QueueSubscription subscription;
+
+        private FlowDelivery(Envelope envelope, AMQP.BasicProperties properties, byte[] body, QueueSubscription subscription) {
+            super(envelope, properties, body);
+            this.subscription = subscription;
+        }
+
+        private void settle(RabbitMetrics.Settlement settlement) {
+            subscription.settle(getEnvelope().getDeliveryTag(), settlement);
+        }
+    }
+
+    /**
+     * Consumer of a subscription. Deliveries are queued and emitted as requested; signals to the subscriber are
+     * serialized by the work-in-progress counter, whichever thread delivers, requests or terminates.
+     */
+    private class QueueSubscription extends DefaultConsumer implements Flow.Subscription {
+        private final Flow.Subscriber<? super Message> subscriber;
+        private final AtomicInteger wip = new AtomicInteger();
+        private final Object lock = new Object();
+        private final Object prefetchLock = new Object();
+        // guarded by the lock
+        private final Deque<FlowDelivery> buffered = new ArrayDeque<>();
+        // delivery tag -> System.nanoTime() of the delivery, emitted or buffered
+        private final Map<Long, Long> unsettled = new HashMap<>();
+        private long demand;
+        private int prefetch;
+        private boolean consuming;
+        private boolean cancelled;
+        private boolean terminated;
+        private boolean signalled;
+        private Throwable error;
+
+        private QueueSubscription(Channel channel, Flow.Subscriber<? super Message> subscriber) {
+            super(channel);
+            this.subscriber = subscriber;
+        }
+
+        private RabbitFlowPublisher publisher() {
+            return RabbitFlowPublisher.this;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                terminate(new IllegalArgumentException("Requested number of messages must be positive: " + n));
+                return;
+            }
+            synchronized (lock) {
+                if (cancelled || terminated)
+                    return;
+                demand += n;
+                if (demand < 0) {
+                    demand = Long.MAX_VALUE;
+                }
+            }
+            drain();
+            updatePrefetch();
+        }
+
+        @Override
+        public void cancel() {
+            boolean close;
+            synchronized (lock) {
+                if (cancelled || terminated)
+                    return;
+                cancelled = true;
+                // deliveries not emitted yet go back to the queue
+                for (FlowDelivery delivery : buffered) {
+                    long tag = delivery.getEnvelope().getDeliveryTag();
+                    settled(unsettled.remove(tag), RabbitMetrics.Settlement.REQUEUE);
+                    basicReject(tag, true);
+                }
+                buffered.clear();
+                close = unsettled.isEmpty();
+            }
+            subscriptions.remove(this);
+            log.debug("[MQ] subscription to queue {} is cancelled", rabbitParameters.getQueue());
+            if (close) {
+                closeChannel();
+            } else {
+                cancelConsumer();
+            }
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            long tag = envelope.getDeliveryTag();
+            FlowDelivery delivery;
+            try {
+                delivery = new FlowDelivery(envelope, properties, body, this);
+            } catch (Exception ex) {
+                metrics.recordParseFailure();
+                log.error("[MQ] Exception on parsing message. Message was rejected. Envelope=({}), basicProperties=({})", envelope, properties, ex);
+                synchronized (lock) {
+                    basicReject(tag, false);
+                }
+                return;
+            }
+            synchronized (lock) {
+                if (cancelled || terminated) {
+                    basicReject(tag, true);
+                    return;
+                }
+                unsettled.put(tag, System.nanoTime());
+                buffered.addLast(delivery);
+            }
+            drain();
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            terminate(new RabbitException("Consumer of the queue " + rabbitParameters.getQueue() + " is cancelled by the broker"));
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            // a recovered consumer would get new delivery tags: the subscription ends with the channel
+            terminate(new RabbitException("Channel of the subscription is closed", sig));
+        }
+
+        private void settle(long tag, RabbitMetrics.Settlement settlement) {
+            boolean close;
+            synchronized (lock) {
+                var deliveredAt = unsettled.remove(tag);
+                if (deliveredAt == null) {
+                    log.debug("[MQ] message is already settled or its channel is closed: deliveryTag={}", tag);
+                    return;
+                }
+                settled(deliveredAt, settlement);
+                if (settlement == RabbitMetrics.Settlement.ACK) {
+                    basicAck(tag);
+                } else {
+                    basicReject(tag, settlement == RabbitMetrics.Settlement.REQUEUE);
+                }
+                close = cancelled && unsettled.isEmpty();
+            }
+            if (close) {
+                closeChannel();
+            }
+        }
+
+        /**
+         * End the subscription and close its channel
+         * @param cause error to signal; null to complete
+         */
+        private void terminate(Throwable cause) {
+            synchronized (lock) {
+                if (cancelled || terminated)
+                    return;
+                terminated = true;
+                error = cause;
+                // tags of the closed channel are not valid anymore
+                buffered.clear();
+                unsettled.clear();
+            }
+            subscriptions.remove(this);
+            closeChannel();
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0)
+                return;
+            int missed = 1;
+            do {
+                while (true) {
+                    FlowDelivery next = null;
+                    boolean signalTerminal = false;
+                    synchronized (lock) {
+                        if (cancelled || signalled)
+                            return;
+                        if (terminated) {
+                            signalled = true;
+                            signalTerminal = true;
+                        } else if (demand > 0 && !buffered.isEmpty()) {
+                            next = buffered.pollFirst();
+                            if (demand != Long.MAX_VALUE) {
+                                demand--;
+                            }
+                        }
+                    }
+                    if (signalTerminal) {
+                        if (error != null) {
+                            subscriber.onError(error);
+                        } else {
+                            subscriber.onComplete();
+                        }
+                        return;
+                    }
+                    if (next == null)
+                        break;
+                    subscriber.onNext(next);
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Set the prefetch to the unsettled deliveries plus the demand not covered by buffered deliveries.
+         * The consumer is started on the first request, once the prefetch is set
+         */
+        private void updatePrefetch() {
+            synchronized (prefetchLock) {
+                int target;
+                boolean start;
+                synchronized (lock) {
+                    if (cancelled || terminated)
+                        return;
+                    long wanted = Math.max(0, demand - buffered.size());
+                    target = (int) Math.max(1, Math.min(unsettled.size() + Math.min(wanted, MAX_PREFETCH), maxPrefetch()));
+                    start = !consuming;
+                    if (!start && target == prefetch)
+                        return;
+                    consuming = true;
+                    prefetch = target;
+                }
+                try {
+                    // global: the limit of the channel applies to the running consumer at once
+                    getChannel().basicQos(target, true);
+                    if (start) {
+                        getChannel().basicConsume(rabbitParameters.getQueue(), false, this);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    terminate(new RabbitException("Couldn't consume the queue " + rabbitParameters.getQueue(), ex));
+                }
+            }
+        }
+
+        private void settled(Long deliveredAt, RabbitMetrics.Settlement settlement) {
+            if (deliveredAt != null) {
+                metrics.recordSettlement(settlement, System.nanoTime() - deliveredAt);
+            }
+        }
+
+        private void basicAck(long tag) {
+            try {
+                if (getChannel().isOpen()) {
+                    getChannel().basicAck(tag, false);
+                }
+            } catch (IOException | RuntimeException ex) {
+                log.error("[MQ] Exception on acknowledging message: deliveryTag={}", tag, ex);
+            }
+        }
+
+        private void basicReject(long tag, boolean requeue) {
+            try {
+                if (getChannel().isOpen()) {
+                    getChannel().basicReject(tag, requeue);
+                }
+            } catch (IOException | RuntimeException ex) {
+                log.error("[MQ] Exception on rejecting message: deliveryTag={}", tag, ex);
+            }
+        }
+
+        private void cancelConsumer() {
+            var consumerTag = getConsumerTag();
+            if (consumerTag == null)
+                return;
+            try {
+                getChannel().basicCancel(consumerTag);
+            } catch (IOException | RuntimeException ex) {
+                log.debug("[MQ] exception on cancelling the subscription consumer", ex);
+            }
+        }
+
+        private void closeChannel() {
+            var channel = getChannel();
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                } else {
+                    // a channel of a recovering connection would be reopened by the recovery: drop it for good
+                    channel.abort();
+                }
+            } catch (Exception ex) {
+                log.debug("[MQ] exception on closing subscription channel", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.powerimo.rabbitmq;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Reactive sink: a {@link Flow.Subscriber} sending the received messages to an exchange by a
+ * {@link RabbitMessagePublisher}. At most {@code maxInFlight} messages are requested ahead of their publisher
+ * confirms, and one more is requested on every confirm, so a slow broker slows the upstream down.
+ * <p>
+ * {@link #getCompletion()} is completed when the upstream completes and all sent messages are confirmed. It fails
+ * with the upstream error, or with the first failed send; the subscription is cancelled then. Demand is requested
+ * on the executor, never on the connection thread which completes the confirms.
+ * <p>
+ * Messages received from a {@link RabbitFlowPublisher} are republished with their bodies as received, with the same
+ * content type and encoding: raw bodies are never serialized again.
+ */
+@Slf4j
+public class RabbitFlowSubscriber implements Flow.Subscriber<Message> {
+    private final RabbitMessagePublisher publisher;
+    private final String exchangeName;
+    private final Function<Message, String> routingKeyFn;
+    @Getter
+    private final int maxInFlight;
+    private final Executor executor;
+    @Getter
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile Flow.Subscription subscription;
+    private volatile boolean upstreamDone;
+
+    /**
+     * @param publisher publisher
+     * @param exchangeName exchange
+     * @param routingKeyFn routing key of a message; null to use the routing key of the message
+     * @param maxInFlight maximum number of messages sent and not confirmed yet
+     */
+    public RabbitFlowSubscriber(RabbitMessagePublisher publisher, String exchangeName, Function<Message, String> routingKeyFn, int maxInFlight) {
+        this(publisher, exchangeName, routingKeyFn, maxInFlight, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param publisher publisher
+     * @param exchangeName exchange
+     * @param routingKeyFn routing key of a message; null to use the routing key of the message
+     * @param maxInFlight maximum number of messages sent and not confirmed yet
+     * @param executor executor to request more messages on
+     */
+    public RabbitFlowSubscriber(@NonNull RabbitMessagePublisher publisher, @NonNull String exchangeName,
+                                Function<Message, String> routingKeyFn, int maxInFlight, @NonNull Executor executor) {
+        if (maxInFlight <= 0)
+            throw new RabbitException("Max in-flight messages must be positive: " + maxInFlight);
+        this.publisher = publisher;
+        this.exchangeName = exchangeName;
+        this.routingKeyFn = routingKeyFn;
+        this.maxInFlight = maxInFlight;
+        this.executor = executor;
+    }
+
+    /**
+     * @return number of messages sent and not confirmed yet
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            // a subscriber is subscribed once
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(maxInFlight);
+    }
+
+    @Override
+    public void onNext(Message message) {
+        if (completion.isDone())
+            return;
+        inFlight.incrementAndGet();
+        var routingKey = routingKeyFn != null ? routingKeyFn.apply(message) : message.getRoutingKey();
+        publisher.sendMessageAsync(message, exchangeName, routingKey)
+                .whenCompleteAsync((confirmed, ex) -> confirmed(ex), executor);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        upstreamDone = true;
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        if (inFlight.get() == 0) {
+            completion.complete(null);
+        }
+    }
+
+    private void confirmed(Throwable ex) {
+        int left = inFlight.decrementAndGet();
+        if (ex != null) {
+            if (completion.completeExceptionally(ex)) {
+                log.error("[->MQ] message of the stream is not sent; the subscription is cancelled", ex);
+                subscription.cancel();
+            }
+            return;
+        }
+        if (upstreamDone) {
+            if (left == 0) {
+                completion.complete(null);
+            }
+        } else if (!completion.isDone()) {
+            subscription.request(1);
+        }
+    }
+}
@@ -1,5 +1,12 @@
 package org.powerimo.rabbitmq;
 
+import java.util.List;
+
+/**
+ * Dispatcher of received messages. Methods added after the first version have default implementations, so
+ * existing implementations keep compiling: typed and batch handlers are not supported by default, and a batch is
+ * handled message by message.
+ */
 public interface RabbitMessageHandler {
     void handleMessage(Message message);
     void setUnsupportedCommandHandler(CommandHandler handler);
@@ -7,4 +14,31 @@ public interface RabbitMessageHandler {
     void setInterceptor(CommandHandler handler);
     void setExceptionHandler(CommandExceptionHandler handler);
     ExceptionResolution handleException(Message message, Throwable ex);
+
+    default <T> void addCommandHandler(MessageType typeMessage, String commandName, Class<T> payloadClass, TypedCommandHandler<T> commandHandler) {
+        throw new RabbitException("Typed command handlers are not supported by " + getClass().getName());
+    }
+
+    default void addBatchCommandHandler(MessageType typeMessage, String commandName, BatchCommandHandler batchCommandHandler) {
+        throw new RabbitException("Batch command handlers are not supported by " + getClass().getName());
+    }
+
+    /**
+     * @return batch handler of the message type and name; null if the message is handled one by one
+     */
+    default BatchCommandHandler getBatchCommandHandler(Message message) {
+        return null;
+    }
+
+    /**
+     * @return true if a handler is registered for the message type and name; false by default, so messages are
+     * not delivered locally by the loopback transport
+     */
+    default boolean hasHandler(Message message) {
+        return false;
+    }
+
+    default void handleBatch(List<Message> messages) {
+        messages.forEach(this::handleMessage);
+    }
 }
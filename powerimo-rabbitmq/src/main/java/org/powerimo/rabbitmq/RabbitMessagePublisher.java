@@ -1,9 +1,81 @@
 package org.powerimo.rabbitmq;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Publisher of messages. Methods added after the first version have default implementations on top of the
+ * synchronous sends, so existing implementations keep compiling.
+ */
 public interface RabbitMessagePublisher {
     Message sendMessage(Message message, String exchangeName, String routingKey);
     Message sendEvent(String name, Object payload);
     Message sendTask(String name, Object payload, String routingKey);
     Message sendTaskResult(String name, Object payload, Integer resultCode, String resultMessage, Message sourceMessage);
     void setConverter(RabbitPayloadConverter converter);
+
+    /**
+     * Send a message; the future is completed when the broker confirms it. By default the message is sent
+     * synchronously
+     */
+    default CompletableFuture<Message> sendMessageAsync(Message message, String exchangeName, String routingKey) {
+        try {
+            return CompletableFuture.completedFuture(sendMessage(message, exchangeName, routingKey));
+        } catch (RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    default CompletableFuture<Message> sendEventAsync(String name, Object payload) {
+        try {
+            return CompletableFuture.completedFuture(sendEvent(name, payload));
+        } catch (RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    default CompletableFuture<Message> sendTaskAsync(String name, Object payload, String routingKey) {
+        try {
+            return CompletableFuture.completedFuture(sendTask(name, payload, routingKey));
+        } catch (RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    /**
+     * Send a task and wait for its result. Not supported by default: the future fails with {@link RabbitException}
+     */
+    default CompletableFuture<Message> sendTaskAndAwait(String name, Object payload, String routingKey, long timeout) {
+        return CompletableFuture.failedFuture(new RabbitException("Request/reply is not supported by " + getClass().getName()));
+    }
+
+    /**
+     * Send messages to an exchange. By default the messages are sent one by one
+     * @param routingKeyFn routing key of a message; null to use the routing key of the message
+     */
+    default List<Message> sendBatch(List<Message> messages, String exchangeName, Function<Message, String> routingKeyFn) {
+        for (Message message : messages) {
+            var routingKey = routingKeyFn != null ? routingKeyFn.apply(message) : message.getRoutingKey();
+            sendMessage(message, exchangeName, routingKey != null ? routingKey : "");
+        }
+        return messages;
+    }
+
+    default List<Message> sendEventBatch(String name, List<?> payloads) {
+        var messages = new ArrayList<Message>(payloads.size());
+        for (Object payload : payloads) {
+            messages.add(sendEvent(name, payload));
+        }
+        return messages;
+    }
+
+    default List<Message> sendTaskBatch(String name, List<?> payloads, String routingKey) {
+        var messages = new ArrayList<Message>(payloads.size());
+        for (Object payload : payloads) {
+            messages.add(sendTask(name, payload, routingKey));
+        }
+        return messages;
+    }
 }
@@ -0,0 +1,109 @@
+package org.powerimo.rabbitmq;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Instrumentation hooks of the publisher, the listener and the message handler. All methods are no-ops by default;
+ * {@link #NOOP} is used when no metrics are configured. Implementations are called on hot paths and should
+ * resolve their meters in advance: handler timers are resolved once per registered handler.
+ */
+public interface RabbitMetrics {
+    RabbitMetrics NOOP = new RabbitMetrics() {
+    };
+
+    /**
+     * Outcome of a delivery
+     */
+    enum Settlement {
+        ACK,
+        REJECT,
+        REQUEUE,
+        // republished to a retry queue
+        RETRY,
+        // moved to the parking queue after the last attempt
+        PARK
+    }
+
+    /**
+     * Timer of a registered handler
+     */
+    @FunctionalInterface
+    interface HandlerTimer {
+        HandlerTimer NOOP = (nanos, failed) -> {
+        };
+
+        void record(long nanos, boolean failed);
+    }
+
+    /**
+     * A message is published (or failed to be published)
+     * @param exchange exchange name
+     * @param bytes size of the body
+     * @param nanos time of serialization and publishing
+     * @param success false if publishing failed
+     */
+    default void recordPublish(String exchange, int bytes, long nanos, boolean success) {
+    }
+
+    /**
+     * The publishing connection was blocked by the broker, and is unblocked now
+     * @param nanos time the connection was blocked
+     */
+    default void recordBlocked(long nanos) {
+    }
+
+    /**
+     * Publishing waited for the publish rate limit
+     * @param exchange exchange name
+     * @param nanos time waited
+     */
+    default void recordThrottled(String exchange, long nanos) {
+    }
+
+    /**
+     * A delivery is settled
+     * @param settlement ack, reject or requeue
+     * @param nanos time from the delivery to the settlement
+     */
+    default void recordSettlement(Settlement settlement, long nanos) {
+    }
+
+    /**
+     * A delivery could not be read as a message and was rejected
+     */
+    default void recordParseFailure() {
+    }
+
+    /**
+     * A delivery of an already processed message was acked without handling
+     */
+    default void recordDuplicate() {
+    }
+
+    /**
+     * Resolve the timer of a handler on its registration
+     * @param typeMessage message type
+     * @param name message name or pattern the handler is registered for
+     * @return timer
+     */
+    default HandlerTimer handlerTimer(MessageType typeMessage, String name) {
+        return HandlerTimer.NOOP;
+    }
+
+    /**
+     * Bind the gauges of a listener
+     * @param queue queue name
+     * @param consumers number of consumers (channels)
+     * @param inFlight number of deliveries received but not settled yet
+     */
+    default void bindListener(String queue, IntSupplier consumers, IntSupplier inFlight) {
+    }
+
+    /**
+     * Bind the gauges of a publisher
+     * @param blocked 1 while the broker blocks the publishing connection, 0 otherwise
+     * @param buffered number of messages buffered while the connection is blocked
+     */
+    default void bindPublisher(IntSupplier blocked, IntSupplier buffered) {
+    }
+}
@@ -1,5 +1,12 @@
 package org.powerimo.rabbitmq;
 
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Connection and behaviour parameters. Parameters added after the first version have default methods returning
+ * the library defaults, so existing implementations keep compiling.
+ */
 public interface RabbitParameters {
     boolean getEnabled();
     String getUrl();
@@ -13,4 +20,112 @@ public interface RabbitParameters {
     String getQueue();
     String getSenderId();
     boolean getShowParametersOnStartup();
+
+    default int getPublisherChannelPoolSize() {
+        return Constants.DEFAULT_PUBLISHER_CHANNEL_POOL_SIZE;
+    }
+
+    default long getPublisherChannelPoolTimeout() {
+        return Constants.DEFAULT_PUBLISHER_CHANNEL_POOL_TIMEOUT;
+    }
+
+    default long getPublisherConfirmTimeout() {
+        return Constants.DEFAULT_PUBLISHER_CONFIRM_TIMEOUT;
+    }
+
+    default int getConcurrency() {
+        return Constants.DEFAULT_CONCURRENCY;
+    }
+
+    default int getPrefetch() {
+        return Constants.DEFAULT_PREFETCH;
+    }
+
+    default HandlerExecutionMode getHandlerExecutionMode() {
+        return HandlerExecutionMode.DISPATCH_THREAD;
+    }
+
+    default OrderingKey getOrderingKey() {
+        return OrderingKey.NONE;
+    }
+
+    default int getOrderingLanes() {
+        return 0;
+    }
+
+    default int getBatchSize() {
+        return Constants.DEFAULT_BATCH_SIZE;
+    }
+
+    default long getBatchTimeout() {
+        return Constants.DEFAULT_BATCH_TIMEOUT;
+    }
+
+    default Map<String, String> getExchangeContentTypes() {
+        return Collections.emptyMap();
+    }
+
+    default Map<String, String> getMessageContentTypes() {
+        return Collections.emptyMap();
+    }
+
+    default String getCompression() {
+        return null;
+    }
+
+    default int getCompressionThreshold() {
+        return Constants.DEFAULT_COMPRESSION_THRESHOLD;
+    }
+
+    default long getRecoveryInterval() {
+        return Constants.DEFAULT_RECOVERY_INTERVAL;
+    }
+
+    default long getRecoveryMaxInterval() {
+        return Constants.DEFAULT_RECOVERY_MAX_INTERVAL;
+    }
+
+    default int getDeduplicationCapacity() {
+        return 0;
+    }
+
+    default long getDeduplicationWindow() {
+        return Constants.DEFAULT_DEDUPLICATION_WINDOW;
+    }
+
+    default String getDeduplicationFile() {
+        return null;
+    }
+
+    default int getRetryMaxAttempts() {
+        return 0;
+    }
+
+    default long getRetryInitialDelay() {
+        return Constants.DEFAULT_RETRY_INITIAL_DELAY;
+    }
+
+    default long getRetryMaxDelay() {
+        return Constants.DEFAULT_RETRY_MAX_DELAY;
+    }
+
+    default BlockedPolicy getBlockedPolicy() {
+        return BlockedPolicy.WAIT;
+    }
+
+    default long getBackpressureTimeout() {
+        return Constants.DEFAULT_BACKPRESSURE_TIMEOUT;
+    }
+
+    default int getBlockedBufferSize() {
+        return Constants.DEFAULT_BLOCKED_BUFFER_SIZE;
+    }
+
+    default int getPublishRateLimit() {
+        return 0;
+    }
+
+    default String getProtocolVersion() {
+        return Constants.PROTOCOL_VERSION_DEFAULT;
+    }
 }
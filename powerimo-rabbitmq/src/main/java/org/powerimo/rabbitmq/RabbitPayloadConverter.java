@@ -3,4 +3,43 @@ package org.powerimo.rabbitmq;
 public interface RabbitPayloadConverter {
     <T> T extractPayload(Message message, Class<T> cls);
     byte[] serializePayload(Object obj);
+
+    /**
+     * Serialize the payload to the requested content type
+     * @param obj payload
+     * @param contentType AMQP content type; null for the content type of the converter
+     * @return serialized payload
+     * @throws RabbitException if the converter doesn't produce the content type
+     */
+    default byte[] serializePayload(Object obj, String contentType) {
+        if (contentType != null && !supports(contentType))
+            throw new RabbitException("Payload converter " + getClass().getSimpleName() + " doesn't produce content type: " + contentType);
+        return serializePayload(obj);
+    }
+
+    /**
+     * @param contentType AMQP content type
+     * @return true if payloads can be serialized to the content type; by default only to {@link #getContentType()}
+     */
+    default boolean supports(String contentType) {
+        return contentType != null
+                && RabbitUtils.normalizeContentType(contentType).equals(RabbitUtils.normalizeContentType(getContentType()));
+    }
+
+    /**
+     * Resolve the decoder of a payload class once, e.g. on handler registration.
+     * Converters keeping per-class deserializers bind them to the reader
+     * @param cls payload class
+     * @return reader
+     */
+    default <T> PayloadReader<T> readerFor(Class<T> cls) {
+        return message -> extractPayload(message, cls);
+    }
+
+    /**
+     * @return content type produced by {@link #serializePayload(Object)}
+     */
+    default String getContentType() {
+        return Constants.CONTENT_TYPE_JSON;
+    }
 }
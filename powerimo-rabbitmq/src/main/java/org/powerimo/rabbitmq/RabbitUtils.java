@@ -5,11 +5,24 @@ import com.rabbitmq.client.Envelope;
 import lombok.extern.slf4j.Slf4j;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Slf4j
 public class RabbitUtils {
+    // headers written from the message fields by every protocol version
+    private static final Set<String> PROTOCOL_HEADERS = Set.of(
+            Constants.HEADER_MESSAGE_TYPE, Constants.HEADER_PROTOCOL_VERSION, Constants.HEADER_NAME,
+            Constants.HEADER_PAYLOAD_CLASS, Constants.HEADER_RESULT_MESSAGE, Constants.HEADER_RESULT_CODE,
+            Constants.HEADER_SOURCE_MESSAGE_ID, Constants.HEADER_COMPACT_VERSION, Constants.HEADER_COMPACT_TYPE,
+            Constants.HEADER_COMPACT_NAME, Constants.HEADER_COMPACT_PAYLOAD_CLASS, Constants.HEADER_COMPACT_RESULT_MESSAGE,
+            Constants.HEADER_COMPACT_RESULT_CODE, Constants.HEADER_COMPACT_SOURCE_MESSAGE_ID);
 
     /**
      * Convert sting to Integer with default value
@@ -50,7 +63,8 @@ public class RabbitUtils {
     }
 
     /**
-     * Extract message from Rabbit message. Method arguments is the same as com.rabbitmq.client.Consumer.handleDelivery
+     * Extract message from Rabbit message. Method arguments is the same as com.rabbitmq.client.Consumer.handleDelivery.
+     * Headers are decoded lazily, see {@link DeliveryMessage}
      * @param s tag, assoiated with consumer
      * @param envelope RabbitMQ envelope
      * @param basicProperties properties of the message
@@ -63,25 +77,7 @@ public class RabbitUtils {
         }
 
         try {
-            Message message = new Message();
-            message.setRoutingKey(envelope.getRoutingKey());
-            message.setContentType(basicProperties.getContentType());
-            message.setName(readProperty(basicProperties, Constants.HEADER_NAME));
-            var messageTypeString = readProperty(basicProperties, Constants.HEADER_MESSAGE_TYPE);
-            message.setTypeMessageOriginalString(messageTypeString);
-            message.setTypeMessage(getTypeMessage(messageTypeString));
-            message.setMessageId(basicProperties.getMessageId());
-            message.setProcessId(basicProperties.getCorrelationId());
-            message.setSenderId(basicProperties.getAppId());
-            message.setResult(readProperty(basicProperties, Constants.HEADER_RESULT_MESSAGE));
-            message.setResultCode((Integer) basicProperties.getHeaders().get(Constants.HEADER_RESULT_CODE));
-            message.setProtocolVersion(basicProperties.getHeaders().getOrDefault(Constants.HEADER_PROTOCOL_VERSION, Constants.PROTOCOL_VERSION_DEFAULT).toString());
-            message.setPayload(new String(bytes, StandardCharsets.UTF_8));
-            message.setPayloadClass(readProperty(basicProperties, Constants.HEADER_PAYLOAD_CLASS));
-
-            basicProperties.getHeaders().forEach(message::addParam);
-
-            return message;
+            return new DeliveryMessage(envelope, basicProperties, bytes);
         } catch (Throwable ex) {
             throw new RabbitException("Error reading the message", ex);
         }
@@ -109,17 +105,52 @@ public class RabbitUtils {
         }
     }
 
+    /**
+     * Normalize a content type for comparison: parameters are dropped, the legacy JSON content type is replaced
+     * by the standard one
+     * @param contentType AMQP content type
+     * @return lower case media type
+     */
+    public static String normalizeContentType(String contentType) {
+        if (Constants.CONTENT_TYPE_JSON_LEGACY.equals(contentType))
+            return Constants.CONTENT_TYPE_JSON;
+        int i = contentType.indexOf(';');
+        String value = i >= 0 ? contentType.substring(0, i) : contentType;
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
     public String convertToString(byte[] data) {
         if (data == null)
             return null;
         return new String(data, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     * The library is built for Java 17, so the executor is looked up at runtime.
+     * @return executor service
+     * @throws RabbitException if virtual threads are not supported by the runtime
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException ex) {
+            throw new RabbitException("Virtual threads are not supported by the Java runtime (Java 21 or newer is required)", ex);
+        } catch (Exception ex) {
+            throw new RabbitException("Couldn't create virtual thread executor", ex);
+        }
+    }
+
     public static AMQP.BasicProperties prepareProperties(Message message, String appId, String contentType) {
+        return prepareProperties(message, appId, contentType, null);
+    }
+
+    public static AMQP.BasicProperties prepareProperties(Message message, String appId, String contentType, String contentEncoding) {
         if (message == null) {
             return new AMQP.BasicProperties.Builder()
                     .appId(appId)
                     .contentType(contentType)
+                    .contentEncoding(contentEncoding)
                     .build();
         }
 
@@ -132,12 +163,41 @@ public class RabbitUtils {
             log.debug("protocol version was null. Set to default: {}", message.getProtocolVersion());
         }
 
-        var headers = new HashMap<String, Object>();
-
-        if (message.getParams() != null) {
-            headers.putAll(message.getParams());
+        var params = message.getParams();
+        // sized for the params and the message headers, so that the map is never resized
+        var headers = new HashMap<String, Object>(((params != null ? params.size() : 0) + 8) * 4 / 3 + 1);
+        if (params != null) {
+            // params of a received message hold its protocol headers too: they are written from the fields below,
+            // in the version of this message, so that a cleared field or a previous version never comes back
+            params.forEach((name, value) -> {
+                if (!PROTOCOL_HEADERS.contains(name)) {
+                    headers.put(name, value);
+                }
+            });
+        }
+        if (Constants.PROTOCOL_VERSION_1_2.equals(message.getProtocolVersion())) {
+            putCompactHeaders(headers, message);
+        } else {
+            putHeaders(headers, message);
         }
 
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .appId(appId)
+                .messageId(message.getMessageId())
+                .correlationId(message.getProcessId())
+                .replyTo(message.getReplyTo())
+                .contentType(contentType)
+                .contentEncoding(contentEncoding)
+                .headers(headers)
+                .build();
+        log.trace("message properties is prepared: {}", properties);
+        return properties;
+    }
+
+    /**
+     * Headers of the protocol 1.0 and 1.1: all headers are written, null values included
+     */
+    private static void putHeaders(Map<String, Object> headers, Message message) {
         headers.put(Constants.HEADER_MESSAGE_TYPE, message.getTypeMessage().name());
         log.trace("header {} is set to: {}", Constants.HEADER_MESSAGE_TYPE, message.getTypeMessage());
         headers.put(Constants.HEADER_PROTOCOL_VERSION, message.getProtocolVersion());
@@ -150,15 +210,45 @@ public class RabbitUtils {
         log.trace("header {} is set to: {}", Constants.HEADER_RESULT_MESSAGE, message.getResult());
         headers.put(Constants.HEADER_RESULT_CODE, message.getResultCode());
         log.trace("header {} is set to: {}", Constants.HEADER_RESULT_CODE, message.getResultCode());
+        if (message.getSourceMessageId() != null) {
+            headers.put(Constants.HEADER_SOURCE_MESSAGE_ID, message.getSourceMessageId());
+            log.trace("header {} is set to: {}", Constants.HEADER_SOURCE_MESSAGE_ID, message.getSourceMessageId());
+        }
+    }
 
-        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
-                .appId(appId)
-                .messageId(message.getMessageId())
-                .correlationId(message.getProcessId())
-                .contentType(contentType)
-                .headers(headers)
-                .build();
-        log.trace("message properties is prepared: {}", properties);
-        return properties;
+    /**
+     * Headers of the protocol 1.2: short keys, the message type as a byte code, no null values.
+     * The payload class is omitted when it is the class of a string, number, boolean, map or collection payload,
+     * which is read back without a class
+     */
+    private static void putCompactHeaders(Map<String, Object> headers, Message message) {
+        headers.put(Constants.HEADER_COMPACT_VERSION, Constants.PROTOCOL_VERSION_1_2);
+        var type = message.getTypeMessage();
+        if (type != null && type != MessageType.UNKNOWN) {
+            headers.put(Constants.HEADER_COMPACT_TYPE, (byte) type.getCode());
+        }
+        putIfNotNull(headers, Constants.HEADER_COMPACT_NAME, message.getName());
+        if (message.getPayloadClass() != null && !isPayloadClassInferable(message)) {
+            headers.put(Constants.HEADER_COMPACT_PAYLOAD_CLASS, message.getPayloadClass());
+        }
+        putIfNotNull(headers, Constants.HEADER_COMPACT_RESULT_MESSAGE, message.getResult());
+        putIfNotNull(headers, Constants.HEADER_COMPACT_RESULT_CODE, message.getResultCode());
+        putIfNotNull(headers, Constants.HEADER_COMPACT_SOURCE_MESSAGE_ID, message.getSourceMessageId());
+        log.trace("compact headers are set: {}", headers);
+    }
+
+    private static void putIfNotNull(Map<String, Object> headers, String name, Object value) {
+        if (value != null) {
+            headers.put(name, value);
+        }
+    }
+
+    private static boolean isPayloadClassInferable(Message message) {
+        Object payload = message.getPayload();
+        if (!(payload instanceof CharSequence || payload instanceof Number || payload instanceof Boolean
+                || payload instanceof Map || payload instanceof Collection))
+            return false;
+        // a class set on purpose, e.g. of the DTO a map stands for, is kept
+        return message.getPayloadClass().equals(extractPayloadClass(payload));
     }
 }
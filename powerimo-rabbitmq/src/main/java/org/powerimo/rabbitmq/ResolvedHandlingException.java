@@ -0,0 +1,17 @@
+package org.powerimo.rabbitmq;
+
+import lombok.Getter;
+
+/**
+ * Failure of a handler already resolved by the exception handler. The listener settles the delivery according to
+ * the resolution without asking the exception handler again.
+ */
+@Getter
+public class ResolvedHandlingException extends RabbitException {
+    private final ExceptionResolution resolution;
+
+    public ResolvedHandlingException(ExceptionResolution resolution, Throwable cause) {
+        super("Message handling failed, resolution: " + resolution, cause);
+        this.resolution = resolution;
+    }
+}
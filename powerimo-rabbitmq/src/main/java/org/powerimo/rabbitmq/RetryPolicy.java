@@ -0,0 +1,163 @@
+package org.powerimo.rabbitmq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ReturnListener;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delayed retries of failed messages with exponential backoff.
+ * <p>
+ * A delivery resolved with {@link ExceptionResolution#RETRY} is republished to the retry queue of its delay and
+ * acked when the broker confirms the republished message; if the broker returns it (the queue doesn't exist) or
+ * nacks it, the delivery is requeued instead. Retry queues have no consumers: their messages expire after the delay ({@code x-message-ttl}) and are
+ * dead-lettered through the default exchange back to the main queue. The delay doubles with every attempt up to
+ * the max delay, and each distinct delay has its own queue {@code <queue>.retry.<delay ms>}, so the queue
+ * arguments never change for a declared queue.
+ * <p>
+ * The number of failed attempts is kept in the {@code retry_attempt} header, and the last exception in
+ * {@code retry_reason}. After the last attempt the message is moved to the parking queue {@code <queue>.parking}.
+ */
+@Getter
+public class RetryPolicy {
+    private static final int MAX_REASON_LENGTH = 1000;
+
+    private final String queue;
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    /**
+     * @param queue main queue of the listener
+     * @param maxAttempts maximum number of handling attempts, the first one included
+     * @param initialDelay delay before the first retry, ms
+     * @param maxDelay maximum delay, ms
+     */
+    public RetryPolicy(@NonNull String queue, int maxAttempts, long initialDelay, long maxDelay) {
+        if (maxAttempts <= 0)
+            throw new RabbitException("Retry max attempts must be positive: " + maxAttempts);
+        if (initialDelay <= 0 || maxDelay < initialDelay)
+            throw new RabbitException("Retry delays are out of range: initial=" + initialDelay + ", max=" + maxDelay);
+        this.queue = queue;
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @param parameters parameters
+     * @return retry policy of the listener queue; null if retries are disabled
+     */
+    public static RetryPolicy of(RabbitParameters parameters) {
+        if (parameters.getRetryMaxAttempts() <= 0)
+            return null;
+        return new RetryPolicy(parameters.getQueue(), parameters.getRetryMaxAttempts(),
+                parameters.getRetryInitialDelay(), parameters.getRetryMaxDelay());
+    }
+
+    /**
+     * @param attempt number of the failed attempt, starting from 1
+     * @return delay before the next attempt, ms
+     */
+    public long getDelay(int attempt) {
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay <<= 1;
+        }
+        return Math.min(delay, maxDelay);
+    }
+
+    public String getRetryQueue(long delay) {
+        return queue + ".retry." + delay;
+    }
+
+    public String getParkingQueue() {
+        return queue + ".parking";
+    }
+
+    /**
+     * Declare the retry queues of all delays and the parking queue
+     * @param channel channel
+     * @throws IOException on declaration failure
+     */
+    public void declareTopology(Channel channel) throws IOException {
+        Set<Long> delays = new TreeSet<>();
+        for (int attempt = 1; attempt < maxAttempts; attempt++) {
+            delays.add(getDelay(attempt));
+        }
+        for (long delay : delays) {
+            Map<String, Object> arguments = new HashMap<>();
+            arguments.put("x-message-ttl", delay);
+            arguments.put("x-dead-letter-exchange", "");
+            arguments.put("x-dead-letter-routing-key", queue);
+            channel.queueDeclare(getRetryQueue(delay), true, false, false, arguments);
+        }
+        channel.queueDeclare(getParkingQueue(), true, false, false, null);
+    }
+
+    /**
+     * @param message received message
+     * @return number of failed attempts before the delivery
+     */
+    public static int getAttempt(Message message) {
+        Integer attempt = message.getParamAsInteger(Constants.HEADER_RETRY_ATTEMPT);
+        return attempt != null ? attempt : 0;
+    }
+
+    /**
+     * Republish a failed delivery as received, with updated retry headers, to its retry queue, or to the parking
+     * queue after the last attempt, and wait for the broker confirm. The message is published as mandatory, so a
+     * missing queue fails the call instead of dropping the message. The delivery itself must be acked by the caller
+     * after a successful call only
+     * @param channel channel in confirm mode, used by a single thread at a time
+     * @param message failed delivery
+     * @param cause exception of the handler
+     * @param timeout confirm timeout, ms
+     * @return true if the message is parked
+     * @throws IOException on publishing failure
+     * @throws RabbitException if the broker returns or nacks the message
+     * @throws TimeoutException if the broker doesn't confirm the message within the timeout
+     */
+    public boolean republish(Channel channel, DeliveryMessage message, Throwable cause, long timeout)
+            throws IOException, InterruptedException, TimeoutException {
+        int attempt = getAttempt(message) + 1;
+        var headers = new HashMap<>(message.getProperties().getHeaders());
+        headers.put(Constants.HEADER_RETRY_ATTEMPT, attempt);
+        headers.put(Constants.HEADER_RETRY_REASON, reason(cause));
+        AMQP.BasicProperties properties = message.getProperties().builder()
+                .headers(headers)
+                .build();
+        boolean park = attempt >= maxAttempts;
+        String target = park ? getParkingQueue() : getRetryQueue(getDelay(attempt));
+        // a return is dispatched before the confirm of the same message
+        var returned = new AtomicBoolean();
+        ReturnListener listener = (replyCode, replyText, exchange, routingKey, props, body) -> returned.set(true);
+        channel.addReturnListener(listener);
+        try {
+            channel.basicPublish("", target, true, properties, message.getBody());
+            if (!channel.waitForConfirms(timeout))
+                throw new RabbitException("The broker rejected the message republished to " + target);
+        } finally {
+            channel.removeReturnListener(listener);
+        }
+        if (returned.get())
+            throw new RabbitException("The message republished to " + target + " is returned: the queue doesn't exist");
+        return park;
+    }
+
+    private static String reason(Throwable cause) {
+        if (cause == null)
+            return "";
+        String reason = cause.toString();
+        return reason.length() > MAX_REASON_LENGTH ? reason.substring(0, MAX_REASON_LENGTH) : reason;
+    }
+}
@@ -0,0 +1,196 @@
+package org.powerimo.rabbitmq;
+
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable table of handlers by message name. Tables are never changed after creation: a route is added by
+ * {@link #withRoute(String, Object)}, which returns a new table, so a table can be read from any number of threads.
+ * <p>
+ * Names are matched case-insensitively. Exact names are looked up in an open-addressing hash table which folds
+ * the case while hashing and comparing, so a lookup does not allocate. Patterns are dot-separated words where
+ * {@code *} matches exactly one word and {@code #} matches zero or more words (e.g. {@code order.*}, {@code order.#}).
+ * Exact names take precedence over patterns; patterns are tried in the order of registration.
+ *
+ * @param <H> handler type
+ */
+public final class RoutingTable<H> {
+    private static final RoutingTable<?> EMPTY = new RoutingTable<>(new String[0], new Object[0], new ArrayList<>());
+
+    // open addressing: capacity is a power of two, keys are null in free slots
+    private final String[] keys;
+    private final Object[] values;
+    private final int size;
+    private final Pattern[] patterns;
+    private final List<Route> routes;
+
+    private RoutingTable(String[] keys, Object[] values, List<Route> routes) {
+        this.keys = keys;
+        this.values = values;
+        this.routes = routes;
+        int exact = 0;
+        var compiled = new ArrayList<Pattern>();
+        for (Route route : routes) {
+            if (isPattern(route.name)) {
+                compiled.add(new Pattern(route.name, route.handler));
+            } else {
+                exact++;
+            }
+        }
+        this.size = exact;
+        this.patterns = compiled.toArray(new Pattern[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <H> RoutingTable<H> empty() {
+        return (RoutingTable<H>) EMPTY;
+    }
+
+    /**
+     * Create a table with one more route. An existing route with the same name or pattern is kept
+     * @param name message name or pattern
+     * @param handler handler
+     * @return new table, or this table if the route exists
+     */
+    public RoutingTable<H> withRoute(@NonNull String name, @NonNull H handler) {
+        for (Route route : routes) {
+            if (route.name.equalsIgnoreCase(name))
+                return this;
+        }
+        var newRoutes = new ArrayList<>(routes);
+        newRoutes.add(new Route(name, handler));
+
+        int exact = 0;
+        for (Route route : newRoutes) {
+            if (!isPattern(route.name))
+                exact++;
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, exact * 2 - 1)) << 1;
+        var newKeys = new String[capacity];
+        var newValues = new Object[capacity];
+        for (Route route : newRoutes) {
+            if (isPattern(route.name))
+                continue;
+            int i = hash(route.name) & (capacity - 1);
+            while (newKeys[i] != null) {
+                i = (i + 1) & (capacity - 1);
+            }
+            newKeys[i] = route.name;
+            newValues[i] = route.handler;
+        }
+        return new RoutingTable<>(newKeys, newValues, newRoutes);
+    }
+
+    /**
+     * Find the handler of a message name
+     * @param name message name
+     * @return handler or null
+     */
+    @SuppressWarnings("unchecked")
+    public H get(String name) {
+        if (name == null)
+            return null;
+        if (size > 0) {
+            int mask = keys.length - 1;
+            int i = hash(name) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (key.length() == name.length() && key.regionMatches(true, 0, name, 0, name.length()))
+                    return (H) values[i];
+                i = (i + 1) & mask;
+            }
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matches(name))
+                return (H) pattern.handler;
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return routes.isEmpty();
+    }
+
+    /**
+     * @return number of routes, exact names and patterns
+     */
+    public int size() {
+        return routes.size();
+    }
+
+    /**
+     * @param name message name or pattern
+     * @return true if the name contains wildcards
+     */
+    public static boolean isPattern(String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('#') >= 0;
+    }
+
+    private static int hash(String s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Route {
+        private final String name;
+        private final Object handler;
+
+        private Route(String name, Object handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+
+    private static final class Pattern {
+        private static final String ONE_WORD = "*";
+        private static final String ANY_WORDS = "#";
+        private final String[] words;
+        private final Object handler;
+
+        private Pattern(String pattern, Object handler) {
+            this.words = pattern.split("\\.", -1);
+            this.handler = handler;
+            for (String word : words) {
+                if (isPattern(word) && word.length() > 1)
+                    throw new RabbitException("Wildcard must be a whole word in the handler pattern: " + pattern);
+            }
+        }
+
+        private boolean matches(String name) {
+            return match(0, name, 0);
+        }
+
+        /**
+         * @param wi index of the pattern word
+         * @param name message name
+         * @param pos start of the current word of the name; name length + 1 when all words are consumed
+         */
+        private boolean match(int wi, String name, int pos) {
+            if (wi == words.length)
+                return pos > name.length();
+            String word = words[wi];
+            if (ANY_WORDS.equals(word)) {
+                if (match(wi + 1, name, pos))
+                    return true;
+                return pos <= name.length() && match(wi, name, wordEnd(name, pos) + 1);
+            }
+            if (pos > name.length())
+                return false;
+            int end = wordEnd(name, pos);
+            if (!ONE_WORD.equals(word)
+                    && (end - pos != word.length() || !name.regionMatches(true, pos, word, 0, word.length())))
+                return false;
+            return match(wi + 1, name, end + 1);
+        }
+
+        private static int wordEnd(String name, int pos) {
+            int end = name.indexOf('.', pos);
+            return end < 0 ? name.length() : end;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.powerimo.rabbitmq;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Time-windowed set of processed message ids bounded by its capacity.
+ * <p>
+ * Ids are kept as 128-bit keys: ids in the UUID format are parsed, other ids are hashed to name-based UUIDs.
+ * The set is split into segments by key, each a map in recording order guarded by its own lock, so consumers
+ * rarely contend. Ids older than the window, and the oldest ids of a full segment, are evicted.
+ * <p>
+ * With a file, each recorded key is also written to a memory-mapped ring of the same capacity, and the keys within
+ * the window are loaded back on creation, so the window survives restarts. Writes go to the page cache: they
+ * survive a crash of the process, not of the operating system.
+ */
+@Slf4j
+public class StandardMessageDeduplicator implements MessageDeduplicator, AutoCloseable {
+    private static final int SEGMENTS = 16;
+    // "PMD1"
+    private static final int MAGIC = 0x504d4431;
+    // magic, capacity, number of recorded keys
+    private static final int HEADER_SIZE = 16;
+    // timestamp, most and least significant bits of the key
+    private static final int SLOT_SIZE = 24;
+
+    @Getter
+    private final int capacity;
+    @Getter
+    private final long window;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Object fileLock = new Object();
+    private FileChannel fileChannel;
+    private volatile MappedByteBuffer buffer;
+    private long recorded;
+
+    /**
+     * @param capacity maximum number of remembered ids
+     * @param window time in milliseconds an id is remembered
+     */
+    public StandardMessageDeduplicator(int capacity, long window) {
+        this(capacity, window, null);
+    }
+
+    /**
+     * @param capacity maximum number of remembered ids
+     * @param window time in milliseconds an id is remembered
+     * @param file file to keep the ids across restarts; null to keep them in memory only
+     */
+    public StandardMessageDeduplicator(int capacity, long window, Path file) {
+        if (capacity <= 0)
+            throw new RabbitException("Deduplication capacity must be positive: " + capacity);
+        if (window <= 0)
+            throw new RabbitException("Deduplication window must be positive: " + window);
+        this.capacity = capacity;
+        this.window = window;
+        int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+        if (file != null) {
+            openFile(file);
+        }
+    }
+
+    @Override
+    public boolean isProcessed(String messageId) {
+        if (messageId == null)
+            return false;
+        var key = toKey(messageId);
+        return segment(key).contains(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public void markProcessed(String messageId) {
+        if (messageId == null)
+            return;
+        var key = toKey(messageId);
+        long now = System.currentTimeMillis();
+        segment(key).put(key, now);
+        if (buffer != null) {
+            write(key, now);
+        }
+    }
+
+    /**
+     * @return number of remembered ids, expired ones included until they are evicted
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Close the file. Ids are still remembered in memory
+     */
+    @Override
+    public void close() {
+        synchronized (fileLock) {
+            if (fileChannel == null)
+                return;
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            try {
+                fileChannel.close();
+            } catch (IOException ex) {
+                log.debug("Exception on closing deduplication file", ex);
+            }
+            fileChannel = null;
+        }
+    }
+
+    private Segment segment(UUID key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static UUID toKey(String messageId) {
+        if (messageId.length() == 36) {
+            try {
+                return UUID.fromString(messageId);
+            } catch (IllegalArgumentException ex) {
+                // not a UUID
+            }
+        }
+        return UUID.nameUUIDFromBytes(messageId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void openFile(Path file) {
+        try {
+            fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw new RabbitException("Couldn't open deduplication file: " + file, ex);
+        }
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == capacity) {
+            load();
+            log.info("Deduplication file {} is loaded: {} message ids within the window", file, size());
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, capacity);
+            buffer.putLong(8, 0);
+            log.info("Deduplication file {} is initialized", file);
+        }
+    }
+
+    private void load() {
+        recorded = buffer.getLong(8);
+        long now = System.currentTimeMillis();
+        // oldest first, so that the segments keep the recording order
+        for (long i = Math.max(0, recorded - capacity); i < recorded; i++) {
+            int position = slotPosition(i);
+            long timestamp = buffer.getLong(position);
+            if (now - timestamp < window) {
+                var key = new UUID(buffer.getLong(position + 8), buffer.getLong(position + 16));
+                segment(key).put(key, timestamp);
+            }
+        }
+    }
+
+    private void write(UUID key, long timestamp) {
+        synchronized (fileLock) {
+            if (buffer == null)
+                return;
+            int position = slotPosition(recorded);
+            buffer.putLong(position, timestamp);
+            buffer.putLong(position + 8, key.getMostSignificantBits());
+            buffer.putLong(position + 16, key.getLeastSignificantBits());
+            buffer.putLong(8, ++recorded);
+        }
+    }
+
+    private int slotPosition(long index) {
+        return HEADER_SIZE + (int) (index % capacity) * SLOT_SIZE;
+    }
+
+    private class Segment {
+        private final int capacity;
+        // key -> time of recording, in recording order
+        private final LinkedHashMap<UUID, Long> keys = new LinkedHashMap<>();
+
+        private Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        private synchronized boolean contains(UUID key, long now) {
+            evictExpired(now);
+            return keys.containsKey(key);
+        }
+
+        private synchronized void put(UUID key, long timestamp) {
+            // move a known key to the tail
+            keys.remove(key);
+            keys.put(key, timestamp);
+            if (keys.size() > capacity) {
+                var iterator = keys.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        private synchronized int size() {
+            return keys.size();
+        }
+
+        private void evictExpired(long now) {
+            Iterator<Map.Entry<UUID, Long>> iterator = keys.entrySet().iterator();
+            while (iterator.hasNext() && now - iterator.next().getValue() >= window) {
+                iterator.remove();
+            }
+        }
+    }
+}
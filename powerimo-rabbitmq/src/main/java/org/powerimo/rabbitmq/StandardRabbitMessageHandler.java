@@ -1,23 +1,50 @@
 package org.powerimo.rabbitmq;
 
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Dispatcher of received messages to the handlers registered by message type and name.
+ * Handlers are kept in copy-on-write {@link RoutingTable}s, so they can be registered while consumers are running.
+ * Handler names may be patterns: see {@link RoutingTable}.
+ */
 @Slf4j
 public class StandardRabbitMessageHandler implements RabbitMessageHandler {
-    private final LinkedHashMap<String, CommandHandler> eventHandlers = new LinkedHashMap<>();
-    private final LinkedHashMap<String, CommandHandler> taskHandlers = new LinkedHashMap<>();
-    private final LinkedHashMap<String, CommandHandler> taskResultHandlers = new LinkedHashMap<>();
-    private CommandHandler unsupportedHandler;
-    private CommandHandler interceptor;
-    private CommandExceptionHandler exceptionHandler;
+    private final AtomicReference<RoutingTable<CommandHandler>> eventHandlers = new AtomicReference<>(RoutingTable.empty());
+    private final AtomicReference<RoutingTable<CommandHandler>> taskHandlers = new AtomicReference<>(RoutingTable.empty());
+    private final AtomicReference<RoutingTable<CommandHandler>> taskResultHandlers = new AtomicReference<>(RoutingTable.empty());
+    private final AtomicReference<RoutingTable<BatchCommandHandler>> eventBatchHandlers = new AtomicReference<>(RoutingTable.empty());
+    private final AtomicReference<RoutingTable<BatchCommandHandler>> taskBatchHandlers = new AtomicReference<>(RoutingTable.empty());
+    private final AtomicReference<RoutingTable<BatchCommandHandler>> taskResultBatchHandlers = new AtomicReference<>(RoutingTable.empty());
+    private volatile CommandHandler unsupportedHandler;
+    private volatile CommandHandler interceptor;
+    private volatile CommandExceptionHandler exceptionHandler;
+    @Getter
+    @Setter
+    private volatile RabbitPayloadConverter payloadConverter;
+    /**
+     * Handler timers are resolved on registration: set metrics before adding handlers
+     */
+    @Getter
+    @Setter
+    private volatile RabbitMetrics metrics = RabbitMetrics.NOOP;
 
     public StandardRabbitMessageHandler() {
 
     }
 
+    /**
+     * @param payloadConverter converter to bind payload readers of typed handlers with
+     */
+    public StandardRabbitMessageHandler(RabbitPayloadConverter payloadConverter) {
+        this.payloadConverter = payloadConverter;
+    }
+
     @Override
     public void handleMessage(@NonNull Message message) {
         log.debug("[MQ->]: {}", message);
@@ -25,24 +52,12 @@ public class StandardRabbitMessageHandler implements RabbitMessageHandler {
         if (interceptor != null) {
             interceptor.handleMessage(message);
         }
-        CommandHandler handler;
-        switch (typeMQMessage) {
-            case EVENT:
-                handler = eventHandlers.get(message.getName().toLowerCase());
-                // unknown events ignored
-                if (handler == null) {
-                    log.trace("ignore event: {}", message.getName());
-                    return;
-                }
-                break;
-            case TASK:
-                handler = taskHandlers.get(message.getName().toLowerCase());
-                break;
-            case TASK_RESULT:
-                handler = taskResultHandlers.get(message.getName().toLowerCase());
-                break;
-            default:
-                handler = null;
+        var handlers = getHandlers(typeMQMessage);
+        CommandHandler handler = handlers != null ? handlers.get().get(message.getName()) : null;
+        // unknown events ignored
+        if (handler == null && typeMQMessage == MessageType.EVENT) {
+            log.trace("ignore event: {}", message.getName());
+            return;
         }
 
         // call handler
@@ -52,7 +67,11 @@ public class StandardRabbitMessageHandler implements RabbitMessageHandler {
                 handler.handleMessage(message);
             } catch (Exception ex) {
                 if (exceptionHandler != null) {
-                    exceptionHandler.handleException(message, ex);
+                    var resolution = exceptionHandler.handleException(message, ex);
+                    if (resolution != null && resolution != ExceptionResolution.DEFAULT) {
+                        // the delivery is settled by the listener
+                        throw new ResolvedHandlingException(resolution, ex);
+                    }
                 } else {
                     throw ex;
                 }
@@ -81,19 +100,87 @@ public class StandardRabbitMessageHandler implements RabbitMessageHandler {
 
     @Override
     public void addCommandHandler(@NonNull MessageType typeMessage, @NonNull String commandName, @NonNull CommandHandler commandHandler) {
-        switch (typeMessage) {
-            case EVENT:
-                eventHandlers.putIfAbsent(commandName.toLowerCase(), commandHandler);
-                break;
-            case TASK:
-                taskHandlers.putIfAbsent(commandName.toLowerCase(), commandHandler);
-                break;
-            case TASK_RESULT:
-                taskResultHandlers.putIfAbsent(commandName.toLowerCase(), commandHandler);
-                break;
-            default:
-                throw new RabbitException("Type is not supported for registering command handlers: " + typeMessage.name());
+        var handlers = getHandlers(typeMessage);
+        if (handlers == null) {
+            throw new RabbitException("Type is not supported for registering command handlers: " + typeMessage.name());
         }
+        var timer = metrics != null ? metrics.handlerTimer(typeMessage, commandName) : RabbitMetrics.HandlerTimer.NOOP;
+        CommandHandler handler = timer == RabbitMetrics.HandlerTimer.NOOP ? commandHandler : message -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                commandHandler.handleMessage(message);
+                failed = false;
+            } finally {
+                timer.record(System.nanoTime() - start, failed);
+            }
+        };
+        handlers.updateAndGet(table -> table.withRoute(commandName, handler));
+    }
+
+    /**
+     * Register a handler of decoded payloads. The payload reader is resolved here, once per handler
+     */
+    @Override
+    public <T> void addCommandHandler(@NonNull MessageType typeMessage, @NonNull String commandName, @NonNull Class<T> payloadClass, @NonNull TypedCommandHandler<T> commandHandler) {
+        if (payloadConverter == null) {
+            throw new RabbitException("Payload converter is not set: typed command handler cannot be registered");
+        }
+        PayloadReader<T> reader = payloadConverter.readerFor(payloadClass);
+        addCommandHandler(typeMessage, commandName, message -> commandHandler.handleMessage(reader.read(message), message));
+    }
+
+    @Override
+    public void addBatchCommandHandler(@NonNull MessageType typeMessage, @NonNull String commandName, @NonNull BatchCommandHandler batchCommandHandler) {
+        var handlers = getBatchHandlers(typeMessage);
+        if (handlers == null) {
+            throw new RabbitException("Type is not supported for registering batch command handlers: " + typeMessage.name());
+        }
+        var timer = metrics != null ? metrics.handlerTimer(typeMessage, commandName) : RabbitMetrics.HandlerTimer.NOOP;
+        BatchCommandHandler handler = timer == RabbitMetrics.HandlerTimer.NOOP ? batchCommandHandler : messages -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                batchCommandHandler.handleMessages(messages);
+                failed = false;
+            } finally {
+                timer.record(System.nanoTime() - start, failed);
+            }
+        };
+        handlers.updateAndGet(table -> table.withRoute(commandName, handler));
+    }
+
+    @Override
+    public BatchCommandHandler getBatchCommandHandler(@NonNull Message message) {
+        var handlers = getBatchHandlers(RabbitUtils.getTypeMessage(message));
+        return handlers != null ? handlers.get().get(message.getName()) : null;
+    }
+
+    /**
+     * @return true if a single or a batch handler is registered for the message type and name
+     */
+    @Override
+    public boolean hasHandler(@NonNull Message message) {
+        var handlers = getHandlers(RabbitUtils.getTypeMessage(message));
+        if (handlers != null && handlers.get().get(message.getName()) != null)
+            return true;
+        return getBatchCommandHandler(message) != null;
+    }
+
+    @Override
+    public void handleBatch(@NonNull List<Message> messages) {
+        if (messages.isEmpty())
+            return;
+        var first = messages.get(0);
+        var handler = getBatchCommandHandler(first);
+        if (handler == null) {
+            throw new RabbitException("Unsupported batch: type=" + RabbitUtils.getTypeMessage(first).name() + ", name=" + first.getName());
+        }
+        log.debug("[MQ->]: batch of {} messages: {}", messages.size(), first.getName());
+        if (interceptor != null) {
+            messages.forEach(interceptor::handleMessage);
+        }
+        handler.handleMessages(messages);
     }
 
     @Override
@@ -106,6 +193,32 @@ public class StandardRabbitMessageHandler implements RabbitMessageHandler {
         exceptionHandler = handler;
     }
 
+    private AtomicReference<RoutingTable<CommandHandler>> getHandlers(MessageType typeMessage) {
+        switch (typeMessage) {
+            case EVENT:
+                return eventHandlers;
+            case TASK:
+                return taskHandlers;
+            case TASK_RESULT:
+                return taskResultHandlers;
+            default:
+                return null;
+        }
+    }
+
+    private AtomicReference<RoutingTable<BatchCommandHandler>> getBatchHandlers(MessageType typeMessage) {
+        switch (typeMessage) {
+            case EVENT:
+                return eventBatchHandlers;
+            case TASK:
+                return taskBatchHandlers;
+            case TASK_RESULT:
+                return taskResultBatchHandlers;
+            default:
+                return null;
+        }
+    }
+
     @Override
     public ExceptionResolution handleException(Message message, Throwable ex) {
         if (exceptionHandler != null) {
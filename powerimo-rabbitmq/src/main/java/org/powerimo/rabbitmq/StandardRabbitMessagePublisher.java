@@ -1,20 +1,32 @@
 package org.powerimo.rabbitmq;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
-import static org.powerimo.rabbitmq.Constants.CONTENT_TYPE_JSON;
 
 @Slf4j
 @Setter
@@ -22,32 +34,58 @@ import static org.powerimo.rabbitmq.Constants.CONTENT_TYPE_JSON;
 public class StandardRabbitMessagePublisher implements RabbitMessagePublisher {
     private RabbitPayloadConverter rabbitPayloadConverter;
     private ConnectionFactory connectionFactory;
+    private RabbitConnectionManager connectionManager;
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private boolean ownedConnectionManager;
     private Connection connection;
-    private Channel channel;
+    // channels of fire-and-forget sends
+    private volatile RabbitChannelPool channelPool;
+    // channels in confirm mode, for sends completed by the broker confirm
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private volatile RabbitChannelPool confirmChannelPool;
+    private final Map<Channel, PublisherConfirmTracker> confirmTrackers = new ConcurrentHashMap<>();
     private final RabbitParameters rabbitParameters;
+    private RabbitMetrics metrics = RabbitMetrics.NOOP;
+    private LoopbackTransport loopback;
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private DirectReplyTracker replyTracker;
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private HashedWheelTimer replyTimer;
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private final ConnectionBlockedTracker blockedTracker = new ConnectionBlockedTracker(this::startFlush);
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private final Map<String, TokenBucketRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+    // messages sent while the connection is blocked, with the BUFFER policy; guarded by itself
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private final Deque<BufferedMessage> buffer = new ArrayDeque<>();
+    @Setter(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    private boolean flushing;
 
+    /**
+     * @throws RabbitException if a content type configured for an exchange or a message name can't be produced by
+     * the converter
+     */
     public StandardRabbitMessagePublisher(RabbitParameters rabbitParameters, RabbitPayloadConverter rabbitPayloadConverter1) {
         this.rabbitParameters = rabbitParameters;
         this.rabbitPayloadConverter = rabbitPayloadConverter1;
+        checkContentTypes();
     }
 
     @Override
     public Message sendMessage(@NonNull Message message, @NonNull String exchangeName, String routingKey) {
         try {
-            if (connectionFactory == null) {
-                log.trace("Connection factory is not initialized. Going to initialization.");
-                initConnection();
-            }
-            channel = connection.createChannel();
-            var rkey = routingKey != null ? routingKey : "";
-            try {
-                var properties = RabbitUtils.prepareProperties(message, rabbitParameters.getSenderId(), CONTENT_TYPE_JSON);
-                channel.basicPublish(exchangeName, rkey, properties, prepareBody(message));
-                log.debug("[->MQ] message is sent: {} to {}, routingKey={}", message, exchangeName, rkey);
-            } finally {
-                channel.close();
-            }
+            publish(message, exchangeName, routingKey, null);
             return message;
+        } catch (RabbitException ex) {
+            throw ex;
         } catch (Exception ex) {
             throw new RabbitException("Exception on sending MQ message", ex);
         }
@@ -55,35 +93,12 @@ public class StandardRabbitMessagePublisher implements RabbitMessagePublisher {
 
     @Override
     public Message sendEvent(String name, Object payload) {
-        if (rabbitParameters.getEventsExchange() == null) {
-            throw new RabbitException("Event message cannot be sent: event exchange name is not specified");
-        }
-        Message message = Message.builder()
-                .name(name)
-                .payload(payload)
-                .payloadClass(RabbitUtils.extractPayloadClass(payload))
-                .senderId(rabbitParameters.getSenderId())
-                .contentType(CONTENT_TYPE_JSON)
-                .typeMessage(MessageType.EVENT)
-                .build();
-        return sendMessage(message, rabbitParameters.getEventsExchange(), "");
+        return sendMessage(buildEvent(name, payload), rabbitParameters.getEventsExchange(), "");
     }
 
     @Override
     public Message sendTask(String name, Object payload, String routingKey) {
-        if (rabbitParameters.getTasksExchange() == null) {
-            throw new RabbitException("Task message cannot be sent: event exchange name is not specified");
-        }
-        Message message = Message.builder()
-                .name(name)
-                .payload(payload)
-                .payloadClass(RabbitUtils.extractPayloadClass(payload))
-                .senderId(rabbitParameters.getSenderId())
-                .contentType(CONTENT_TYPE_JSON)
-                .typeMessage(MessageType.TASK)
-                .routingKey(routingKey)
-                .build();
-        return sendMessage(message, rabbitParameters.getTasksExchange(), routingKey);
+        return sendMessage(buildTask(name, payload, routingKey), rabbitParameters.getTasksExchange(), routingKey);
     }
 
     @Override
@@ -93,57 +108,772 @@ public class StandardRabbitMessagePublisher implements RabbitMessagePublisher {
         }
         var sourceMessageId = sourceMessage == null ? null : sourceMessage.getMessageId();
         var sourceAppId = sourceMessage == null ? null : sourceMessage.getSenderId();
+        var replyTo = sourceMessage == null ? null : sourceMessage.getReplyTo();
         Message message = Message.builder()
                 .name(name)
                 .payload(payload)
                 .payloadClass(RabbitUtils.extractPayloadClass(payload))
                 .senderId(rabbitParameters.getSenderId())
-                .contentType(CONTENT_TYPE_JSON)
                 .result(resultMessage)
                 .resultCode(resultCode)
                 .sourceMessageId(sourceMessageId)
                 .sourceSenderId(sourceAppId)
                 .typeMessage(MessageType.TASK_RESULT)
-                .routingKey(sourceAppId)
+                .routingKey(replyTo != null ? replyTo : sourceAppId)
                 .build();
+        if (replyTo != null) {
+            // the requester awaits the result: reply through the default exchange
+            return sendMessage(message, "", replyTo);
+        }
         return sendMessage(message, rabbitParameters.getTasksExchange(), sourceAppId);
     }
 
+    @Override
+    public CompletableFuture<Message> sendMessageAsync(@NonNull Message message, @NonNull String exchangeName, String routingKey) {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        try {
+            publish(message, exchangeName, routingKey, future);
+        } catch (RabbitException ex) {
+            future.completeExceptionally(ex);
+        } catch (Exception ex) {
+            future.completeExceptionally(new RabbitException("Exception on sending MQ message", ex));
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Message> sendEventAsync(String name, Object payload) {
+        return sendMessageAsync(buildEvent(name, payload), rabbitParameters.getEventsExchange(), "");
+    }
+
+    @Override
+    public CompletableFuture<Message> sendTaskAsync(String name, Object payload, String routingKey) {
+        return sendMessageAsync(buildTask(name, payload, routingKey), rabbitParameters.getTasksExchange(), routingKey);
+    }
+
+    /**
+     * Send a task and wait for its result over RabbitMQ Direct Reply-To. The task result must be sent by
+     * {@link #sendTaskResult} with the task as the source message. Requests are always published to the broker,
+     * bypassing the loopback transport
+     * @param name task name
+     * @param payload payload
+     * @param routingKey routing key
+     * @param timeout reply timeout, ms
+     * @return future completed with the task result, or failed with {@link TimeoutException} if no result is
+     * received within the timeout
+     */
+    @Override
+    public CompletableFuture<Message> sendTaskAndAwait(String name, Object payload, String routingKey, long timeout) {
+        var message = buildTask(name, payload, routingKey);
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        try {
+            request(message, rabbitParameters.getTasksExchange(), routingKey, timeout, reply);
+        } catch (RabbitException ex) {
+            reply.completeExceptionally(ex);
+        } catch (Exception ex) {
+            reply.completeExceptionally(new RabbitException("Exception on sending MQ request", ex));
+        }
+        return reply;
+    }
+
+    @Override
+    public List<Message> sendBatch(@NonNull List<Message> messages, @NonNull String exchangeName, Function<Message, String> routingKeyFn) {
+        if (messages.isEmpty())
+            return messages;
+        try {
+            var forwarded = messages;
+            if (loopback != null) {
+                forwarded = new ArrayList<>(messages.size());
+                for (Message message : messages) {
+                    var rkey = routingKeyFn != null ? routingKeyFn.apply(message) : message.getRoutingKey();
+                    var forward = deliverLocally(message, exchangeName, rkey != null ? rkey : "");
+                    if (forward != null) {
+                        forwarded.add(forward);
+                    }
+                }
+                if (forwarded.isEmpty())
+                    return messages;
+            }
+            if (channelPool == null) {
+                log.trace("Channel pool is not initialized. Going to initialization.");
+                initConnection();
+            }
+            awaitUnblocked();
+            throttle(exchangeName, forwarded.size(), rabbitParameters.getBackpressureTimeout());
+            var routingKeys = new String[forwarded.size()];
+            var properties = new AMQP.BasicProperties[forwarded.size()];
+            var bodies = new byte[forwarded.size()][];
+            for (int i = 0; i < forwarded.size(); i++) {
+                var message = forwarded.get(i);
+                var rkey = routingKeyFn != null ? routingKeyFn.apply(message) : message.getRoutingKey();
+                routingKeys[i] = rkey != null ? rkey : "";
+                var contentType = resolveContentType(message, exchangeName);
+                bodies[i] = prepareBody(message, contentType);
+                properties[i] = prepareProperties(message, contentType);
+            }
+
+            Channel channel = confirmChannelPool.borrowChannel();
+            // confirms of the batch only: the pooled channel may still wait for confirms of asynchronous sends
+            PublisherConfirmTracker tracker = null;
+            var confirms = new ArrayList<CompletableFuture<Message>>(bodies.length);
+            long firstSeqNo = channel.getNextPublishSeqNo();
+            try {
+                tracker = trackerOf(channel);
+                for (int i = 0; i < bodies.length; i++) {
+                    long start = System.nanoTime();
+                    boolean success = false;
+                    CompletableFuture<Message> confirm = new CompletableFuture<>();
+                    tracker.register(channel.getNextPublishSeqNo(), forwarded.get(i), confirm);
+                    confirms.add(confirm);
+                    try {
+                        channel.basicPublish(exchangeName, routingKeys[i], properties[i], bodies[i]);
+                        success = true;
+                    } finally {
+                        metrics.recordPublish(exchangeName, bodies[i] != null ? bodies[i].length : 0, System.nanoTime() - start, success);
+                    }
+                }
+                log.debug("[->MQ] batch of {} messages is sent to {}. Waiting for confirms", bodies.length, exchangeName);
+                awaitBatchConfirms(forwarded, confirms);
+                log.debug("[->MQ] batch of {} messages is confirmed", bodies.length);
+            } finally {
+                for (int i = 0; i < confirms.size(); i++) {
+                    if (!confirms.get(i).isDone()) {
+                        tracker.remove(firstSeqNo + i);
+                    }
+                }
+                confirmChannelPool.returnChannel(channel);
+            }
+            return messages;
+        } catch (RabbitException ex) {
+            throw ex;
+        } catch (TimeoutException ex) {
+            throw new RabbitException("Batch confirms are not received within " + rabbitParameters.getPublisherConfirmTimeout() + " ms", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RabbitException("Interrupted while waiting for batch confirms", ex);
+        } catch (Exception ex) {
+            throw new RabbitException("Exception on sending MQ message batch", ex);
+        }
+    }
+
+    /**
+     * Wait for the confirms of a batch
+     * @param messages messages of the batch
+     * @param confirms their confirms, in the same order
+     * @throws BatchPublishException if some messages are nacked
+     */
+    private void awaitBatchConfirms(List<Message> messages, List<CompletableFuture<Message>> confirms)
+            throws InterruptedException, TimeoutException {
+        try {
+            CompletableFuture.allOf(confirms.toArray(new CompletableFuture[0]))
+                    .get(rabbitParameters.getPublisherConfirmTimeout(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            var failed = new ArrayList<Message>();
+            for (int i = 0; i < confirms.size(); i++) {
+                if (confirms.get(i).isCompletedExceptionally()) {
+                    failed.add(messages.get(i));
+                }
+            }
+            var failure = new BatchPublishException(failed.size() + " of " + messages.size()
+                    + " messages of the batch were rejected by the broker (nack): messageIds="
+                    + failed.stream().map(Message::getMessageId).toList(), failed);
+            failure.initCause(ex.getCause());
+            throw failure;
+        }
+    }
+
+    @Override
+    public List<Message> sendEventBatch(String name, @NonNull List<?> payloads) {
+        var messages = new ArrayList<Message>(payloads.size());
+        for (Object payload : payloads) {
+            messages.add(buildEvent(name, payload));
+        }
+        return sendBatch(messages, rabbitParameters.getEventsExchange(), m -> "");
+    }
+
+    @Override
+    public List<Message> sendTaskBatch(String name, @NonNull List<?> payloads, String routingKey) {
+        var messages = new ArrayList<Message>(payloads.size());
+        for (Object payload : payloads) {
+            messages.add(buildTask(name, payload, routingKey));
+        }
+        return sendBatch(messages, rabbitParameters.getTasksExchange(), Message::getRoutingKey);
+    }
+
     @Override
     public void setConverter(RabbitPayloadConverter converter) {
         this.rabbitPayloadConverter = converter;
+        checkContentTypes();
+    }
+
+    /**
+     * @return true if the broker blocks the publishing connection
+     */
+    public boolean isBlocked() {
+        return blockedTracker.isBlocked();
+    }
+
+    /**
+     * @return total time the publishing connection has been blocked by the broker, ms
+     */
+    public long getBlockedTime() {
+        return blockedTracker.getBlockedTime();
     }
 
-    private void initConnection() throws URISyntaxException, NoSuchAlgorithmException, KeyManagementException, IOException, TimeoutException {
-        if (rabbitParameters.getUrl() == null && rabbitParameters.getHost() == null) {
-            throw new RabbitException("MQ Connection is not initialized: both URL and host are empty");
+    /**
+     * @return number of messages buffered while the connection is blocked
+     */
+    public int getBufferedCount() {
+        synchronized (buffer) {
+            return buffer.size();
         }
-        if (connectionFactory == null) {
-            connectionFactory = new ConnectionFactory();
-            if (rabbitParameters.getUrl() != null) {
-                connectionFactory.setUri(rabbitParameters.getUrl());
+    }
+
+    /**
+     * Close the channel pool of the publisher, and its connection unless the connection manager is set from outside.
+     * Buffered messages are dropped, their futures fail
+     */
+    public synchronized void close() {
+        failBuffered();
+        if (connection != null) {
+            connection.removeBlockedListener(blockedTracker);
+            connection.removeShutdownListener(blockedTracker);
+        }
+        if (channelPool != null) {
+            channelPool.close();
+            channelPool = null;
+        }
+        if (confirmChannelPool != null) {
+            confirmChannelPool.close();
+            confirmChannelPool = null;
+        }
+        if (replyTracker != null) {
+            replyTracker.close();
+            replyTracker = null;
+        }
+        if (replyTimer != null) {
+            replyTimer.close();
+            replyTimer = null;
+        }
+        connection = null;
+        if (ownedConnectionManager) {
+            connectionManager.close();
+            connectionManager = null;
+            ownedConnectionManager = false;
+        }
+    }
+
+    private synchronized void initConnection() {
+        if (connectionManager == null) {
+            connectionManager = new RabbitConnectionManager(rabbitParameters, connectionFactory);
+            ownedConnectionManager = true;
+        }
+        if (channelPool == null) {
+            connection = connectionManager.getPublishConnection();
+            connection.addBlockedListener(blockedTracker);
+            connection.addShutdownListener(blockedTracker);
+            blockedTracker.setMetrics(metrics);
+            metrics.bindPublisher(() -> blockedTracker.isBlocked() ? 1 : 0, this::getBufferedCount);
+            // channels are opened on demand: a publisher using one kind of sends never opens the other pool's channels
+            confirmChannelPool = new RabbitChannelPool(connection,
+                    rabbitParameters.getPublisherChannelPoolSize(),
+                    rabbitParameters.getPublisherChannelPoolTimeout(),
+                    this::initChannel);
+            channelPool = new RabbitChannelPool(connection,
+                    rabbitParameters.getPublisherChannelPoolSize(),
+                    rabbitParameters.getPublisherChannelPoolTimeout());
+            log.debug("Publisher channel pools are created. Size: {}", channelPool.getMaxSize());
+        }
+    }
+
+    /**
+     * Publish the message, or buffer it while the connection is blocked
+     * @param message message to send
+     * @param exchangeName exchange
+     * @param routingKey routing key (may be null)
+     * @param confirm future to complete on the broker confirm; null if no confirmation is awaited
+     */
+    private void publish(Message message, String exchangeName, String routingKey, CompletableFuture<Message> confirm) throws IOException {
+        var rkey = routingKey != null ? routingKey : "";
+        var forward = deliverLocally(message, exchangeName, rkey);
+        if (forward == null) {
+            if (confirm != null) {
+                confirm.complete(message);
+            }
+            return;
+        }
+        if (bufferWhileBlocked(forward, exchangeName, rkey, confirm))
+            return;
+        awaitUnblocked();
+        throttle(exchangeName, 1, rabbitParameters.getBackpressureTimeout());
+        publishToBroker(forward, exchangeName, rkey, confirm);
+    }
+
+    /**
+     * Publish the message on a pooled channel: a channel in confirm mode if a confirmation is awaited, a plain one otherwise
+     * @param message message to send
+     * @param exchangeName exchange
+     * @param rkey routing key
+     * @param confirm future to complete on the broker confirm; null if no confirmation is awaited
+     */
+    private void publishToBroker(Message message, String exchangeName, String rkey, CompletableFuture<Message> confirm) throws IOException {
+        if (channelPool == null) {
+            log.trace("Channel pool is not initialized. Going to initialization.");
+            initConnection();
+        }
+        long start = System.nanoTime();
+        var contentType = resolveContentType(message, exchangeName);
+        var body = prepareBody(message, contentType);
+        var properties = prepareProperties(message, contentType);
+        boolean success = false;
+        var pool = confirm != null ? confirmChannelPool : channelPool;
+        Channel channel = pool.borrowChannel();
+        try {
+            if (confirm == null) {
+                channel.basicPublish(exchangeName, rkey, properties, body);
             } else {
-                connectionFactory.setHost(rabbitParameters.getHost());
-                connectionFactory.setVirtualHost(rabbitParameters.getVirtualHost());
-                connectionFactory.setPort(rabbitParameters.getPort());
+                var tracker = trackerOf(channel);
+                long seqNo = channel.getNextPublishSeqNo();
+                tracker.register(seqNo, message, confirm);
+                try {
+                    channel.basicPublish(exchangeName, rkey, properties, body);
+                } catch (IOException | RuntimeException ex) {
+                    tracker.remove(seqNo);
+                    throw ex;
+                }
             }
-            if (rabbitParameters.getUser() != null) {
-                connectionFactory.setUsername(rabbitParameters.getUser());
-                connectionFactory.setPassword(rabbitParameters.getPassword());
+            success = true;
+            log.debug("[->MQ] message is sent: {} to {}, routingKey={}", message, exchangeName, rkey);
+        } finally {
+            pool.returnChannel(channel);
+            metrics.recordPublish(exchangeName, body != null ? body.length : 0, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Publish the request on the reply channel and register the future to complete with its reply
+     * @param message request
+     * @param exchangeName exchange
+     * @param routingKey routing key (may be null)
+     * @param timeout reply timeout, ms
+     * @param reply future to complete with the reply
+     */
+    private void request(Message message, String exchangeName, String routingKey, long timeout, CompletableFuture<Message> reply) throws IOException {
+        if (timeout <= 0)
+            throw new RabbitException("Reply timeout must be positive: " + timeout);
+        var rkey = routingKey != null ? routingKey : "";
+        var tracker = replyTracker();
+        awaitUnblocked();
+        throttle(exchangeName, 1, rabbitParameters.getBackpressureTimeout());
+        long start = System.nanoTime();
+        message.setReplyTo(Constants.DIRECT_REPLY_TO);
+        var contentType = resolveContentType(message, exchangeName);
+        var body = prepareBody(message, contentType);
+        var properties = prepareProperties(message, contentType);
+        boolean success = false;
+        try {
+            tracker.publish(exchangeName, rkey, properties, body, timeout, reply);
+            success = true;
+            log.debug("[->MQ] request is sent: {} to {}, routingKey={}", message, exchangeName, rkey);
+        } finally {
+            metrics.recordPublish(exchangeName, body != null ? body.length : 0, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Wait for the publishing connection to be unblocked, as the blocked policy says
+     * @throws RabbitBlockedException if the connection is blocked and the policy is FAIL_FAST, or it is not
+     * unblocked within the backpressure timeout
+     */
+    private void awaitUnblocked() {
+        if (!blockedTracker.isBlocked())
+            return;
+        if (rabbitParameters.getBlockedPolicy() == BlockedPolicy.FAIL_FAST)
+            throw new RabbitBlockedException("Publishing connection is blocked by the broker: " + blockedTracker.getReason());
+        long timeout = rabbitParameters.getBackpressureTimeout();
+        try {
+            if (!blockedTracker.awaitUnblocked(timeout))
+                throw new RabbitBlockedException("Publishing connection is not unblocked within " + timeout + " ms: " + blockedTracker.getReason());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RabbitException("Interrupted while waiting for the publishing connection to be unblocked", ex);
+        }
+    }
+
+    /**
+     * Wait for the publish rate limit of the exchange, if the limit is set
+     * @param exchangeName exchange
+     * @param count number of messages to publish
+     * @param timeout maximum wait, ms
+     * @throws RabbitBlockedException if the messages could not be published within the timeout
+     */
+    private void throttle(String exchangeName, int count, long timeout) {
+        int rate = rabbitParameters.getPublishRateLimit();
+        if (rate <= 0)
+            return;
+        var limiter = rateLimiters.computeIfAbsent(exchangeName, key -> new TokenBucketRateLimiter(rate));
+        long waited;
+        try {
+            waited = limiter.acquire(count, timeout);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RabbitException("Interrupted while waiting for the publish rate limit", ex);
+        }
+        if (waited < 0)
+            throw new RabbitBlockedException("Publish rate limit of " + rate + " messages/s to " + exchangeName + " is exceeded beyond " + timeout + " ms");
+        if (waited > 0) {
+            metrics.recordThrottled(exchangeName, waited);
+        }
+    }
+
+    /**
+     * Buffer the message if the policy is BUFFER and the connection is blocked, or earlier messages are still
+     * buffered, so that messages are published in order
+     * @return true if the message is buffered
+     * @throws RabbitBlockedException if the buffer is full
+     */
+    private boolean bufferWhileBlocked(Message message, String exchangeName, String rkey, CompletableFuture<Message> confirm) {
+        if (rabbitParameters.getBlockedPolicy() != BlockedPolicy.BUFFER)
+            return false;
+        synchronized (buffer) {
+            boolean blocked = blockedTracker.isBlocked();
+            if (!blocked && buffer.isEmpty())
+                return false;
+            if (buffer.size() >= rabbitParameters.getBlockedBufferSize())
+                throw new RabbitBlockedException("Publishing connection is blocked and the buffer is full: " + buffer.size() + " messages");
+            buffer.addLast(new BufferedMessage(message, exchangeName, rkey, confirm));
+            log.debug("[->MQ] message is buffered while the connection is blocked: {}", message);
+            if (!blocked) {
+                startFlush();
             }
         }
+        return true;
+    }
+
+    /**
+     * Start publishing the buffered messages on a separate thread, unless it is running already.
+     * Called when the connection is unblocked: connection threads must not wait for the channel pool
+     */
+    private void startFlush() {
+        synchronized (buffer) {
+            if (flushing || buffer.isEmpty())
+                return;
+            flushing = true;
+        }
+        var thread = new Thread(this::flushBuffered, "rabbit-publisher-flush");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void flushBuffered() {
+        int count = 0;
+        while (true) {
+            BufferedMessage item;
+            synchronized (buffer) {
+                item = buffer.peekFirst();
+                if (item == null || blockedTracker.isBlocked()) {
+                    flushing = false;
+                    log.debug("[->MQ] {} buffered messages are flushed, {} left", count, buffer.size());
+                    return;
+                }
+            }
+            // the message stays in the buffer while it is published, so that new messages are buffered after it
+            try {
+                throttle(item.exchangeName, 1, Long.MAX_VALUE);
+                publishToBroker(item.message, item.exchangeName, item.routingKey, item.confirm);
+            } catch (Exception ex) {
+                item.fail(ex);
+            }
+            synchronized (buffer) {
+                if (buffer.peekFirst() == item) {
+                    buffer.pollFirst();
+                }
+            }
+            count++;
+        }
+    }
+
+    private void failBuffered() {
+        List<BufferedMessage> dropped;
+        synchronized (buffer) {
+            dropped = new ArrayList<>(buffer);
+            buffer.clear();
+        }
+        if (!dropped.isEmpty()) {
+            log.warn("[->MQ] {} buffered messages are dropped: the publisher is closed", dropped.size());
+        }
+        for (BufferedMessage item : dropped) {
+            item.fail(new RabbitException("Publisher is closed before the buffered message is sent"));
+        }
+    }
+
+    /**
+     * @return tracker of the requests; a new one with its own channel if the previous channel is gone for good
+     */
+    private synchronized DirectReplyTracker replyTracker() throws IOException {
+        if (replyTracker != null && replyTracker.isUsable())
+            return replyTracker;
         if (connection == null) {
-            connection = connectionFactory.newConnection();
+            initConnection();
+        }
+        if (replyTimer == null) {
+            replyTimer = new HashedWheelTimer("rabbit-reply-timer");
+        }
+        if (replyTracker != null) {
+            replyTracker.close();
+        }
+        var channel = connection.createChannel();
+        if (channel == null)
+            throw new RabbitException("Couldn't open a reply channel: channel limit is reached");
+        replyTracker = new DirectReplyTracker(channel, replyTimer);
+        log.debug("[MQ] reply channel #{} opened", channel.getChannelNumber());
+        return replyTracker;
+    }
+
+    /**
+     * Deliver the message to the loopback transport, if it is set and has a local handler for the message.
+     * Only events published to the events exchange are offered: see {@link LoopbackTransport#deliver}.
+     * The message is copied before the message id, the sender id and the loopback id are set, so the caller's
+     * message is never modified
+     * @param message message to send
+     * @param exchangeName exchange
+     * @param routingKey routing key
+     * @return message to publish to the broker: the message itself if it is not delivered locally, its marked copy
+     * if it is delivered locally and forwarded; null if it is delivered locally only
+     */
+    private Message deliverLocally(Message message, String exchangeName, String routingKey) {
+        if (loopback == null || !exchangeName.equals(rabbitParameters.getEventsExchange()))
+            return message;
+        var copy = message.copy();
+        if (copy.getMessageId() == null) {
+            copy.setMessageId(UUID.randomUUID().toString());
+        }
+        if (copy.getSenderId() == null) {
+            copy.setSenderId(rabbitParameters.getSenderId());
+        }
+        if (!loopback.deliver(copy, routingKey))
+            return message;
+        if (!loopback.isForwardToBroker()) {
+            log.debug("[->LOOPBACK] message is delivered locally: {}", copy);
+            return null;
+        }
+        copy.addParam(Constants.HEADER_LOOPBACK_ID, loopback.getMarker());
+        return copy;
+    }
+
+    /**
+     * @param channel channel of the confirm pool
+     * @return confirm tracker of the channel
+     * @throws IOException if the channel is closed: its tracker is removed on shutdown and restored on recovery
+     */
+    private PublisherConfirmTracker trackerOf(Channel channel) throws IOException {
+        var tracker = confirmTrackers.get(channel);
+        if (tracker == null)
+            throw new IOException("Publisher channel #" + channel.getChannelNumber() + " is closed");
+        return tracker;
+    }
+
+    /**
+     * Put a new channel of the confirm pool to confirm mode and start tracking its confirms
+     * @param channel new channel
+     */
+    private void initChannel(Channel channel) throws IOException {
+        channel.confirmSelect();
+        var tracker = new PublisherConfirmTracker();
+        channel.addConfirmListener(tracker);
+        channel.addShutdownListener(cause -> {
+            confirmTrackers.remove(channel);
+            tracker.shutdownCompleted(cause);
+        });
+        if (channel instanceof Recoverable recoverable) {
+            // a recovered channel is back in confirm mode with publish sequence numbers restarted
+            recoverable.addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recovered) {
+                    confirmTrackers.put(channel, tracker);
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recovered) {
+                }
+            });
+        }
+        confirmTrackers.put(channel, tracker);
+    }
+
+    private Message buildEvent(String name, Object payload) {
+        if (rabbitParameters.getEventsExchange() == null) {
+            throw new RabbitException("Event message cannot be sent: event exchange name is not specified");
+        }
+        return Message.builder()
+                .name(name)
+                .payload(payload)
+                .payloadClass(RabbitUtils.extractPayloadClass(payload))
+                .senderId(rabbitParameters.getSenderId())
+                .typeMessage(MessageType.EVENT)
+                .build();
+    }
+
+    private Message buildTask(String name, Object payload, String routingKey) {
+        if (rabbitParameters.getTasksExchange() == null) {
+            throw new RabbitException("Task message cannot be sent: event exchange name is not specified");
+        }
+        return Message.builder()
+                .name(name)
+                .payload(payload)
+                .payloadClass(RabbitUtils.extractPayloadClass(payload))
+                .senderId(rabbitParameters.getSenderId())
+                .typeMessage(MessageType.TASK)
+                .routingKey(routingKey)
+                .build();
+    }
+
+    /**
+     * Configured content types must be produced by the converter: a payload serialized to another format would be
+     * labelled with a content type it doesn't have
+     */
+    private void checkContentTypes() {
+        if (rabbitParameters == null || rabbitPayloadConverter == null)
+            return;
+        checkContentTypes(rabbitParameters.getExchangeContentTypes(), "exchange");
+        checkContentTypes(rabbitParameters.getMessageContentTypes(), "message");
+    }
+
+    private void checkContentTypes(Map<String, String> contentTypes, String kind) {
+        if (contentTypes == null)
+            return;
+        contentTypes.forEach((key, contentType) -> {
+            if (!rabbitPayloadConverter.supports(contentType)) {
+                throw new RabbitException("Content type " + contentType + " of " + kind + " " + key
+                        + " is not produced by the payload converter " + rabbitPayloadConverter.getClass().getSimpleName()
+                        + " (" + rabbitPayloadConverter.getContentType() + "); use a converter selecting codecs by content type");
+            }
+        });
+    }
+
+    /**
+     * Resolve the content type of the message: the one set on the message, then the one configured for the message
+     * name, then the one configured for the exchange, then the default content type of the payload converter.
+     * A content type set on the message which the converter doesn't produce (e.g. of a received message) is replaced
+     * by the content type of the converter, unless the payload is a raw body: it is published as is, so its content
+     * type is kept. The resolved content type is set to the message.
+     * @param message message to send
+     * @param exchangeName exchange
+     * @return content type
+     */
+    private String resolveContentType(Message message, String exchangeName) {
+        if (rabbitPayloadConverter == null)
+            throw new RabbitException("Payload converter is missing");
+        String contentType = message.getContentType();
+        if (contentType != null && !hasRawBody(message) && !rabbitPayloadConverter.supports(contentType)) {
+            log.debug("[->MQ] content type {} is not produced by the payload converter; {} is used", contentType, rabbitPayloadConverter.getContentType());
+            contentType = null;
+        }
+        if (contentType == null && message.getName() != null) {
+            contentType = lookup(rabbitParameters.getMessageContentTypes(), message.getName());
+        }
+        if (contentType == null) {
+            contentType = lookup(rabbitParameters.getExchangeContentTypes(), exchangeName);
+        }
+        if (contentType == null) {
+            contentType = rabbitPayloadConverter.getContentType();
+        }
+        message.setContentType(contentType);
+        return contentType;
+    }
+
+    /**
+     * Prepare the properties of the message, in the protocol version of the parameters unless the message has its own
+     */
+    private AMQP.BasicProperties prepareProperties(Message message, String contentType) {
+        if (message.getProtocolVersion() == null) {
+            message.setProtocolVersion(rabbitParameters.getProtocolVersion());
         }
+        return RabbitUtils.prepareProperties(message, rabbitParameters.getSenderId(), contentType, message.getContentEncoding());
     }
 
-    private byte[] prepareBody(Message message) {
+    private static String lookup(Map<String, String> contentTypes, String key) {
+        if (contentTypes == null || contentTypes.isEmpty())
+            return null;
+        var contentType = contentTypes.get(key);
+        return contentType != null ? contentType : contentTypes.get(key.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return true if the payload is an already serialized body, e.g. of a received message: it is published without
+     * serialization
+     */
+    private static boolean hasRawBody(Message message) {
+        if (message instanceof DeliveryMessage delivery && delivery.isBodyPayload())
+            return true;
+        return message.getPayload() instanceof byte[];
+    }
+
+    /**
+     * Serialize and compress the payload. A received body is published as received, with its content encoding;
+     * other raw bodies are compressed only
+     */
+    private byte[] prepareBody(Message message, String contentType) {
         if (rabbitPayloadConverter == null)
             throw new RabbitException("Payload converter is missing");
+        if (message instanceof DeliveryMessage delivery && delivery.isBodyPayload()) {
+            message.setContentEncoding(delivery.getProperties().getContentEncoding());
+            return delivery.getBody();
+        }
         byte[] data = null;
-        if (message.getPayload() != null) {
-            data = rabbitPayloadConverter.serializePayload(message.getPayload());
+        Object payload = message.getPayload();
+        if (payload instanceof byte[] raw) {
+            data = raw;
+        } else if (payload != null) {
+            data = rabbitPayloadConverter.serializePayload(payload, contentType);
         }
+        return compressBody(message, data);
+    }
+
+    /**
+     * Compress the body if compression is enabled and the body reaches the threshold.
+     * The content encoding of the message is set accordingly
+     * @param message message to send
+     * @param data serialized payload
+     * @return body to publish
+     */
+    private byte[] compressBody(Message message, byte[] data) {
+        var encoding = rabbitParameters.getCompression();
+        if (encoding == null || encoding.isEmpty() || data == null || data.length < rabbitParameters.getCompressionThreshold()) {
+            message.setContentEncoding(null);
+            return data;
+        }
+        var compressor = PayloadCompressors.get(encoding);
+        if (compressor == null)
+            throw new RabbitException("Unknown payload compression: " + encoding);
+        try {
+            data = compressor.compress(data);
+        } catch (IOException ex) {
+            throw new RabbitException("Exception on payload compression", ex);
+        }
+        message.setContentEncoding(compressor.getEncoding());
         return data;
     }
+
+    private static class BufferedMessage {
+        private final Message message;
+        private final String exchangeName;
+        private final String routingKey;
+        private final CompletableFuture<Message> confirm;
+
+        private BufferedMessage(Message message, String exchangeName, String routingKey, CompletableFuture<Message> confirm) {
+            this.message = message;
+            this.exchangeName = exchangeName;
+            this.routingKey = routingKey;
+            this.confirm = confirm;
+        }
+
+        private void fail(Exception ex) {
+            if (confirm != null) {
+                confirm.completeExceptionally(ex instanceof RabbitException ? ex : new RabbitException("Exception on sending MQ message", ex));
+            } else {
+                log.error("[->MQ] buffered message is not sent: {}", message, ex);
+            }
+        }
+    }
 }
@@ -2,6 +2,7 @@ package org.powerimo.rabbitmq;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import lombok.RequiredArgsConstructor;
 
 import java.nio.charset.StandardCharsets;
@@ -11,6 +12,20 @@ public class StandardRabbitPayloadConverter implements RabbitPayloadConverter {
     private final ObjectMapper objectMapper;
 
     public <T> T extractPayload(Message message, Class<T> cls) {
+        return extractPayload(message, cls, objectMapper.readerFor(cls));
+    }
+
+    /**
+     * The Jackson reader of the class is built once and kept by the payload reader
+     */
+    @Override
+    public <T> PayloadReader<T> readerFor(Class<T> cls) {
+        ObjectReader reader = objectMapper.readerFor(cls);
+        return message -> extractPayload(message, cls, reader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T extractPayload(Message message, Class<T> cls, ObjectReader reader) {
         if (message == null)
             throw new RabbitException("message is null");
         if (message.getPayload() == null)
@@ -18,24 +33,32 @@ public class StandardRabbitPayloadConverter implements RabbitPayloadConverter {
         if (cls.isInstance(message.getPayload()))
             return (T) message.getPayload();
 
+        // raw body of a received message is parsed directly, without decoding it to a string first
+        try {
+            if (message.getPayload() instanceof byte[]) {
+                if (cls == String.class)
+                    return (T) message.getPayloadAsString();
+                byte[] arr = (byte[]) message.getPayload();
+                return reader.readValue(arr);
+            }
+        } catch (Exception e) {
+            throw new RabbitException("Exception on converting JSON to payload class", e);
+        }
+
         try {
             if (message.getPayload() instanceof String) {
-                return objectMapper.readValue((String) message.getPayload(), cls);
+                return reader.readValue((String) message.getPayload());
             }
         } catch (JsonProcessingException ex) {
             throw new RabbitException("Exception on converting JSON to payload class", ex);
         }
 
+        // object payload of a message delivered in-process (loopback)
         try {
-            var aCls = byte[].class;
-            if (aCls.isInstance(message.getPayload())) {
-                byte[] arr = (byte[]) message.getPayload();
-                return objectMapper.readValue(arr, cls);
-            }
-        } catch (Exception e) {
-            throw new RabbitException("Exception on converting JSON to payload class", e);
+            return objectMapper.convertValue(message.getPayload(), cls);
+        } catch (IllegalArgumentException ex) {
+            throw new RabbitException("Couldn't extract payload as class " + cls.getName(), ex);
         }
-        throw new RabbitException("Couldn't extract payload as class " + cls.getName());
     }
 
     public byte[] serializePayload(Object obj) {
@@ -1,18 +1,69 @@
 package org.powerimo.rabbitmq;
 
 import com.rabbitmq.client.*;
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Slf4j
 @Setter
 @Getter
 public class StandardRabbitQueueListener implements RabbitQueueListener {
     private RabbitMessageHandler rabbitMessageHandler;
-    private Channel mqChannel;
+    private RabbitConnectionManager connectionManager;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean ownedConnectionManager;
+    private Connection mqConnection;
+    private final List<Channel> mqChannels = new CopyOnWriteArrayList<>();
+    private Executor handlerExecutor;
+    private Function<Message, Object> orderingKeyExtractor;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ExecutorService ownedHandlerExecutor;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ScheduledExecutorService batchScheduler;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ExecutorService batchFlushExecutor;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private StripedExecutor batchFlushLanes;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Channel retryChannel;
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private RabbitMetrics metrics = RabbitMetrics.NOOP;
+    private LoopbackTransport loopback;
+    private MessageDeduplicator deduplicator;
+    private RetryPolicy retryPolicy;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private StandardMessageDeduplicator ownedDeduplicator;
     private ServiceStatus serviceStatus = ServiceStatus.STOPPED;
     private boolean showConnectionInfoOnStartup = true;
     private final RabbitParameters rabbitParameters;
@@ -37,21 +88,66 @@ public class StandardRabbitQueueListener implements RabbitQueueListener {
         }
 
         showConnectionInfo();
-        ConnectionFactory connectionFactory = new ConnectionFactory();
         try {
-            connectionFactory.setUri(getURL());
-            if (rabbitParameters.getUser() != null) {
-                connectionFactory.setUsername(rabbitParameters.getUser());
-                connectionFactory.setPassword(rabbitParameters.getPassword());
-            }
-            Connection mqConnection = connectionFactory.newConnection();
-            mqChannel = mqConnection.createChannel();
-            mqChannel.basicConsume(rabbitParameters.getQueue(), new MQConsumer(mqChannel, rabbitMessageHandler));
+            Executor executor = resolveHandlerExecutor();
+            Function<Message, Object> keyExtractor = resolveOrderingKeyExtractor();
+            StripedExecutor stripedExecutor = null;
+            if (keyExtractor != null) {
+                if (rabbitParameters.getConcurrency() > 1) {
+                    // deliveries of different channels would enter the lanes in no particular order
+                    throw new RabbitException("Ordering key requires a single consumer channel, but concurrency is "
+                            + rabbitParameters.getConcurrency() + ": use ordering lanes to handle messages in parallel");
+                }
+                int lanes = rabbitParameters.getOrderingLanes() > 0 ? rabbitParameters.getOrderingLanes() : Runtime.getRuntime().availableProcessors();
+                if (executor == null) {
+                    ownedHandlerExecutor = Executors.newFixedThreadPool(lanes);
+                    executor = ownedHandlerExecutor;
+                }
+                // deliveries dropped with a rejected lane are requeued by their consumers
+                stripedExecutor = new StripedExecutor(lanes, executor, task -> ((QueuedTask) task).requeue());
+                log.info("RabbitListener handles messages in order of the key: {}; lanes: {}", rabbitParameters.getOrderingKey(), lanes);
+            }
+            if (rabbitParameters.getPrefetch() > 0 && rabbitParameters.getPrefetch() < rabbitParameters.getBatchSize()) {
+                log.warn("RabbitListener prefetch ({}) is less than batch size ({}): batches will be flushed by timeout",
+                        rabbitParameters.getPrefetch(), rabbitParameters.getBatchSize());
+            }
+            if (loopback != null && loopback.getLocalQueue() == null) {
+                loopback.setLocalQueue(rabbitParameters.getQueue());
+            }
+            var retry = retryPolicy != null ? retryPolicy : RetryPolicy.of(rabbitParameters);
+            var settings = new ConsumerSettings(rabbitMessageHandler, executor, stripedExecutor, keyExtractor,
+                    this::batchScheduler, this::batchFlushLanes, Math.max(1, rabbitParameters.getBatchSize()), rabbitParameters.getBatchTimeout(),
+                    metrics != null ? metrics : RabbitMetrics.NOOP, inFlight, loopback, resolveDeduplicator(), retry,
+                    this::retryChannel, rabbitParameters.getPublisherConfirmTimeout());
+            inFlight.set(0);
+            settings.metrics.bindListener(rabbitParameters.getQueue(), mqChannels::size, inFlight::get);
+            if (connectionManager == null) {
+                connectionManager = new RabbitConnectionManager(rabbitParameters);
+                ownedConnectionManager = true;
+            }
+            // channels, prefetch and consumers are restored by the connection recovery
+            mqConnection = connectionManager.getConsumeConnection();
+            if (retry != null) {
+                declareRetryTopology(retry);
+            }
+            int concurrency = Math.max(1, rabbitParameters.getConcurrency());
+            for (int i = 0; i < concurrency; i++) {
+                Channel channel = mqConnection.createChannel();
+                if (rabbitParameters.getPrefetch() > 0) {
+                    channel.basicQos(rabbitParameters.getPrefetch());
+                }
+                channel.basicConsume(rabbitParameters.getQueue(), new MQConsumer(channel, i, settings));
+                mqChannels.add(channel);
+            }
             serviceStatus = ServiceStatus.RUNNING;
-            log.info("RabbitListener started on listening queue: {}", this.rabbitParameters.getQueue());
+            log.info("RabbitListener started on listening queue: {}; consumers: {}; prefetch: {}; handlers run on: {}",
+                    this.rabbitParameters.getQueue(), concurrency, rabbitParameters.getPrefetch(),
+                    executor == null ? HandlerExecutionMode.DISPATCH_THREAD : executor.getClass().getSimpleName());
         } catch (RabbitException ex) {
+            closeConnection();
             throw ex;
         } catch (Exception ex) {
+            closeConnection();
             throw new RabbitException("RabbitListener is not started", ex);
         }
     }
@@ -64,27 +160,81 @@ public class StandardRabbitQueueListener implements RabbitQueueListener {
                 log.debug("Service is already stopped. Exit.");
                 return;
             }
-            if (mqChannel != null && mqChannel.isOpen()) {
-                mqChannel.close();
-            }
+            closeConnection();
             serviceStatus = ServiceStatus.STOPPED;
         } catch (Exception ex) {
             throw new RabbitException("RabbitListener stopping exception", ex);
         }
     }
 
-    private String getURL() {
-        if (rabbitParameters.getUrl() != null)
-            return rabbitParameters.getUrl();
-        if (rabbitParameters.getHost() == null) {
-            throw new RabbitException("MQ configuration exception: both url and host are empty");
+    private void closeConnection() {
+        for (Channel channel : mqChannels) {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                } else {
+                    // a channel of a recovering connection would resume its consumer after the recovery
+                    channel.abort();
+                }
+            } catch (Exception ex) {
+                log.debug("Exception on closing listener channel", ex);
+            }
         }
-        String result;
-        result = "amqp://" + rabbitParameters.getHost()+ ":" + rabbitParameters.getPort();
-        if (rabbitParameters.getVirtualHost() != null && !rabbitParameters.getVirtualHost().isEmpty()) {
-            result = result + "/" + rabbitParameters.getVirtualHost();
+        mqChannels.clear();
+        mqConnection = null;
+        synchronized (this) {
+            if (retryChannel != null) {
+                try {
+                    retryChannel.abort();
+                } catch (Exception ex) {
+                    log.debug("Exception on closing retry channel", ex);
+                }
+                retryChannel = null;
+            }
+        }
+        if (ownedConnectionManager) {
+            connectionManager.close();
+            connectionManager = null;
+            ownedConnectionManager = false;
+        }
+        if (ownedHandlerExecutor != null) {
+            ownedHandlerExecutor.shutdown();
+            ownedHandlerExecutor = null;
         }
-        return result;
+        synchronized (this) {
+            if (batchScheduler != null) {
+                batchScheduler.shutdownNow();
+                batchScheduler = null;
+            }
+            if (batchFlushExecutor != null) {
+                batchFlushExecutor.shutdown();
+                batchFlushExecutor = null;
+                batchFlushLanes = null;
+            }
+        }
+        if (ownedDeduplicator != null) {
+            ownedDeduplicator.close();
+            ownedDeduplicator = null;
+        }
+    }
+
+    /**
+     * @return number of deliveries received but not acked or rejected yet
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * Reactive view of the listener queue: subscriptions consume the queue of the listener parameters on the
+     * connection manager of the listener, or on their own one if the listener has none yet. Messages are settled by
+     * the subscriber, not by the message handler
+     * @return publisher of the received messages
+     */
+    public RabbitFlowPublisher asPublisher() {
+        var publisher = new RabbitFlowPublisher(rabbitParameters, connectionManager);
+        publisher.setMetrics(metrics != null ? metrics : RabbitMetrics.NOOP);
+        return publisher;
     }
 
     @Override
@@ -106,49 +256,553 @@ public class StandardRabbitQueueListener implements RabbitQueueListener {
         log.info("RabbitMQ queue used: {}", rabbitParameters.getQueue());
     }
 
+    private Executor resolveHandlerExecutor() {
+        if (handlerExecutor != null)
+            return handlerExecutor;
+        switch (rabbitParameters.getHandlerExecutionMode()) {
+            case VIRTUAL_THREAD:
+                ownedHandlerExecutor = RabbitUtils.newVirtualThreadPerTaskExecutor();
+                return ownedHandlerExecutor;
+            case EXECUTOR:
+                throw new RabbitException("Handler execution mode is EXECUTOR, but the handler executor is not set");
+            default:
+                return null;
+        }
+    }
+
+    private void declareRetryTopology(RetryPolicy retry) throws IOException, TimeoutException {
+        try (Channel channel = mqConnection.createChannel()) {
+            retry.declareTopology(channel);
+        }
+        log.info("RabbitListener retries failed messages: max attempts: {}; delays: {}..{} ms; parking queue: {}",
+                retry.getMaxAttempts(), retry.getInitialDelay(), retry.getMaxDelay(), retry.getParkingQueue());
+    }
+
+    /**
+     * @return confirm-mode channel of the publish connection to republish failed deliveries on; opened with the
+     * first retry
+     */
+    private synchronized Channel retryChannel() {
+        if (retryChannel == null || !retryChannel.isOpen()) {
+            try {
+                var channel = connectionManager.getPublishConnection().createChannel();
+                if (channel == null)
+                    throw new RabbitException("Couldn't open a retry channel: channel limit is reached");
+                channel.confirmSelect();
+                retryChannel = channel;
+            } catch (IOException ex) {
+                throw new RabbitException("Couldn't open a retry channel", ex);
+            }
+        }
+        return retryChannel;
+    }
+
+    /**
+     * @return timer of the batch timeouts; created with the first batch, so listeners without batch handlers
+     * don't start it
+     */
+    private synchronized ScheduledExecutorService batchScheduler() {
+        if (batchScheduler == null) {
+            batchScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "rabbit-batch-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return batchScheduler;
+    }
+
+    /**
+     * @return lanes running the timed-out batches of the consumers without a handler executor, one lane per
+     * consumer: the timer thread never runs handlers, and a slow batch delays only its own consumer
+     */
+    private synchronized StripedExecutor batchFlushLanes() {
+        if (batchFlushLanes == null) {
+            batchFlushExecutor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "rabbit-batch-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            batchFlushLanes = new StripedExecutor(Math.max(1, rabbitParameters.getConcurrency()), batchFlushExecutor);
+        }
+        return batchFlushLanes;
+    }
+
+    private MessageDeduplicator resolveDeduplicator() {
+        if (deduplicator != null)
+            return deduplicator;
+        if (rabbitParameters.getDeduplicationCapacity() <= 0)
+            return null;
+        var file = rabbitParameters.getDeduplicationFile();
+        ownedDeduplicator = new StandardMessageDeduplicator(rabbitParameters.getDeduplicationCapacity(),
+                rabbitParameters.getDeduplicationWindow(), file != null ? Path.of(file) : null);
+        log.info("RabbitListener acks duplicates without handling; remembered message ids: {}, window: {} ms",
+                ownedDeduplicator.getCapacity(), ownedDeduplicator.getWindow());
+        return ownedDeduplicator;
+    }
+
+    private Function<Message, Object> resolveOrderingKeyExtractor() {
+        if (orderingKeyExtractor != null)
+            return orderingKeyExtractor;
+        if (rabbitParameters.getOrderingKey() == null)
+            return null;
+        return rabbitParameters.getOrderingKey().getExtractor();
+    }
+
+    /**
+     * Settings shared by the consumers of a started listener
+     */
+    @RequiredArgsConstructor
+    private static class ConsumerSettings {
+        private final RabbitMessageHandler handler;
+        private final Executor executor;
+        private final StripedExecutor stripedExecutor;
+        private final Function<Message, Object> keyExtractor;
+        private final Supplier<ScheduledExecutorService> batchScheduler;
+        private final Supplier<StripedExecutor> batchFlushLanes;
+        private final int batchSize;
+        private final long batchTimeout;
+        private final RabbitMetrics metrics;
+        private final AtomicInteger inFlight;
+        private final LoopbackTransport loopback;
+        private final MessageDeduplicator deduplicator;
+        private final RetryPolicy retryPolicy;
+        private final Supplier<Channel> retryChannel;
+        private final long confirmTimeout;
+    }
+
+    /**
+     * Consumer of a single channel. Single messages are acked by their own delivery tags, so handlers completed
+     * out of the delivery order (on an executor or in different ordering lanes) never ack other messages.
+     * A batch is acked with multiple=true only when no older delivery of the channel is still unsettled.
+     * <p>
+     * Without a handler executor, handlers of a consumer run one at a time: deliveries are handled on the dispatch
+     * thread of the channel and timed-out batches on the flush lane of the consumer, both under the dispatch lock.
+     */
     private static class MQConsumer extends DefaultConsumer {
         private final Channel _channel;
+        private final int _index;
         private final RabbitMessageHandler _handler;
-        public MQConsumer(Channel channel, RabbitMessageHandler rabbitMessageHandler) {
+        private final ConsumerSettings _settings;
+        private final Object _ackLock = new Object();
+        private final Object _dispatchLock = new Object();
+        // delivery tag -> System.nanoTime() of the delivery
+        private final TreeMap<Long, Long> _unsettled = new TreeMap<>();
+        private final Map<BatchCommandHandler, PendingBatch> _batches = new IdentityHashMap<>();
+
+        public MQConsumer(Channel channel, int index, ConsumerSettings settings) {
             super(channel);
             _channel = channel;
-            _handler = rabbitMessageHandler;
+            _index = index;
+            _handler = settings.handler;
+            _settings = settings;
         }
 
         @Override
         public void handleDelivery(String s, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+            if (_settings.executor == null) {
+                synchronized (_dispatchLock) {
+                    deliver(s, envelope, basicProperties, bytes);
+                }
+            } else {
+                deliver(s, envelope, basicProperties, bytes);
+            }
+        }
+
+        private void deliver(String s, Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) {
+            long deliveryTag = envelope.getDeliveryTag();
+            synchronized (_ackLock) {
+                _unsettled.put(deliveryTag, System.nanoTime());
+            }
+            _settings.inFlight.incrementAndGet();
+            // checked before the message is read: a redelivery storm costs a lookup per delivery
+            if (_settings.deduplicator != null && _settings.deduplicator.isProcessed(basicProperties.getMessageId())) {
+                _settings.metrics.recordDuplicate();
+                log.debug("[MQ] message is already processed and will be acked: messageId={}", basicProperties.getMessageId());
+                ack(deliveryTag);
+                return;
+            }
             Message message;
             try {
                 message = RabbitUtils.extractMessage(s, envelope, basicProperties, bytes);
             } catch (Exception ex) {
-                _channel.basicReject(envelope.getDeliveryTag(), false);
+                _settings.metrics.recordParseFailure();
+                reject(deliveryTag, false);
                 log.error("[MQ] Exception on parsing message. Message was rejected. Source text=({}), Envelope=({}), basicProperties=({}), bytes[]=({})", s, envelope, basicProperties, bytes);
                 return;
             }
 
+            if (_settings.loopback != null && _settings.loopback.isDeliveredLocally(message)) {
+                log.trace("[MQ] message is already delivered by loopback: {}", message);
+                ack(deliveryTag);
+                return;
+            }
+
+            BatchCommandHandler batchHandler = _handler != null ? _handler.getBatchCommandHandler(message) : null;
+            if (batchHandler != null) {
+                addToBatch(batchHandler, message, deliveryTag);
+                return;
+            }
+
+            if (_settings.executor == null) {
+                processMessage(message, deliveryTag);
+                return;
+            }
+            try {
+                Runnable task = new DeliveryTask(this, message, deliveryTag);
+                if (_settings.stripedExecutor != null) {
+                    _settings.stripedExecutor.execute(_settings.keyExtractor.apply(message), task);
+                } else {
+                    _settings.executor.execute(task);
+                }
+            } catch (RejectedExecutionException ex) {
+                log.warn("[MQ] Handler executor rejected the message. Message will be rejected with requeue. Message={}", message, ex);
+                reject(deliveryTag, true);
+            }
+        }
+
+        private void processMessage(Message message, long deliveryTag) {
             try {
                 if (_handler != null) {
                     _handler.handleMessage(message);
-                    _channel.basicAck(envelope.getDeliveryTag(), false);
+                    processed(message);
+                    ack(deliveryTag);
                 } else {
                     log.warn("The MQ message was successfully delivered but there is no Message handler for processing (please set it by RabbitListener.setMessageHandler). The message will be rejected. ({})", message);
-                    _channel.basicReject(envelope.getDeliveryTag(), false);
+                    reject(deliveryTag, false);
                 }
             } catch (Exception ex1) {
                 if (_handler == null) {
                     log.error("Exception on handling message. Message will be rejected and pushed to DLQ. Message={}", message, ex1);
                 } else {
-                    ExceptionResolution resolution = _handler.handleException(message, ex1);
-                    if (resolution == ExceptionResolution.REQUEUE) {
-                        log.error("Exception on handling message. Message will rejected with requeue. Message={}", message, ex1);
+                    resolveException(message, deliveryTag, ex1);
+                }
+            }
+        }
+
+        private void processed(Message message) {
+            if (_settings.deduplicator != null) {
+                _settings.deduplicator.markProcessed(message.getMessageId());
+            }
+        }
+
+        private void resolveException(Message message, long deliveryTag, Throwable ex) {
+            ExceptionResolution resolution;
+            if (ex instanceof ResolvedHandlingException resolved) {
+                resolution = resolved.getResolution();
+                ex = resolved.getCause();
+            } else {
+                resolution = _handler.handleException(message, ex);
+            }
+            if (resolution == ExceptionResolution.REQUEUE) {
+                log.error("Exception on handling message. Message will rejected with requeue. Message={}", message, ex);
+                reject(deliveryTag, true);
+            } else if (resolution == ExceptionResolution.RETRY && _settings.retryPolicy != null && message instanceof DeliveryMessage) {
+                retry((DeliveryMessage) message, deliveryTag, ex);
+            } else {
+                if (resolution == ExceptionResolution.RETRY) {
+                    log.warn("Retries are not configured (retryMaxAttempts is 0). Message will be rejected. Message={}", message);
+                }
+                log.error("Exception on handling message. Message will be rejected and pushed to DLQ. Message={}", message, ex);
+                reject(deliveryTag, false);
+            }
+        }
+
+        private void addToBatch(BatchCommandHandler batchHandler, Message message, long deliveryTag) {
+            PendingBatch full = null;
+            synchronized (_batches) {
+                PendingBatch batch = _batches.get(batchHandler);
+                if (batch == null) {
+                    batch = new PendingBatch(_settings.batchSize);
+                    _batches.put(batchHandler, batch);
+                    if (_settings.batchSize > 1) {
+                        PendingBatch scheduled = batch;
+                        batch.timer = _settings.batchScheduler.get().schedule(() -> flushBatch(batchHandler, scheduled),
+                                _settings.batchTimeout, TimeUnit.MILLISECONDS);
+                    }
+                }
+                batch.add(message, deliveryTag);
+                if (batch.messages.size() >= _settings.batchSize) {
+                    _batches.remove(batchHandler);
+                    if (batch.timer != null) {
+                        batch.timer.cancel(false);
+                    }
+                    full = batch;
+                }
+            }
+            if (full != null) {
+                dispatchBatch(batchHandler, full, false);
+            }
+        }
+
+        private void flushBatch(BatchCommandHandler batchHandler, PendingBatch batch) {
+            synchronized (_batches) {
+                if (!_batches.remove(batchHandler, batch))
+                    return;
+            }
+            dispatchBatch(batchHandler, batch, true);
+        }
+
+        /**
+         * With an ordering key, batches of a handler run one after another in a single lane, whether they are
+         * full or flushed by the timer, so messages of the same key keep their order across batches
+         * @param timedOut true if the batch is flushed by the timer; otherwise it is full and dispatched on the
+         *                 dispatch thread
+         */
+        private void dispatchBatch(BatchCommandHandler batchHandler, PendingBatch batch, boolean timedOut) {
+            try {
+                if (_settings.stripedExecutor != null) {
+                    _settings.stripedExecutor.execute(batchHandler, new BatchTask(this, batch));
+                } else if (_settings.executor != null) {
+                    _settings.executor.execute(() -> processBatch(batch));
+                } else if (timedOut) {
+                    _settings.batchFlushLanes.get().execute(_index, () -> {
+                        synchronized (_dispatchLock) {
+                            processBatch(batch);
+                        }
+                    });
+                } else {
+                    processBatch(batch);
+                }
+            } catch (RejectedExecutionException ex) {
+                log.warn("[MQ] Handler executor rejected the batch. Messages will be rejected with requeue. Size={}", batch.messages.size(), ex);
+                for (int i = 0; i < batch.size(); i++) {
+                    reject(batch.tags[i], true);
+                }
+            }
+        }
+
+        private void processBatch(PendingBatch batch) {
+            try {
+                _handler.handleBatch(batch.messages);
+                for (Message message : batch.messages) {
+                    processed(message);
+                }
+                ackBatch(batch.tags, batch.size());
+            } catch (BatchHandlingException ex) {
+                var failures = ex.getFailures();
+                long[] handled = new long[batch.size()];
+                int handledCount = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    Message message = batch.messages.get(i);
+                    Throwable cause = failures.get(message);
+                    if (cause == null) {
+                        processed(message);
+                        handled[handledCount++] = batch.tags[i];
                     } else {
-                        log.error("Exception on handling message. Message will be rejected and pushed to DLQ. Message={}", message, ex1);
-                        _channel.basicReject(envelope.getDeliveryTag(), false);
+                        resolveException(message, batch.tags[i], cause);
                     }
                 }
+                ackBatch(handled, handledCount);
+            } catch (Exception ex) {
+                for (int i = 0; i < batch.size(); i++) {
+                    resolveException(batch.messages.get(i), batch.tags[i], ex);
+                }
             }
         }
 
+        /**
+         * Acks may come from handler threads, so they are serialized per channel. Tags of a closed channel
+         * are not valid anymore: the broker redelivers such messages.
+         */
+        private void ack(long deliveryTag) {
+            synchronized (_ackLock) {
+                settled(_unsettled.remove(deliveryTag), RabbitMetrics.Settlement.ACK);
+                if (!_channel.isOpen()) {
+                    log.warn("[MQ] Channel is closed. The message will be redelivered: deliveryTag={}", deliveryTag);
+                    return;
+                }
+                try {
+                    _channel.basicAck(deliveryTag, false);
+                } catch (IOException ex) {
+                    log.error("[MQ] Exception on acknowledging message: deliveryTag={}", deliveryTag, ex);
+                }
+            }
+        }
+
+        /**
+         * Ack delivery tags (in ascending order) of a batch with a single multiple-ack when possible
+         */
+        private void ackBatch(long[] deliveryTags, int count) {
+            if (count == 0)
+                return;
+            synchronized (_ackLock) {
+                for (int i = 0; i < count; i++) {
+                    settled(_unsettled.remove(deliveryTags[i]), RabbitMetrics.Settlement.ACK);
+                }
+                if (!_channel.isOpen()) {
+                    log.warn("[MQ] Channel is closed. The batch will be redelivered: size={}", count);
+                    return;
+                }
+                long last = deliveryTags[count - 1];
+                try {
+                    if (_unsettled.isEmpty() || _unsettled.firstKey() > last) {
+                        _channel.basicAck(last, true);
+                    } else {
+                        for (int i = 0; i < count; i++) {
+                            _channel.basicAck(deliveryTags[i], false);
+                        }
+                    }
+                } catch (IOException ex) {
+                    log.error("[MQ] Exception on acknowledging batch: lastDeliveryTag={}", last, ex);
+                }
+            }
+        }
+
+        private void settled(Long deliveredAt, RabbitMetrics.Settlement settlement) {
+            if (deliveredAt == null)
+                return;
+            _settings.inFlight.decrementAndGet();
+            _settings.metrics.recordSettlement(settlement, System.nanoTime() - deliveredAt);
+        }
+
+        /**
+         * Republish the failed delivery to its retry or parking queue, then ack it when the broker confirms the
+         * republished message. Republishing happens on the retry channel of the publish connection, shared by all
+         * consumers; the delivery is requeued if the message is returned, nacked or not confirmed in time
+         */
+        private void retry(DeliveryMessage message, long deliveryTag, Throwable ex) {
+            if (!_channel.isOpen()) {
+                synchronized (_ackLock) {
+                    settled(_unsettled.remove(deliveryTag), RabbitMetrics.Settlement.REQUEUE);
+                }
+                log.warn("[MQ] Channel is closed. The message will be redelivered: deliveryTag={}", deliveryTag);
+                return;
+            }
+            boolean parked;
+            try {
+                var channel = _settings.retryChannel.get();
+                synchronized (channel) {
+                    parked = _settings.retryPolicy.republish(channel, message, ex, _settings.confirmTimeout);
+                }
+            } catch (InterruptedException ex1) {
+                Thread.currentThread().interrupt();
+                log.error("[MQ] Interrupted while republishing message for retry. The message will be requeued: deliveryTag={}", deliveryTag, ex1);
+                reject(deliveryTag, true);
+                return;
+            } catch (Exception ex1) {
+                log.error("[MQ] Exception on republishing message for retry. The message will be requeued: deliveryTag={}", deliveryTag, ex1);
+                reject(deliveryTag, true);
+                return;
+            }
+            synchronized (_ackLock) {
+                var deliveredAt = _unsettled.remove(deliveryTag);
+                if (!_channel.isOpen()) {
+                    settled(deliveredAt, RabbitMetrics.Settlement.REQUEUE);
+                    log.warn("[MQ] Channel is closed after the message is republished for retry. The message will be redelivered too: deliveryTag={}", deliveryTag);
+                    return;
+                }
+                try {
+                    _channel.basicAck(deliveryTag, false);
+                    settled(deliveredAt, parked ? RabbitMetrics.Settlement.PARK : RabbitMetrics.Settlement.RETRY);
+                } catch (IOException ex1) {
+                    settled(deliveredAt, RabbitMetrics.Settlement.REQUEUE);
+                    log.error("[MQ] Exception on acknowledging message republished for retry: deliveryTag={}", deliveryTag, ex1);
+                    return;
+                }
+            }
+            if (parked) {
+                log.error("Exception on handling message. Attempts are exhausted, message is moved to the parking queue {}. Message={}",
+                        _settings.retryPolicy.getParkingQueue(), message, ex);
+            } else {
+                log.warn("Exception on handling message. Message will be retried: attempt={}. Message={}",
+                        RetryPolicy.getAttempt(message) + 1, message, ex);
+            }
+        }
+
+        private void reject(long deliveryTag, boolean requeue) {
+            synchronized (_ackLock) {
+                settled(_unsettled.remove(deliveryTag), requeue ? RabbitMetrics.Settlement.REQUEUE : RabbitMetrics.Settlement.REJECT);
+                if (!_channel.isOpen()) {
+                    log.warn("[MQ] Channel is closed. The message will be redelivered: deliveryTag={}", deliveryTag);
+                    return;
+                }
+                try {
+                    _channel.basicReject(deliveryTag, requeue);
+                } catch (IOException ex) {
+                    log.error("[MQ] Exception on rejecting message: deliveryTag={}", deliveryTag, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Task of the ordering lanes: a task dropped with a rejected lane returns its messages to the queue
+     */
+    private interface QueuedTask extends Runnable {
+        void requeue();
+    }
+
+    /**
+     * Handling of a single delivery on the handler executor
+     */
+    @RequiredArgsConstructor
+    private static class DeliveryTask implements QueuedTask {
+        private final MQConsumer consumer;
+        private final Message message;
+        private final long deliveryTag;
+
+        @Override
+        public void run() {
+            consumer.processMessage(message, deliveryTag);
+        }
+
+        /**
+         * The task is dropped without running: return the message to the queue
+         */
+        @Override
+        public void requeue() {
+            log.warn("[MQ] Handler executor rejected the message. Message will be rejected with requeue. Message={}", message);
+            consumer.reject(deliveryTag, true);
+        }
+    }
+
+    /**
+     * Handling of a batch in an ordering lane
+     */
+    @RequiredArgsConstructor
+    private static class BatchTask implements QueuedTask {
+        private final MQConsumer consumer;
+        private final PendingBatch batch;
+
+        @Override
+        public void run() {
+            consumer.processBatch(batch);
+        }
+
+        /**
+         * The task is dropped without running: return the messages to the queue
+         */
+        @Override
+        public void requeue() {
+            log.warn("[MQ] Handler executor rejected the batch. Messages will be rejected with requeue. Size={}", batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                consumer.reject(batch.tags[i], true);
+            }
+        }
+    }
+
+    /**
+     * Messages collected for a batch handler with their delivery tags
+     */
+    private static class PendingBatch {
+        private final List<Message> messages;
+        private final long[] tags;
+        private ScheduledFuture<?> timer;
+
+        private PendingBatch(int capacity) {
+            messages = new ArrayList<>(capacity);
+            tags = new long[capacity];
+        }
+
+        private void add(Message message, long deliveryTag) {
+            tags[messages.size()] = deliveryTag;
+            messages.add(message);
+        }
+
+        private int size() {
+            return messages.size();
+        }
     }
 
 }
@@ -0,0 +1,138 @@
+package org.powerimo.rabbitmq;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Executor with a fixed number of lanes. Tasks with the same key are hashed to the same lane and run one by one
+ * in the order of submission; different lanes run in parallel on the backing executor.
+ * Tasks without a key go straight to the backing executor.
+ * <p>
+ * If the backing executor rejects a lane, all tasks queued in the lane are dropped: the task of the caller is
+ * reported by {@link RejectedExecutionException}, tasks queued by other threads are passed to the rejection handler.
+ */
+@Slf4j
+public class StripedExecutor {
+    private final Executor executor;
+    private final Consumer<Runnable> rejectionHandler;
+    private final Lane[] lanes;
+    @Getter
+    private final int laneCount;
+
+    /**
+     * @param laneCount number of lanes
+     * @param executor backing executor to run the lanes on
+     */
+    public StripedExecutor(int laneCount, @NonNull Executor executor) {
+        this(laneCount, executor, null);
+    }
+
+    /**
+     * @param laneCount number of lanes
+     * @param executor backing executor to run the lanes on
+     * @param rejectionHandler handler of the tasks of other submitters dropped with a rejected lane;
+     *                         null to log them as lost
+     */
+    public StripedExecutor(int laneCount, @NonNull Executor executor, Consumer<Runnable> rejectionHandler) {
+        if (laneCount <= 0) {
+            throw new RabbitException("Number of lanes must be positive: " + laneCount);
+        }
+        this.executor = executor;
+        this.rejectionHandler = rejectionHandler;
+        this.laneCount = laneCount;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Submit a task
+     * @param key ordering key; null if the task doesn't need ordering
+     * @param task the task
+     * @throws RejectedExecutionException if the backing executor doesn't accept the task
+     */
+    public void execute(Object key, @NonNull Runnable task) {
+        if (key == null) {
+            executor.execute(task);
+        } else {
+            lanes[laneIndex(key)].execute(task);
+        }
+    }
+
+    private int laneIndex(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % laneCount;
+    }
+
+    private class Lane implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            boolean rejected = false;
+            // tasks added while the lane is being rejected find it scheduled: the loop drains them as well
+            while (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                    break;
+                } catch (RejectedExecutionException ex) {
+                    rejected |= drop(task, ex);
+                    scheduled.set(false);
+                    if (tasks.isEmpty())
+                        break;
+                }
+            }
+            if (rejected)
+                throw new RejectedExecutionException("Lane of the task is rejected by the backing executor");
+        }
+
+        /**
+         * Drop the queued tasks of a rejected lane
+         * @return true if the task of the caller is dropped
+         */
+        private boolean drop(Runnable own, RejectedExecutionException cause) {
+            boolean dropped = false;
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                if (task == own) {
+                    dropped = true;
+                } else if (rejectionHandler != null) {
+                    try {
+                        rejectionHandler.accept(task);
+                    } catch (Throwable ex) {
+                        log.error("[MQ] Exception in the rejection handler of an ordered task", ex);
+                    }
+                } else {
+                    log.error("[MQ] Ordered task is dropped: the backing executor rejected its lane", cause);
+                }
+            }
+            return dropped;
+        }
+
+        @Override
+        public void run() {
+            do {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable ex) {
+                        log.error("[MQ] Unhandled exception in ordered task", ex);
+                    }
+                }
+                scheduled.set(false);
+            } while (!tasks.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.powerimo.rabbitmq;
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket: permits are refilled at a constant rate up to a burst of one second worth of permits.
+ * A caller which finds no permit reserves the next ones and sleeps until they are due, so waiting callers are
+ * served in order and the rate is kept without a refill thread.
+ */
+public class TokenBucketRateLimiter {
+    @Getter
+    private final int rate;
+    private final double nanosPerPermit;
+    private final double burst;
+    private double permits;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * @param rate permits per second
+     */
+    public TokenBucketRateLimiter(int rate) {
+        if (rate <= 0)
+            throw new RabbitException("Rate must be positive: " + rate);
+        this.rate = rate;
+        this.nanosPerPermit = (double) TimeUnit.SECONDS.toNanos(1) / rate;
+        this.burst = rate;
+        this.permits = rate;
+    }
+
+    /**
+     * Take permits, waiting for them if needed
+     * @param count number of permits
+     * @param timeout maximum wait, ms
+     * @return time waited, ns; -1 if the permits would not be available within the timeout (none are taken then)
+     * @throws InterruptedException if interrupted while waiting; the reserved permits are not returned
+     */
+    public long acquire(int count, long timeout) throws InterruptedException {
+        long wait = reserve(count, TimeUnit.MILLISECONDS.toNanos(timeout));
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return wait;
+    }
+
+    private synchronized long reserve(int count, long maxWait) {
+        long now = System.nanoTime();
+        permits = Math.min(burst, permits + (now - refilledAt) / nanosPerPermit);
+        refilledAt = now;
+        double missing = count - permits;
+        long wait = missing > 0 ? (long) Math.ceil(missing * nanosPerPermit) : 0;
+        if (wait > maxWait)
+            return -1;
+        // may go negative: the next callers wait for the reserved permits to be refilled first
+        permits -= count;
+        return wait;
+    }
+}
@@ -0,0 +1,13 @@
+package org.powerimo.rabbitmq;
+
+/**
+ * Handler which receives the payload already decoded to its class
+ * @param <T> payload class
+ */
+public interface TypedCommandHandler<T> {
+    /**
+     * @param payload decoded payload; null if the message has no payload
+     * @param message received message; its body is not decoded to a string unless the handler asks for it
+     */
+    void handleMessage(T payload, Message message);
+}
@@ -0,0 +1,78 @@
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.RabbitChannelPool;
+import org.powerimo.rabbitmq.RabbitException;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ChannelPoolTests {
+    private final AtomicInteger createdChannels = new AtomicInteger();
+
+    @Test
+    void testChannelReuse() {
+        RabbitChannelPool pool = new RabbitChannelPool(fakeConnection(), 2, 100);
+        Channel c1 = pool.borrowChannel();
+        pool.returnChannel(c1);
+        Channel c2 = pool.borrowChannel();
+        Assertions.assertSame(c1, c2);
+        pool.returnChannel(c2);
+        Assertions.assertEquals(1, createdChannels.get());
+    }
+
+    @Test
+    void testPoolBound() {
+        RabbitChannelPool pool = new RabbitChannelPool(fakeConnection(), 2, 50);
+        Channel c1 = pool.borrowChannel();
+        Channel c2 = pool.borrowChannel();
+        Assertions.assertNotSame(c1, c2);
+        Assertions.assertThrowsExactly(RabbitException.class, pool::borrowChannel);
+        pool.returnChannel(c2);
+        Assertions.assertSame(c2, pool.borrowChannel());
+    }
+
+    @Test
+    void testClosedChannelIsReplaced() throws Exception {
+        RabbitChannelPool pool = new RabbitChannelPool(fakeConnection(), 1, 50);
+        Channel c1 = pool.borrowChannel();
+        pool.returnChannel(c1);
+        c1.close();
+        Channel c2 = pool.borrowChannel();
+        Assertions.assertNotSame(c1, c2);
+        Assertions.assertTrue(c2.isOpen());
+        Assertions.assertEquals(2, createdChannels.get());
+    }
+
+    private Connection fakeConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("createChannel")) {
+                return fakeChannel(createdChannels.incrementAndGet());
+            }
+            return null;
+        });
+    }
+
+    private Channel fakeChannel(int number) {
+        AtomicBoolean open = new AtomicBoolean(true);
+        return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Channel.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "isOpen":
+                    return open.get();
+                case "close":
+                    open.set(false);
+                    return null;
+                case "getChannelNumber":
+                    return number;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,62 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.powerimo.rabbitmq.RabbitException;
+import org.powerimo.rabbitmq.StandardMessageDeduplicator;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+class DeduplicatorTests {
+
+    @Test
+    void testWindowAndCapacity() throws Exception {
+        var deduplicator = new StandardMessageDeduplicator(1000, 100);
+        var id = UUID.randomUUID().toString();
+        Assertions.assertFalse(deduplicator.isProcessed(id));
+        deduplicator.markProcessed(id);
+        deduplicator.markProcessed("order-42");
+        Assertions.assertTrue(deduplicator.isProcessed(id));
+        Assertions.assertTrue(deduplicator.isProcessed("order-42"));
+        Assertions.assertFalse(deduplicator.isProcessed("order-43"));
+        Assertions.assertFalse(deduplicator.isProcessed(null));
+
+        Thread.sleep(150);
+        Assertions.assertFalse(deduplicator.isProcessed(id));
+        Assertions.assertFalse(deduplicator.isProcessed("order-42"));
+
+        // the oldest ids are evicted when the capacity is reached
+        for (int i = 0; i < 10000; i++) {
+            deduplicator.markProcessed("message-" + i);
+        }
+        Assertions.assertTrue(deduplicator.size() <= 1024);
+        Assertions.assertTrue(deduplicator.isProcessed("message-9999"));
+        Assertions.assertFalse(deduplicator.isProcessed("message-0"));
+
+        Assertions.assertThrowsExactly(RabbitException.class, () -> new StandardMessageDeduplicator(0, 100));
+    }
+
+    @Test
+    void testFile(@TempDir Path dir) {
+        var file = dir.resolve("dedup.dat");
+        var id = UUID.randomUUID().toString();
+        try (var deduplicator = new StandardMessageDeduplicator(100, 60000, file)) {
+            for (int i = 0; i < 150; i++) {
+                deduplicator.markProcessed("message-" + i);
+            }
+            deduplicator.markProcessed(id);
+        }
+
+        // the ring keeps the last ids recorded before the restart
+        try (var deduplicator = new StandardMessageDeduplicator(100, 60000, file)) {
+            Assertions.assertTrue(deduplicator.isProcessed(id));
+            Assertions.assertTrue(deduplicator.isProcessed("message-149"));
+            Assertions.assertFalse(deduplicator.isProcessed("message-10"));
+        }
+
+        // a file of another capacity is reinitialized
+        try (var deduplicator = new StandardMessageDeduplicator(50, 60000, file)) {
+            Assertions.assertFalse(deduplicator.isProcessed(id));
+        }
+    }
+}
@@ -1,7 +1,11 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.powerimo.rabbitmq.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class HandlerTests {
     boolean initialized = false;
     int result1 = 1;
@@ -64,6 +68,80 @@ class HandlerTests {
         h.handleMessage(message);
     }
 
+    @Test
+    void testBatchHandler() {
+        RabbitMessageHandler h = new StandardRabbitMessageHandler();
+        List<Message> received = new ArrayList<>();
+        h.addBatchCommandHandler(MessageType.EVENT, "Batch1", received::addAll);
+        Message m1 = Message.builder().typeMessage(MessageType.EVENT).name("batch1").build();
+        Message m2 = Message.builder().typeMessage(MessageType.EVENT).name("batch1").build();
+        Message other = Message.builder().typeMessage(MessageType.TASK).name("batch1").build();
+
+        Assertions.assertNotNull(h.getBatchCommandHandler(m1));
+        Assertions.assertNull(h.getBatchCommandHandler(other));
+
+        h.handleBatch(List.of(m1, m2));
+        Assertions.assertEquals(2, received.size());
+        Assertions.assertThrowsExactly(RabbitException.class, () -> h.handleBatch(List.of(other)));
+    }
+
+    @Test
+    void testTypedHandler() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        Assertions.assertThrowsExactly(RabbitException.class, () -> new StandardRabbitMessageHandler()
+                .addCommandHandler(MessageType.TASK, "typed", SamplePayload.class, (payload, message) -> {}));
+
+        for (RabbitPayloadConverter converter : List.of(new CachingRabbitPayloadConverter(objectMapper), new StandardRabbitPayloadConverter(objectMapper))) {
+            RabbitMessageHandler h = new StandardRabbitMessageHandler(converter);
+            List<SamplePayload> received = new ArrayList<>();
+            h.addCommandHandler(MessageType.TASK, "typed", SamplePayload.class, (payload, message) -> received.add(payload));
+            SamplePayload samplePayload = new SamplePayload();
+            samplePayload.setIntValue(7);
+            Message message = Message.builder().typeMessage(MessageType.TASK).name("Typed").build();
+            message.setPayload(converter.serializePayload(samplePayload));
+
+            h.handleMessage(message);
+            Assertions.assertEquals(1, received.size());
+            Assertions.assertEquals(7, received.get(0).getIntValue());
+        }
+    }
+
+    @Test
+    void testRoutingTable() {
+        RoutingTable<String> table = RoutingTable.empty();
+        table = table.withRoute("Order.Created", "exact")
+                .withRoute("order.*", "one")
+                .withRoute("order.#", "any")
+                .withRoute("#.failed", "failed");
+        Assertions.assertSame(table, table.withRoute("ORDER.CREATED", "other"));
+        Assertions.assertEquals(4, table.size());
+
+        Assertions.assertEquals("exact", table.get("order.created"));
+        Assertions.assertEquals("exact", table.get("ORDER.CREATED"));
+        Assertions.assertEquals("one", table.get("Order.Deleted"));
+        Assertions.assertEquals("any", table.get("order"));
+        Assertions.assertEquals("any", table.get("order.item.added"));
+        Assertions.assertEquals("failed", table.get("payment.failed"));
+        Assertions.assertNull(table.get("payment.done"));
+        Assertions.assertNull(table.get("orders"));
+        Assertions.assertNull(table.get(null));
+        Assertions.assertThrowsExactly(RabbitException.class, () -> RoutingTable.<String>empty().withRoute("order*", "bad"));
+    }
+
+    @Test
+    void testPatternHandler() {
+        RabbitMessageHandler h = new StandardRabbitMessageHandler();
+        result1 = -1;
+        h.addCommandHandler(MessageType.TASK, "report.*", this::handle1);
+        Message message = Message.builder()
+                .typeMessage(MessageType.TASK)
+                .name("Report.Daily")
+                .build();
+        h.handleMessage(message);
+        Assertions.assertEquals(2, result1);
+    }
+
     private void handle1(Message m) {
         result1 = 2;
     }
@@ -0,0 +1,38 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.HashedWheelTimer;
+import org.powerimo.rabbitmq.RabbitException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class HashedWheelTimerTests {
+
+    @Test
+    void testTimeouts() throws Exception {
+        // a small wheel: the long timeout needs several rounds
+        var timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 4);
+        try {
+            var expired = new CountDownLatch(2);
+            var cancelledRuns = new AtomicInteger();
+            long start = System.nanoTime();
+            var shortTimeout = timer.schedule(expired::countDown, 10, TimeUnit.MILLISECONDS);
+            var longTimeout = timer.schedule(expired::countDown, 100, TimeUnit.MILLISECONDS);
+            var cancelled = timer.schedule(cancelledRuns::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+            Assertions.assertTrue(cancelled.cancel());
+            Assertions.assertFalse(cancelled.cancel());
+
+            Assertions.assertTrue(expired.await(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 100);
+            Assertions.assertTrue(shortTimeout.isExpired());
+            Assertions.assertTrue(longTimeout.isExpired());
+            Assertions.assertFalse(longTimeout.cancel());
+            Assertions.assertTrue(cancelled.isCancelled());
+            Assertions.assertEquals(0, cancelledRuns.get());
+        } finally {
+            timer.close();
+        }
+        Assertions.assertThrowsExactly(RabbitException.class, () -> timer.schedule(() -> {}, 1, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,67 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+class LoopbackTests {
+
+    @Test
+    void testLocalDelivery() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        var converter = new CachingRabbitPayloadConverter(objectMapper);
+        var handler = new StandardRabbitMessageHandler(converter);
+        CompletableFuture<SamplePayload> received = new CompletableFuture<>();
+        CompletableFuture<Message> receivedMessage = new CompletableFuture<>();
+        handler.addCommandHandler(MessageType.EVENT, "loopback", SamplePayload.class, (payload, message) -> {
+            received.complete(payload);
+            receivedMessage.complete(message);
+        });
+        handler.addCommandHandler(MessageType.TASK, "loopback", SamplePayload.class, (payload, message) -> {});
+
+        try (var loopback = new LoopbackTransport(handler, 16)) {
+            loopback.setForwardToBroker(false);
+            // no broker: events with a local handler never open a connection
+            var parameters = new LocalParameters();
+            parameters.setUrl(null);
+            var publisher = new StandardRabbitMessagePublisher(parameters, converter);
+            publisher.setLoopback(loopback);
+
+            SamplePayload samplePayload = new SamplePayload();
+            var sent = publisher.sendEvent("Loopback", samplePayload);
+            Assertions.assertSame(samplePayload, received.get(5, TimeUnit.SECONDS));
+            var message = receivedMessage.get();
+            Assertions.assertNotSame(sent, message);
+            Assertions.assertNotNull(message.getMessageId());
+            Assertions.assertEquals(parameters.getSenderId(), message.getSenderId());
+            Assertions.assertEquals("", message.getRoutingKey());
+            // the caller's message is not stamped
+            Assertions.assertNull(sent.getMessageId());
+            Assertions.assertNull(sent.getParam(Constants.HEADER_LOOPBACK_ID));
+
+            Assertions.assertTrue(publisher.sendEventAsync("loopback", samplePayload).isDone());
+            Assertions.assertThrowsExactly(RabbitException.class, () -> publisher.sendEvent("remote", samplePayload));
+            // tasks and events with a routing key may be addressed to another service: they go to the broker only
+            Assertions.assertThrowsExactly(RabbitException.class, () -> publisher.sendTask("loopback", samplePayload, "rk"));
+            var routed = Message.builder().typeMessage(MessageType.EVENT).name("loopback").payload(samplePayload).build();
+            Assertions.assertThrowsExactly(RabbitException.class,
+                    () -> publisher.sendMessage(routed, parameters.getEventsExchange(), "rk"));
+            var reply = Message.builder().typeMessage(MessageType.EVENT).name("loopback").replyTo("amq.rabbitmq.reply-to").build();
+            Assertions.assertThrowsExactly(RabbitException.class,
+                    () -> publisher.sendMessage(reply, parameters.getEventsExchange(), ""));
+
+            // forwarded events are marked for the local queue, so every instance consuming it skips them
+            var echo = new Message();
+            Assertions.assertFalse(loopback.isDeliveredLocally(echo));
+            echo.addParam(Constants.HEADER_LOOPBACK_ID, loopback.getId());
+            Assertions.assertTrue(loopback.isDeliveredLocally(echo));
+            loopback.setLocalQueue("orders");
+            Assertions.assertFalse(loopback.isDeliveredLocally(echo));
+            echo.addParam(Constants.HEADER_LOOPBACK_ID, "orders");
+            Assertions.assertTrue(loopback.isDeliveredLocally(echo));
+        }
+    }
+}
@@ -1,9 +1,13 @@
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Envelope;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.powerimo.rabbitmq.*;
 
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
+import java.util.Set;
+import java.util.UUID;
 
 
 class PowerMqTests {
@@ -44,6 +48,79 @@ class PowerMqTests {
         Assertions.assertNotNull(converter.extractPayload(message, SamplePayload.class));
     }
 
+    @Test
+    void testCachingPayloadConverter() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        CachingRabbitPayloadConverter converter = new CachingRabbitPayloadConverter(objectMapper, true);
+        SamplePayload samplePayload = new SamplePayload();
+        samplePayload.setIntValue(42);
+
+        byte[] body = converter.serializePayload(samplePayload);
+        Message message = new Message();
+        message.setPayload(body);
+        SamplePayload converted = converter.extractPayload(message, SamplePayload.class);
+        Assertions.assertEquals(42, converted.getIntValue());
+        Assertions.assertEquals(samplePayload.getDateTimeValue(), converted.getDateTimeValue());
+        Assertions.assertSame(converter.reader(SamplePayload.class), converter.reader(SamplePayload.class));
+
+        message.setPayload(new String(body, StandardCharsets.UTF_8));
+        Assertions.assertEquals(42, converter.extractPayload(message, SamplePayload.class).getIntValue());
+        message.setPayload(123);
+        Assertions.assertThrowsExactly(RabbitException.class, () -> converter.extractPayload(message, SamplePayload.class));
+    }
+
+    @Test
+    void testContentTypePayloadConverter() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        ContentTypeRabbitPayloadConverter converter = ContentTypeRabbitPayloadConverter.withJacksonCodecs(objectMapper);
+        SamplePayload samplePayload = new SamplePayload();
+        samplePayload.setIntValue(42);
+        samplePayload.setStringValue("sample");
+        Assertions.assertEquals(Constants.CONTENT_TYPE_JSON, converter.getContentType());
+
+        for (String contentType : new String[]{Constants.CONTENT_TYPE_SMILE, Constants.CONTENT_TYPE_CBOR}) {
+            byte[] body = converter.serializePayload(samplePayload, contentType);
+            Assertions.assertNotEquals('{', body[0]);
+            Message message = new Message();
+            message.setContentType(contentType.toUpperCase() + "; charset=utf-8");
+            message.setPayload(body);
+            SamplePayload converted = converter.extractPayload(message, SamplePayload.class);
+            Assertions.assertEquals(42, converted.getIntValue());
+            Assertions.assertEquals("sample", converted.getStringValue());
+            Assertions.assertEquals(samplePayload.getDateTimeValue(), converted.getDateTimeValue());
+        }
+
+        Message message = new Message();
+        message.setContentType(Constants.CONTENT_TYPE_JSON_LEGACY);
+        message.setPayload(converter.serializePayload(samplePayload));
+        Assertions.assertEquals(42, converter.extractPayload(message, SamplePayload.class).getIntValue());
+        message.setContentType(null);
+        Assertions.assertEquals(42, converter.extractPayload(message, SamplePayload.class).getIntValue());
+        Assertions.assertThrowsExactly(RabbitException.class, () -> converter.serializePayload(samplePayload, "application/x-unknown"));
+    }
+
+    @Test
+    void testContentTypeMapping() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        var standard = new StandardRabbitPayloadConverter(objectMapper);
+        Assertions.assertTrue(standard.supports("Application/JSON; charset=utf-8"));
+        Assertions.assertFalse(standard.supports(Constants.CONTENT_TYPE_SMILE));
+        Assertions.assertThrowsExactly(RabbitException.class, () -> standard.serializePayload(new SamplePayload(), Constants.CONTENT_TYPE_SMILE));
+
+        // a JSON-only converter would send JSON labelled as Smile
+        var parameters = new LocalParameters();
+        parameters.getExchangeContentTypes().put("events", Constants.CONTENT_TYPE_SMILE);
+        Assertions.assertThrowsExactly(RabbitException.class, () -> new StandardRabbitMessagePublisher(parameters, standard));
+        parameters.getExchangeContentTypes().clear();
+        parameters.getMessageContentTypes().put("report", Constants.CONTENT_TYPE_CBOR);
+        Assertions.assertThrowsExactly(RabbitException.class, () -> new StandardRabbitMessagePublisher(parameters, standard));
+        var publisher = new StandardRabbitMessagePublisher(parameters, ContentTypeRabbitPayloadConverter.withJacksonCodecs(objectMapper));
+        Assertions.assertThrowsExactly(RabbitException.class, () -> publisher.setConverter(standard));
+    }
+
     @Test
     void testStandardPayloadConverterExceptions() {
         ObjectMapper objectMapper = new ObjectMapper();
@@ -56,6 +133,187 @@ class PowerMqTests {
         Assertions.assertThrowsExactly(RabbitException.class, () -> payloadConverter.extractPayload(message, SamplePayload.class));
     }
 
+    @Test
+    void testExtractMessageKeepsRawBody() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        StandardRabbitPayloadConverter converter = new StandardRabbitPayloadConverter(objectMapper);
+        SamplePayload samplePayload = new SamplePayload();
+        samplePayload.setStringValue("raw");
+        Message source = Message.builder()
+                .typeMessage(MessageType.EVENT)
+                .name("sample event")
+                .build();
+        source.setPayload(samplePayload);
+        byte[] body = converter.serializePayload(samplePayload);
+        var properties = RabbitUtils.prepareProperties(source, "app", Constants.CONTENT_TYPE_JSON);
+
+        Message message = RabbitUtils.extractMessage("tag", new Envelope(1, false, "events", "rk"), properties, body);
+        Assertions.assertSame(body, message.getPayload());
+        Assertions.assertTrue(message.getPayloadBuffer().isReadOnly());
+        Assertions.assertEquals(new String(body, StandardCharsets.UTF_8), message.getPayloadAsString());
+        Assertions.assertEquals("raw", converter.extractPayload(message, SamplePayload.class).getStringValue());
+        Assertions.assertEquals(message.getPayloadAsString(), converter.extractPayload(message, String.class));
+    }
+
+    @Test
+    void testCompressedPayload() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.findAndRegisterModules();
+        CachingRabbitPayloadConverter converter = new CachingRabbitPayloadConverter(objectMapper);
+        SamplePayload samplePayload = new SamplePayload();
+        samplePayload.setStringValue("compressed ".repeat(1000));
+        Message source = Message.builder()
+                .typeMessage(MessageType.EVENT)
+                .name("sample event")
+                .build();
+        source.setPayload(samplePayload);
+        byte[] json = converter.serializePayload(samplePayload);
+
+        for (String encoding : new String[]{GzipPayloadCompressor.ENCODING, DeflatePayloadCompressor.ENCODING}) {
+            byte[] body = PayloadCompressors.get(encoding).compress(json);
+            Assertions.assertTrue(body.length < json.length / 10);
+            var properties = RabbitUtils.prepareProperties(source, "app", Constants.CONTENT_TYPE_JSON, encoding);
+
+            // parsed from the decompressing stream
+            Message message = RabbitUtils.extractMessage("tag", new Envelope(1, false, "events", "rk"), properties, body);
+            Assertions.assertTrue(message.toString().contains("bodyLength=" + body.length));
+            Assertions.assertTrue(((DeliveryMessage) message).isPayloadCompressed());
+            Assertions.assertEquals(encoding, message.getContentEncoding());
+            Assertions.assertEquals(samplePayload.getStringValue(), converter.extractPayload(message, SamplePayload.class).getStringValue());
+            Assertions.assertTrue(((DeliveryMessage) message).isPayloadCompressed());
+
+            // decompressed on access to the payload
+            message = RabbitUtils.extractMessage("tag", new Envelope(1, false, "events", "rk"), properties, body);
+            Assertions.assertEquals(SamplePayload.class.getName(), message.getPayloadClass());
+            Assertions.assertArrayEquals(json, (byte[]) message.getPayload());
+            Assertions.assertEquals(SamplePayload.class.getName(), message.getPayloadClass());
+            Assertions.assertEquals(samplePayload.getStringValue(), converter.extractPayload(message, SamplePayload.class).getStringValue());
+        }
+    }
+
+    @Test
+    void testLazyDeliveryMessage() {
+        UUID id = UUID.randomUUID();
+        Message source = Message.builder()
+                .typeMessage(MessageType.TASK_RESULT)
+                .name("lazy")
+                .result("done")
+                .resultCode(7)
+                .processId("p1")
+                .build();
+        source.addParam("id", id.toString());
+        var properties = RabbitUtils.prepareProperties(source, "app", Constants.CONTENT_TYPE_JSON);
+
+        Message message = RabbitUtils.extractMessage("tag", new Envelope(1, false, "tasks", "rk"), properties, new byte[0]);
+        Assertions.assertInstanceOf(DeliveryMessage.class, message);
+        Assertions.assertEquals("lazy", message.getName());
+        Assertions.assertEquals(MessageType.TASK_RESULT, message.getTypeMessage());
+        Assertions.assertEquals("done", message.getResult());
+        Assertions.assertEquals(7, message.getResultCode());
+        Assertions.assertEquals("p1", message.getProcessId());
+        Assertions.assertEquals("rk", message.getRoutingKey());
+        Assertions.assertEquals(Constants.PROTOCOL_VERSION_DEFAULT, message.getProtocolVersion());
+        Assertions.assertNotNull(message.getMessageDate());
+        Assertions.assertSame(message.getParamAsUUID("id"), message.getParamAsUUID("id"));
+        Assertions.assertEquals(id, message.getParamAsUUID("id"));
+
+        message.setName("changed");
+        Assertions.assertEquals("changed", message.getName());
+        message.addParam("extra", 1);
+        Assertions.assertEquals(1, message.getParam("extra"));
+        Assertions.assertEquals(id.toString(), message.getParamAsString("id"));
+    }
+
+    @Test
+    void testCompactHeaders() {
+        SamplePayload payload = new SamplePayload();
+        Message source = Message.builder()
+                .protocolVersion(Constants.PROTOCOL_VERSION_1_2)
+                .typeMessage(MessageType.TASK_RESULT)
+                .name("compact")
+                .payload(payload)
+                .payloadClass(RabbitUtils.extractPayloadClass(payload))
+                .resultCode(0)
+                .sourceMessageId("source")
+                .build();
+        source.addParam("tenant", "t1");
+        var headers = RabbitUtils.prepareProperties(source, "app", Constants.CONTENT_TYPE_JSON).getHeaders();
+        // short keys, no nulls
+        Assertions.assertEquals(Set.of("_v", "_t", "_n", "_c", "_rc", "_s", "tenant"), headers.keySet());
+        Assertions.assertEquals((byte) 2, headers.get(Constants.HEADER_COMPACT_TYPE));
+
+        var properties = RabbitUtils.prepareProperties(source, "app", Constants.CONTENT_TYPE_JSON);
+        Message message = RabbitUtils.extractMessage("tag", new Envelope(1, false, "tasks", "rk"), properties, new byte[0]);
+        Assertions.assertEquals(Constants.PROTOCOL_VERSION_1_2, message.getProtocolVersion());
+        Assertions.assertEquals(MessageType.TASK_RESULT, message.getTypeMessage());
+        Assertions.assertEquals("compact", message.getName());
+        Assertions.assertEquals(SamplePayload.class.getCanonicalName(), message.getPayloadClass());
+        Assertions.assertEquals(0, message.getResultCode());
+        Assertions.assertNull(message.getResult());
+        Assertions.assertEquals("source", message.getSourceMessageId());
+        Assertions.assertEquals("t1", message.getParamAsString("tenant"));
+
+        // the class of a plain payload is not sent
+        Message plain = Message.builder()
+                .protocolVersion(Constants.PROTOCOL_VERSION_1_2)
+                .typeMessage(MessageType.EVENT)
+                .payload("text")
+                .payloadClass(RabbitUtils.extractPayloadClass("text"))
+                .build();
+        Assertions.assertEquals(Set.of("_v", "_t"), RabbitUtils.prepareProperties(plain, "app", Constants.CONTENT_TYPE_JSON).getHeaders().keySet());
+
+        // messages of the previous versions are still read
+        Message legacy = Message.builder()
+                .protocolVersion(Constants.PROTOCOL_VERSION_1_0)
+                .typeMessage(MessageType.EVENT)
+                .name("legacy")
+                .build();
+        properties = RabbitUtils.prepareProperties(legacy, "app", Constants.CONTENT_TYPE_JSON);
+        Assertions.assertTrue(properties.getHeaders().containsKey(Constants.HEADER_RESULT_CODE));
+        message = RabbitUtils.extractMessage("tag", new Envelope(2, false, "events", ""), properties, new byte[0]);
+        Assertions.assertEquals(Constants.PROTOCOL_VERSION_1_0, message.getProtocolVersion());
+        Assertions.assertEquals(MessageType.EVENT, message.getTypeMessage());
+        Assertions.assertEquals("legacy", message.getName());
+    }
+
+    @Test
+    void testForwardAcrossVersions() {
+        Message source = Message.builder()
+                .protocolVersion(Constants.PROTOCOL_VERSION_1_2)
+                .typeMessage(MessageType.TASK_RESULT)
+                .name("forward")
+                .result("done")
+                .resultCode(7)
+                .build();
+        source.addParam("tenant", "t1");
+        var properties = RabbitUtils.prepareProperties(source, "app", Constants.CONTENT_TYPE_JSON);
+        Message received = RabbitUtils.extractMessage("tag", new Envelope(1, false, "tasks", "rk"), properties, new byte[0]);
+
+        // 1.2 -> 1.1: no compact headers are left, a cleared field doesn't come back
+        received.setProtocolVersion(Constants.PROTOCOL_VERSION_1_1);
+        received.setResult(null);
+        received.setResultCode(null);
+        properties = RabbitUtils.prepareProperties(received, "app", Constants.CONTENT_TYPE_JSON);
+        Assertions.assertFalse(properties.getHeaders().keySet().stream().anyMatch(key -> key.startsWith("_")));
+        Message forwarded = RabbitUtils.extractMessage("tag", new Envelope(2, false, "tasks", "rk"), properties, new byte[0]);
+        Assertions.assertEquals(Constants.PROTOCOL_VERSION_1_1, forwarded.getProtocolVersion());
+        Assertions.assertEquals("forward", forwarded.getName());
+        Assertions.assertEquals(MessageType.TASK_RESULT, forwarded.getTypeMessage());
+        Assertions.assertNull(forwarded.getResult());
+        Assertions.assertNull(forwarded.getResultCode());
+        Assertions.assertEquals("t1", forwarded.getParamAsString("tenant"));
+
+        // 1.1 -> 1.2: only the compact headers and the params are sent
+        forwarded.setProtocolVersion(Constants.PROTOCOL_VERSION_1_2);
+        properties = RabbitUtils.prepareProperties(forwarded, "app", Constants.CONTENT_TYPE_JSON);
+        Assertions.assertEquals(Set.of("_v", "_t", "_n", "tenant"), properties.getHeaders().keySet());
+        Message compact = RabbitUtils.extractMessage("tag", new Envelope(3, false, "tasks", "rk"), properties, new byte[0]);
+        Assertions.assertEquals(Constants.PROTOCOL_VERSION_1_2, compact.getProtocolVersion());
+        Assertions.assertEquals("forward", compact.getName());
+        Assertions.assertNull(compact.getResultCode());
+    }
+
     @Test
     void testUtils1() {
         Message message = Message.builder()
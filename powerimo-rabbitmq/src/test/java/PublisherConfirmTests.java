@@ -0,0 +1,55 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.Message;
+import org.powerimo.rabbitmq.PublisherConfirmTracker;
+import org.powerimo.rabbitmq.RabbitException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+class PublisherConfirmTests {
+
+    @Test
+    void testMultipleAck() {
+        PublisherConfirmTracker tracker = new PublisherConfirmTracker();
+        var f1 = register(tracker, 1);
+        var f2 = register(tracker, 2);
+        var f3 = register(tracker, 3);
+
+        tracker.handleAck(2, true);
+        Assertions.assertTrue(f1.isDone());
+        Assertions.assertTrue(f2.isDone());
+        Assertions.assertFalse(f3.isDone());
+        Assertions.assertEquals(1, tracker.getPendingCount());
+
+        tracker.handleAck(3, false);
+        Assertions.assertEquals("m3", f3.join().getMessageId());
+        Assertions.assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    void testNack() {
+        PublisherConfirmTracker tracker = new PublisherConfirmTracker();
+        var f1 = register(tracker, 1);
+        tracker.handleNack(1, false);
+        var ex = Assertions.assertThrows(ExecutionException.class, f1::get);
+        Assertions.assertInstanceOf(RabbitException.class, ex.getCause());
+    }
+
+    @Test
+    void testFailAll() {
+        PublisherConfirmTracker tracker = new PublisherConfirmTracker();
+        var f1 = register(tracker, 1);
+        var f2 = register(tracker, 2);
+        tracker.failAll(new RabbitException("closed"));
+        Assertions.assertTrue(f1.isCompletedExceptionally());
+        Assertions.assertTrue(f2.isCompletedExceptionally());
+        Assertions.assertEquals(0, tracker.getPendingCount());
+    }
+
+    private CompletableFuture<Message> register(PublisherConfirmTracker tracker, long seqNo) {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        tracker.register(seqNo, Message.builder().messageId("m" + seqNo).build(), future);
+        return future;
+    }
+}
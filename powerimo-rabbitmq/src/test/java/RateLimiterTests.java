@@ -0,0 +1,26 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.RabbitException;
+import org.powerimo.rabbitmq.TokenBucketRateLimiter;
+
+import java.util.concurrent.TimeUnit;
+
+class RateLimiterTests {
+
+    @Test
+    void testTokenBucket() throws Exception {
+        // permits refill from the creation: 110 permits can't be taken within 100 ms of it
+        long start = System.nanoTime();
+        var limiter = new TokenBucketRateLimiter(100);
+        // the burst of one second worth of permits is available at once
+        Assertions.assertEquals(0, limiter.acquire(100, 0));
+
+        // the bucket is empty: the next permits are refilled at 10 ms each
+        Assertions.assertEquals(-1, limiter.acquire(10, 10));
+        Assertions.assertTrue(limiter.acquire(5, 1000) > 0);
+        Assertions.assertTrue(limiter.acquire(5, 1000) >= 0);
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+
+        Assertions.assertThrowsExactly(RabbitException.class, () -> new TokenBucketRateLimiter(0));
+    }
+}
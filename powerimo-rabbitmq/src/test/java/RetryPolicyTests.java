@@ -0,0 +1,32 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.*;
+
+class RetryPolicyTests {
+
+    @Test
+    void testDelays() {
+        var parameters = new LocalParameters();
+        parameters.setQueue("orders");
+        Assertions.assertNull(RetryPolicy.of(parameters));
+
+        parameters.setRetryMaxAttempts(10);
+        parameters.setRetryInitialDelay(1000);
+        parameters.setRetryMaxDelay(5000);
+        var policy = RetryPolicy.of(parameters);
+        Assertions.assertEquals(1000, policy.getDelay(1));
+        Assertions.assertEquals(2000, policy.getDelay(2));
+        Assertions.assertEquals(4000, policy.getDelay(3));
+        Assertions.assertEquals(5000, policy.getDelay(4));
+        Assertions.assertEquals(5000, policy.getDelay(100));
+        Assertions.assertEquals("orders.retry.2000", policy.getRetryQueue(2000));
+        Assertions.assertEquals("orders.parking", policy.getParkingQueue());
+
+        var message = new Message();
+        Assertions.assertEquals(0, RetryPolicy.getAttempt(message));
+        message.addParam(Constants.HEADER_RETRY_ATTEMPT, 3);
+        Assertions.assertEquals(3, RetryPolicy.getAttempt(message));
+
+        Assertions.assertThrowsExactly(RabbitException.class, () -> new RetryPolicy("orders", 3, 1000, 500));
+    }
+}
@@ -0,0 +1,76 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.StripedExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+class StripedExecutorTests {
+
+    @Test
+    void testOrderPerKey() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            StripedExecutor executor = new StripedExecutor(4, pool);
+            int keys = 10;
+            int perKey = 500;
+            Map<String, List<Integer>> results = new HashMap<>();
+            for (int k = 0; k < keys; k++) {
+                results.put("key" + k, Collections.synchronizedList(new ArrayList<>()));
+            }
+            CountDownLatch latch = new CountDownLatch(keys * perKey);
+            for (int i = 0; i < perKey; i++) {
+                for (int k = 0; k < keys; k++) {
+                    String key = "key" + k;
+                    int value = i;
+                    executor.execute(key, () -> {
+                        results.get(key).add(value);
+                        latch.countDown();
+                    });
+                }
+            }
+            Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            for (List<Integer> values : results.values()) {
+                Assertions.assertEquals(perKey, values.size());
+                for (int i = 0; i < perKey; i++) {
+                    Assertions.assertEquals(i, values.get(i));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testNullKey() throws InterruptedException {
+        StripedExecutor executor = new StripedExecutor(2, Runnable::run);
+        CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(null, latch::countDown);
+        Assertions.assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testRejectedLane() {
+        List<Runnable> rejected = new ArrayList<>();
+        Runnable own = () -> {};
+        Runnable other = () -> {};
+        StripedExecutor[] executor = new StripedExecutor[1];
+        Executor backing = task -> {
+            // another submitter queues a task while the lane is being scheduled
+            executor[0].execute("key", other);
+            throw new RejectedExecutionException("shut down");
+        };
+        executor[0] = new StripedExecutor(1, backing, rejected::add);
+        Assertions.assertThrows(RejectedExecutionException.class, () -> executor[0].execute("key", own));
+        Assertions.assertEquals(List.of(other), rejected);
+    }
+}
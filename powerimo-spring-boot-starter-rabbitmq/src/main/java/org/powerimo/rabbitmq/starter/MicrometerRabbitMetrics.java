@@ -0,0 +1,172 @@
+package org.powerimo.rabbitmq.starter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.NonNull;
+import org.powerimo.rabbitmq.MessageType;
+import org.powerimo.rabbitmq.RabbitMetrics;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
+
+/**
+ * Micrometer implementation of {@link RabbitMetrics}.
+ * <ul>
+ *     <li>{@code powerimo.rabbitmq.publish} timer and {@code powerimo.rabbitmq.publish.bytes} summary by exchange</li>
+ *     <li>{@code powerimo.rabbitmq.delivery} timer from the delivery to the ack, reject or requeue, by outcome</li>
+ *     <li>{@code powerimo.rabbitmq.parse.failures} counter of deliveries which could not be read</li>
+ *     <li>{@code powerimo.rabbitmq.duplicates} counter of deliveries of already processed messages</li>
+ *     <li>{@code powerimo.rabbitmq.handler} timer by message type, handler name and outcome</li>
+ *     <li>{@code powerimo.rabbitmq.blocked} timer of the periods the publishing connection was blocked by the broker</li>
+ *     <li>{@code powerimo.rabbitmq.throttled} timer of waits for the publish rate limit by exchange</li>
+ *     <li>{@code powerimo.rabbitmq.publisher.blocked} and {@code powerimo.rabbitmq.publisher.buffered} gauges</li>
+ *     <li>{@code powerimo.rabbitmq.consumers} and {@code powerimo.rabbitmq.in.flight} gauges by queue</li>
+ * </ul>
+ * The publish rate is the rate of the {@code powerimo.rabbitmq.publish} timer.
+ * Meters are resolved once: per exchange on the first publish, per handler on its registration.
+ * Gauges read the source of the last bind, so a restarted listener or a recreated publisher replaces the previous one.
+ */
+public class MicrometerRabbitMetrics implements RabbitMetrics {
+    public static final String PREFIX = "powerimo.rabbitmq";
+    private final MeterRegistry registry;
+    private final ConcurrentMap<String, PublishMeters> publishMeters = new ConcurrentHashMap<>();
+    private final Timer[] settlementTimers;
+    private final Counter parseFailures;
+    private final Counter duplicates;
+    private final Timer blocked;
+    private final ConcurrentMap<String, Timer> throttledTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicReference<IntSupplier>> gaugeSources = new ConcurrentHashMap<>();
+
+    public MicrometerRabbitMetrics(@NonNull MeterRegistry registry) {
+        this.registry = registry;
+        var settlements = Settlement.values();
+        this.settlementTimers = new Timer[settlements.length];
+        for (Settlement settlement : settlements) {
+            settlementTimers[settlement.ordinal()] = Timer.builder(PREFIX + ".delivery")
+                    .description("Time from the delivery of a message to its settlement")
+                    .tag("outcome", settlement.name().toLowerCase(Locale.ROOT))
+                    .register(registry);
+        }
+        this.parseFailures = Counter.builder(PREFIX + ".parse.failures")
+                .description("Deliveries which could not be read as messages")
+                .register(registry);
+        this.duplicates = Counter.builder(PREFIX + ".duplicates")
+                .description("Deliveries of already processed messages acked without handling")
+                .register(registry);
+        this.blocked = Timer.builder(PREFIX + ".blocked")
+                .description("Periods the publishing connection was blocked by the broker")
+                .register(registry);
+    }
+
+    @Override
+    public void recordPublish(String exchange, int bytes, long nanos, boolean success) {
+        var meters = publishMeters.computeIfAbsent(exchange != null ? exchange : "", PublishMeters::new);
+        (success ? meters.success : meters.failure).record(nanos, TimeUnit.NANOSECONDS);
+        if (success) {
+            meters.bytes.record(bytes);
+        }
+    }
+
+    @Override
+    public void recordBlocked(long nanos) {
+        blocked.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordThrottled(String exchange, long nanos) {
+        throttledTimers.computeIfAbsent(exchange != null ? exchange : "", key -> Timer.builder(PREFIX + ".throttled")
+                        .description("Waits of publishing for the publish rate limit")
+                        .tag("exchange", key)
+                        .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordSettlement(Settlement settlement, long nanos) {
+        settlementTimers[settlement.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordParseFailure() {
+        parseFailures.increment();
+    }
+
+    @Override
+    public void recordDuplicate() {
+        duplicates.increment();
+    }
+
+    @Override
+    public HandlerTimer handlerTimer(MessageType typeMessage, String name) {
+        Timer success = handlerTimer(typeMessage, name, "success");
+        Timer failure = handlerTimer(typeMessage, name, "failure");
+        return (nanos, failed) -> (failed ? failure : success).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void bindListener(String queue, IntSupplier consumers, IntSupplier inFlight) {
+        String queueTag = queue != null ? queue : "";
+        bindGauge(PREFIX + ".consumers", "Consumers of the listener", queueTag, consumers);
+        bindGauge(PREFIX + ".in.flight", "Deliveries received but not settled yet", queueTag, inFlight);
+    }
+
+    @Override
+    public void bindPublisher(IntSupplier blocked, IntSupplier buffered) {
+        bindGauge(PREFIX + ".publisher.blocked", "1 while the publishing connection is blocked by the broker", null, blocked);
+        bindGauge(PREFIX + ".publisher.buffered", "Messages buffered while the publishing connection is blocked", null, buffered);
+    }
+
+    private void bindGauge(String name, String description, String queue, IntSupplier source) {
+        String key = queue != null ? name + ":" + queue : name;
+        gaugeSources.computeIfAbsent(key, k -> {
+            var holder = new AtomicReference<>(source);
+            var builder = Gauge.builder(name, holder, h -> h.get().getAsInt())
+                    .description(description);
+            if (queue != null) {
+                builder.tag("queue", queue);
+            }
+            builder.register(registry);
+            return holder;
+        }).set(source);
+    }
+
+    private Timer handlerTimer(MessageType typeMessage, String name, String outcome) {
+        return Timer.builder(PREFIX + ".handler")
+                .description("Execution time of message handlers")
+                .tag("type", typeMessage.name().toLowerCase(Locale.ROOT))
+                .tag("name", name)
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private class PublishMeters {
+        private final Timer success;
+        private final Timer failure;
+        private final DistributionSummary bytes;
+
+        private PublishMeters(String exchange) {
+            success = publishTimer(exchange, "success");
+            failure = publishTimer(exchange, "failure");
+            bytes = DistributionSummary.builder(PREFIX + ".publish.bytes")
+                    .description("Size of published message bodies")
+                    .baseUnit("bytes")
+                    .tag("exchange", exchange)
+                    .register(registry);
+        }
+
+        private Timer publishTimer(String exchange, String outcome) {
+            return Timer.builder(PREFIX + ".publish")
+                    .description("Time of serializing and publishing messages")
+                    .tag("exchange", exchange)
+                    .tag("outcome", outcome)
+                    .register(registry);
+        }
+    }
+}
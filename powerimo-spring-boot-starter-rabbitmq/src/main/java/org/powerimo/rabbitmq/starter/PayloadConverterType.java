@@ -0,0 +1,17 @@
+package org.powerimo.rabbitmq.starter;
+
+public enum PayloadConverterType {
+    /**
+     * org.powerimo.rabbitmq.StandardRabbitPayloadConverter
+     */
+    STANDARD,
+    /**
+     * org.powerimo.rabbitmq.CachingRabbitPayloadConverter: cached readers and writers per payload class
+     */
+    CACHING,
+    /**
+     * org.powerimo.rabbitmq.ContentTypeRabbitPayloadConverter: caching JSON, Smile and CBOR converters selected by content type.
+     * Smile and CBOR require jackson-dataformat-smile and jackson-dataformat-cbor on the classpath
+     */
+    CODECS
+}
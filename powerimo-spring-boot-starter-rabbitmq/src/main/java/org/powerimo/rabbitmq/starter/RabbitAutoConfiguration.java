@@ -3,23 +3,35 @@ package org.powerimo.rabbitmq.starter;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.logging.log4j.util.Strings;
 import org.powerimo.common.utils.Utils;
 import org.powerimo.rabbitmq.*;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.AutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
 
-@AutoConfiguration
+import java.util.concurrent.Executor;
+
+@AutoConfiguration(afterName = {
+        "org.springframework.boot.actuate.autoconfigure.metrics.MetricsAutoConfiguration",
+        "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration"
+})
 @EnableConfigurationProperties(RabbitParameters.class)
 @ConditionalOnProperty(value = "powerimo.rabbitmq.enabled", havingValue = "true", matchIfMissing = true)
 @Slf4j
 public class RabbitAutoConfiguration {
     public static final String CREATED = "CREATED";
     public static final String STARTED = "STARTED";
+    public static final String HANDLER_EXECUTOR_BEAN = "rabbitHandlerExecutor";
     private final RabbitParameters parameters;
     private ObjectMapper objectMapper;
     private static final int LOG_LINE_LENGTH = 80;
@@ -39,6 +51,26 @@ public class RabbitAutoConfiguration {
             log.info(formatValue("Exchange tasks", mqParameters.getExchangeTasks()));
             log.info(formatValue("Exchange events", mqParameters.getExchangeEvents()));
             log.info(formatValue("Auto start", parameters.isAutoStart()));
+            log.info(formatValue("Publisher channel pool size", mqParameters.getPublisherChannelPoolSize()));
+            log.info(formatValue("Listener concurrency", mqParameters.getConcurrency()));
+            log.info(formatValue("Listener prefetch", mqParameters.getPrefetch()));
+            log.info(formatValue("Handler execution mode", mqParameters.getHandlerExecutionMode()));
+            log.info(formatValue("Payload converter", mqParameters.getPayloadConverter()));
+            log.info(formatValue("Payload compression", mqParameters.getCompression()));
+            log.info(formatValue("Loopback", mqParameters.isLoopback()));
+            log.info(formatValue("Recovery interval, ms", mqParameters.getRecoveryInterval()));
+            log.info(formatValue("Recovery max interval, ms", mqParameters.getRecoveryMaxInterval()));
+            log.info(formatValue("Deduplication capacity", mqParameters.getDeduplicationCapacity()));
+            log.info(formatValue("Deduplication window, ms", mqParameters.getDeduplicationWindow()));
+            log.info(formatValue("Deduplication file", mqParameters.getDeduplicationFile()));
+            log.info(formatValue("Retry max attempts", mqParameters.getRetryMaxAttempts()));
+            log.info(formatValue("Retry initial delay, ms", mqParameters.getRetryInitialDelay()));
+            log.info(formatValue("Retry max delay, ms", mqParameters.getRetryMaxDelay()));
+            log.info(formatValue("Blocked policy", mqParameters.getBlockedPolicy()));
+            log.info(formatValue("Backpressure timeout, ms", mqParameters.getBackpressureTimeout()));
+            log.info(formatValue("Blocked buffer size", mqParameters.getBlockedBufferSize()));
+            log.info(formatValue("Publish rate limit", mqParameters.getPublishRateLimit()));
+            log.info(formatValue("Protocol version", mqParameters.getProtocolVersion()));
         }
     }
 
@@ -48,8 +80,19 @@ public class RabbitAutoConfiguration {
 
     @Bean
     @ConditionalOnMissingBean(RabbitQueueListener.class)
-    public RabbitQueueListener rabbitQueueListener(org.powerimo.rabbitmq.RabbitParameters rabbitParameters, RabbitMessageHandler rabbitMessageHandler) {
+    public RabbitQueueListener rabbitQueueListener(org.powerimo.rabbitmq.RabbitParameters rabbitParameters,
+                                                   RabbitMessageHandler rabbitMessageHandler,
+                                                   @Qualifier(HANDLER_EXECUTOR_BEAN) ObjectProvider<Executor> handlerExecutor,
+                                                   ObjectProvider<RabbitMetrics> rabbitMetrics,
+                                                   ObjectProvider<LoopbackTransport> loopbackTransport,
+                                                   ObjectProvider<MessageDeduplicator> messageDeduplicator,
+                                                   RabbitConnectionManager rabbitConnectionManager) {
         var listener = new StandardRabbitQueueListener(rabbitParameters, rabbitMessageHandler);
+        listener.setConnectionManager(rabbitConnectionManager);
+        listener.setHandlerExecutor(handlerExecutor.getIfAvailable());
+        listener.setMetrics(rabbitMetrics.getIfAvailable(() -> RabbitMetrics.NOOP));
+        listener.setLoopback(loopbackTransport.getIfAvailable());
+        listener.setDeduplicator(messageDeduplicator.getIfAvailable());
         log.debug(formatValue("@ bean RabbitQueueListener", CREATED));
         if (parameters.isAutoStart()) {
             listener.start();
@@ -62,16 +105,37 @@ public class RabbitAutoConfiguration {
 
     @Bean
     @ConditionalOnMissingBean(RabbitMessagePublisher.class)
-    public RabbitMessagePublisher rabbitMessagePublisher(org.powerimo.rabbitmq.RabbitParameters rabbitParameters, RabbitPayloadConverter rabbitPayloadConverter) {
+    public RabbitMessagePublisher rabbitMessagePublisher(org.powerimo.rabbitmq.RabbitParameters rabbitParameters, RabbitPayloadConverter rabbitPayloadConverter,
+                                                         ObjectProvider<RabbitMetrics> rabbitMetrics,
+                                                         ObjectProvider<LoopbackTransport> loopbackTransport,
+                                                         RabbitConnectionManager rabbitConnectionManager) {
         var bean = new StandardRabbitMessagePublisher(rabbitParameters, rabbitPayloadConverter);
+        bean.setConnectionManager(rabbitConnectionManager);
+        bean.setMetrics(rabbitMetrics.getIfAvailable(() -> RabbitMetrics.NOOP));
+        bean.setLoopback(loopbackTransport.getIfAvailable());
         log.debug(formatValue("@ bean RabbitMessagePublisher", CREATED));
         return bean;
     }
 
+    @Bean
+    @ConditionalOnMissingBean(RabbitConnectionManager.class)
+    public RabbitConnectionManager rabbitConnectionManager(org.powerimo.rabbitmq.RabbitParameters rabbitParameters) {
+        var bean = new RabbitConnectionManager(rabbitParameters);
+        log.debug(formatValue("@ bean RabbitConnectionManager", CREATED));
+        return bean;
+    }
+
     @Bean
     @ConditionalOnMissingBean(RabbitPayloadConverter.class)
     public RabbitPayloadConverter rabbitPayloadConverter(ObjectMapper objectMapper1) {
-        var bean = new StandardRabbitPayloadConverter(objectMapper1);
+        RabbitPayloadConverter bean;
+        if (parameters.getPayloadConverter() == PayloadConverterType.CACHING) {
+            bean = new CachingRabbitPayloadConverter(objectMapper1, parameters.isPayloadConverterBlackbird());
+        } else if (parameters.getPayloadConverter() == PayloadConverterType.CODECS) {
+            bean = ContentTypeRabbitPayloadConverter.withJacksonCodecs(objectMapper1, parameters.isPayloadConverterBlackbird());
+        } else {
+            bean = new StandardRabbitPayloadConverter(objectMapper1);
+        }
         log.debug(formatValue("@ bean RabbitPayloadConverter", CREATED));
         return bean;
     }
@@ -91,10 +155,34 @@ public class RabbitAutoConfiguration {
 
     @Bean
     @ConditionalOnMissingBean(RabbitMessageHandler.class)
-    public RabbitMessageHandler rabbitMessageHandler() {
-        var handler = new StandardRabbitMessageHandler();
+    public RabbitMessageHandler rabbitMessageHandler(RabbitPayloadConverter rabbitPayloadConverter, ObjectProvider<RabbitMetrics> rabbitMetrics) {
+        var handler = new StandardRabbitMessageHandler(rabbitPayloadConverter);
+        handler.setMetrics(rabbitMetrics.getIfAvailable(() -> RabbitMetrics.NOOP));
         log.debug(formatValue("@ bean RabbitMessageHandler", CREATED));
         return handler;
     }
 
+    @Bean
+    @ConditionalOnProperty(value = "powerimo.rabbitmq.loopback", havingValue = "true")
+    @ConditionalOnMissingBean(LoopbackTransport.class)
+    public LoopbackTransport rabbitLoopbackTransport(RabbitMessageHandler rabbitMessageHandler) {
+        var bean = new LoopbackTransport(rabbitMessageHandler, parameters.getLoopbackQueueSize());
+        bean.setForwardToBroker(parameters.isLoopbackForwardToBroker());
+        bean.setLocalQueue(parameters.getQueue());
+        log.debug(formatValue("@ bean LoopbackTransport", CREATED));
+        return bean;
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(MeterRegistry.class)
+    static class MetricsConfiguration {
+        @Bean
+        @ConditionalOnBean(MeterRegistry.class)
+        @ConditionalOnMissingBean(RabbitMetrics.class)
+        public RabbitMetrics rabbitMetrics(MeterRegistry meterRegistry) {
+            log.debug(Utils.formatLogValue("@ bean RabbitMetrics", CREATED));
+            return new MicrometerRabbitMetrics(meterRegistry);
+        }
+    }
+
 }
@@ -0,0 +1,68 @@
+package org.powerimo.rabbitmq.starter;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.powerimo.rabbitmq.Message;
+import org.powerimo.rabbitmq.MessageType;
+import org.powerimo.rabbitmq.RabbitMessageHandler;
+import org.powerimo.rabbitmq.RabbitMetrics;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TestRabbitMetrics {
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+            .withConfiguration(AutoConfigurations.of(RabbitAutoConfiguration.class))
+            .withPropertyValues("powerimo.rabbitmq.auto-start=false");
+
+    @Test
+    void testNoMeterRegistry() {
+        contextRunner.run(context -> assertEquals(0, context.getBeanNamesForType(RabbitMetrics.class).length));
+    }
+
+    @Test
+    void testHandlerTimer() {
+        contextRunner.withBean(MeterRegistry.class, SimpleMeterRegistry::new).run(context -> {
+            assertInstanceOf(MicrometerRabbitMetrics.class, context.getBean(RabbitMetrics.class));
+            var registry = context.getBean(MeterRegistry.class);
+            var handler = context.getBean(RabbitMessageHandler.class);
+            handler.addCommandHandler(MessageType.TASK, "Report", message -> {});
+            handler.handleMessage(Message.builder().typeMessage(MessageType.TASK).name("report").build());
+
+            var timer = registry.find(MicrometerRabbitMetrics.PREFIX + ".handler")
+                    .tag("name", "Report")
+                    .tag("outcome", "success")
+                    .timer();
+            assertNotNull(timer);
+            assertEquals(1, timer.count());
+
+            var metrics = context.getBean(RabbitMetrics.class);
+            metrics.recordPublish("tasks", 100, 1000, true);
+            metrics.recordSettlement(RabbitMetrics.Settlement.REQUEUE, 1000);
+            assertEquals(100, registry.get(MicrometerRabbitMetrics.PREFIX + ".publish.bytes").tag("exchange", "tasks").summary().totalAmount());
+            assertEquals(1, registry.get(MicrometerRabbitMetrics.PREFIX + ".delivery").tag("outcome", "requeue").timer().count());
+            assertSame(metrics, context.getBean(RabbitMetrics.class));
+        });
+    }
+
+    @Test
+    void testRebindGauges() {
+        var registry = new SimpleMeterRegistry();
+        var metrics = new MicrometerRabbitMetrics(registry);
+        metrics.bindListener("orders", () -> 1, () -> 2);
+        metrics.bindPublisher(() -> 1, () -> 5);
+        metrics.bindListener("orders", () -> 3, () -> 4);
+        metrics.bindPublisher(() -> 0, () -> 6);
+
+        assertEquals(3, registry.get(MicrometerRabbitMetrics.PREFIX + ".consumers").tag("queue", "orders").gauge().value());
+        assertEquals(4, registry.get(MicrometerRabbitMetrics.PREFIX + ".in.flight").tag("queue", "orders").gauge().value());
+        assertEquals(0, registry.get(MicrometerRabbitMetrics.PREFIX + ".publisher.blocked").gauge().value());
+        assertEquals(6, registry.get(MicrometerRabbitMetrics.PREFIX + ".publisher.buffered").gauge().value());
+        assertEquals(1, registry.find(MicrometerRabbitMetrics.PREFIX + ".consumers").gauges().size());
+    }
+}